@@ -0,0 +1,207 @@
+package io.github.richardstartin.tagsmap.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates a subclass of GeneratedTagsMap for each type annotated with
+ * TagKeys. Each key gets a constant and a volatile field for its value,
+ * and keys are resolved by a switch over their precomputed hash codes.
+ * This doesn't depend on the tags-map classes so it can run before they're
+ * compiled, and reads the annotation from its mirror.
+ */
+@SupportedAnnotationTypes(TagKeysProcessor.TAG_KEYS)
+public class TagKeysProcessor extends AbstractProcessor {
+
+  static final String TAG_KEYS = "io.github.richardstartin.tagsmap.TagKeys";
+  private static final String BASE_CLASS = "io.github.richardstartin.tagsmap.GeneratedTagsMap";
+  private static final int MAX_KEYS = 64;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        List<String> keys = keys(element);
+        if (null != keys && validate(element, keys)) {
+          generate((TypeElement) element, keys);
+        }
+      }
+    }
+    return true;
+  }
+
+  private List<String> keys(Element element) {
+    for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+      if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(TAG_KEYS)) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+          if (entry.getKey().getSimpleName().contentEquals("value")) {
+            List<String> keys = new ArrayList<>();
+            for (Object value : (List<?>) entry.getValue().getValue()) {
+              keys.add((String) ((AnnotationValue) value).getValue());
+            }
+            return keys;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private boolean validate(Element element, List<String> keys) {
+    if (keys.isEmpty() || keys.size() > MAX_KEYS) {
+      error(element, "@TagKeys needs between 1 and " + MAX_KEYS + " keys, got " + keys.size());
+      return false;
+    }
+    if (new HashSet<>(keys).size() != keys.size()) {
+      error(element, "@TagKeys has duplicate keys: " + keys);
+      return false;
+    }
+    return true;
+  }
+
+  private void generate(TypeElement element, List<String> keys) {
+    String packageName = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+    String className = element.getSimpleName() + "TagsMap";
+    String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+    try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, element).openWriter()) {
+      writer.write(source(packageName, className, element.getQualifiedName().toString(), keys));
+    } catch (IOException e) {
+      error(element, "failed to generate " + qualifiedName + ": " + e.getMessage());
+    }
+  }
+
+  static String source(String packageName, String className, String origin, List<String> keys) {
+    String[] constants = constantNames(keys);
+    StringBuilder sb = new StringBuilder();
+    if (!packageName.isEmpty()) {
+      sb.append("package ").append(packageName).append(";\n\n");
+    }
+    sb.append("import ").append(BASE_CLASS).append(";\n\n");
+    sb.append("import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;\n\n");
+    sb.append("/**\n * Generated from the keys of {@link ").append(origin).append("}.\n */\n");
+    sb.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+    sb.append("public final class ").append(className).append("<T> extends GeneratedTagsMap<T> {\n\n");
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("  public static final String ").append(constants[i]).append(" = ")
+              .append(literal(keys.get(i))).append(";\n");
+    }
+    sb.append('\n');
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("  private static final AtomicReferenceFieldUpdater<").append(className).append(", Object> V")
+              .append(i).append(" =\n          AtomicReferenceFieldUpdater.newUpdater(")
+              .append(className).append(".class, Object.class, \"v").append(i).append("\");\n");
+    }
+    sb.append('\n');
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("  private volatile Object v").append(i).append(";\n");
+    }
+    sb.append("\n  public static <T> ").append(className).append("<T> create() {\n")
+            .append("    return new ").append(className).append("<>();\n  }\n\n");
+    sb.append("  private ").append(className).append("() {\n  }\n\n");
+    sb.append("  @Override\n  protected ").append(className).append("<T> newInstance() {\n")
+            .append("    return new ").append(className).append("<>();\n  }\n\n");
+
+    // keys grouped by hash code, in the order they were declared
+    Map<Integer, List<Integer>> byHash = new LinkedHashMap<>();
+    for (int i = 0; i < keys.size(); ++i) {
+      byHash.computeIfAbsent(keys.get(i).hashCode(), h -> new ArrayList<>()).add(i);
+    }
+    sb.append("  @Override\n  public int indexFor(Object key) {\n    switch (key.hashCode()) {\n");
+    for (Map.Entry<Integer, List<Integer>> entry : byHash.entrySet()) {
+      sb.append("      case ").append(entry.getKey()).append(":\n");
+      for (int i : entry.getValue()) {
+        sb.append("        if (").append(constants[i]).append(".equals(key)) {\n")
+                .append("          return ").append(i).append(";\n        }\n");
+      }
+      sb.append("        return -1;\n");
+    }
+    sb.append("      default:\n        return -1;\n    }\n  }\n\n");
+
+    sb.append("  @Override\n  protected String keyAt(int index) {\n    switch (index) {\n");
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("      case ").append(i).append(":\n        return ").append(constants[i]).append(";\n");
+    }
+    sb.append("      default:\n        throw new IllegalStateException(\"no key at \" + index);\n    }\n  }\n\n");
+
+    sb.append("  @Override\n  protected int keyCount() {\n    return ").append(keys.size()).append(";\n  }\n\n");
+
+    sb.append("  @Override\n  protected T readValueAtIndex(int index) {\n    switch (index) {\n");
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("      case ").append(i).append(":\n        return (T) v").append(i).append(";\n");
+    }
+    sb.append("      default:\n        return null;\n    }\n  }\n\n");
+
+    sb.append("  @Override\n  protected T getAndSetValueAtIndex(int index, T value) {\n    switch (index) {\n");
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("      case ").append(i).append(":\n        return (T) V").append(i)
+              .append(".getAndSet(this, value);\n");
+    }
+    sb.append("      default:\n        throw new IllegalStateException(\"no key at \" + index);\n    }\n  }\n\n");
+
+    sb.append("  @Override\n  protected boolean casValueAtIndex(int index, T expect, T update) {\n    switch (index) {\n");
+    for (int i = 0; i < keys.size(); ++i) {
+      sb.append("      case ").append(i).append(":\n        return V").append(i)
+              .append(".compareAndSet(this, expect, update);\n");
+    }
+    sb.append("      default:\n        throw new IllegalStateException(\"no key at \" + index);\n    }\n  }\n}\n");
+    return sb.toString();
+  }
+
+  /**
+   * @return upper case identifiers for the keys, e.g. HTTP_METHOD for http.method
+   */
+  static String[] constantNames(List<String> keys) {
+    String[] names = new String[keys.size()];
+    Set<String> used = new HashSet<>();
+    for (int i = 0; i < keys.size(); ++i) {
+      StringBuilder name = new StringBuilder();
+      String key = keys.get(i);
+      for (int j = 0; j < key.length(); ++j) {
+        char c = key.charAt(j);
+        name.append(c < 0x80 && Character.isLetterOrDigit(c) ? Character.toUpperCase(c) : '_');
+      }
+      if (name.length() == 0 || Character.isDigit(name.charAt(0))) {
+        name.insert(0, '_');
+      }
+      String candidate = name.toString();
+      // V and v prefixed names are taken by the value fields, and a suffixed name may be another key's name
+      for (int suffix = i; used.contains(candidate) || candidate.matches("V\\d+"); ++suffix) {
+        candidate = name + "_" + suffix;
+      }
+      used.add(candidate);
+      names[i] = candidate;
+    }
+    return names;
+  }
+
+  private static String literal(String key) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < key.length(); ++i) {
+      char c = key.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20 || c >= 0x7F) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
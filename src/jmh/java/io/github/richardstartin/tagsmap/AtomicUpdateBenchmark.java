@@ -0,0 +1,159 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Counters updated with merge, and "first writer wins" attributes set with
+ * computeIfAbsent, with all threads writing to the same few keys.
+ */
+@State(Scope.Benchmark)
+public class AtomicUpdateBenchmark {
+
+  @Param({"1", "4"})
+  int keyCount;
+
+  ConcurrentHashMap<String, Object> chm;
+  TagsMap<Object> tm;
+  String[] keys;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    chm = new ConcurrentHashMap<>();
+    tm = TagsMap.create(StringTables.create(keys));
+  }
+
+  private String key() {
+    return keys[ThreadLocalRandom.current().nextInt(keyCount)];
+  }
+
+  private static Object increment(Object a, Object b) {
+    return (Long) a + (Long) b;
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object tmMerge1() {
+    return tm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object tmMerge2() {
+    return tm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object tmMerge4() {
+    return tm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object tmMerge8() {
+    return tm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object tmMerge16() {
+    return tm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object chmMerge1() {
+    return chm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object chmMerge2() {
+    return chm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object chmMerge4() {
+    return chm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object chmMerge8() {
+    return chm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object chmMerge16() {
+    return chm.merge(key(), 1L, AtomicUpdateBenchmark::increment);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object tmComputeIfAbsent1() {
+    return tm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object tmComputeIfAbsent2() {
+    return tm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object tmComputeIfAbsent4() {
+    return tm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object tmComputeIfAbsent8() {
+    return tm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object tmComputeIfAbsent16() {
+    return tm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object chmComputeIfAbsent1() {
+    return chm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object chmComputeIfAbsent2() {
+    return chm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object chmComputeIfAbsent4() {
+    return chm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object chmComputeIfAbsent8() {
+    return chm.computeIfAbsent(key(), k -> k);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object chmComputeIfAbsent16() {
+    return chm.computeIfAbsent(key(), k -> k);
+  }
+}
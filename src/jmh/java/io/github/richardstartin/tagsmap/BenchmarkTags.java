@@ -0,0 +1,6 @@
+package io.github.richardstartin.tagsmap;
+
+@TagKeys({"http.method", "http.status_code", "http.url", "db.type",
+        "db.instance", "peer.service", "component", "span.kind"})
+public interface BenchmarkTags {
+}
@@ -0,0 +1,124 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Each thread puts to its own key, so any contention between writers
+ * comes from the layout: the shared mask and adjacent slots of TagsMap,
+ * against the padded mask-free slots of ContendedTagsMap. The footprint
+ * of both is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+public class ContendedPutBenchmark {
+
+  @Param("64")
+  int keyCount;
+
+  TagsMap<Object> tm;
+  ContendedTagsMap<Object> ctm;
+  String[] keys;
+  final AtomicInteger threadIds = new AtomicInteger();
+
+  @State(Scope.Thread)
+  public static class ThreadKey {
+    String key;
+
+    @Setup(Level.Trial)
+    public void setup(ContendedPutBenchmark benchmark) {
+      key = benchmark.keys[benchmark.threadIds.getAndIncrement() % benchmark.keyCount];
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    StringTable stringTable = StringTables.create(keys);
+    tm = TagsMap.create(stringTable);
+    ctm = ContendedTagsMap.create(stringTable);
+  }
+
+  @TearDown(Level.Trial)
+  public void footprint() {
+    System.out.printf("%nkeys=%d TagsMap=%d bytes ContendedTagsMap=%d bytes%n", keyCount,
+            GraphLayout.parseInstance(tm).totalSize() - GraphLayout.parseInstance((Object[]) keys).totalSize(),
+            GraphLayout.parseInstance(ctm).totalSize() - GraphLayout.parseInstance((Object[]) keys).totalSize());
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object tm1(ThreadKey threadKey) {
+    return tm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object tm2(ThreadKey threadKey) {
+    return tm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object tm4(ThreadKey threadKey) {
+    return tm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object tm8(ThreadKey threadKey) {
+    return tm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object tm16(ThreadKey threadKey) {
+    return tm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(32)
+  @Benchmark
+  public Object tm32(ThreadKey threadKey) {
+    return tm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object ctm1(ThreadKey threadKey) {
+    return ctm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object ctm2(ThreadKey threadKey) {
+    return ctm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object ctm4(ThreadKey threadKey) {
+    return ctm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object ctm8(ThreadKey threadKey) {
+    return ctm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object ctm16(ThreadKey threadKey) {
+    return ctm.put(threadKey.key, threadKey);
+  }
+
+  @Threads(32)
+  @Benchmark
+  public Object ctm32(ThreadKey threadKey) {
+    return ctm.put(threadKey.key, threadKey);
+  }
+}
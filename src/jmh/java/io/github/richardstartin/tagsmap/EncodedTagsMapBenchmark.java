@@ -0,0 +1,127 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reading, writing and comparing maps of low cardinality values, stored as
+ * references in a TagsMap or as dictionary codes in an EncodedTagsMap. The
+ * footprint of a population of live maps of each kind, excluding the shared
+ * values and dictionary, is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+public class EncodedTagsMapBenchmark {
+
+  private static final String[] KEYS = {
+          "http.method", "http.status_code", "db.type", "region",
+          "peer.service", "component", "span.kind", "env"
+  };
+
+  @Param({"8", "1024"})
+  int cardinality;
+
+  @Param("10000")
+  int liveMaps;
+
+  StringTable stringTable;
+  ValueDictionary dictionary;
+  String[][] distinct;
+  TagsMap<String> tm;
+  TagsMap<String> tmCopy;
+  EncodedTagsMap<String> etm;
+  EncodedTagsMap<String> etmCopy;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    stringTable = StringTables.create(KEYS);
+    dictionary = ValueDictionary.create(stringTable, cardinality);
+    distinct = new String[KEYS.length][cardinality];
+    for (int k = 0; k < KEYS.length; ++k) {
+      for (int v = 0; v < cardinality; ++v) {
+        distinct[k][v] = Strings.create(12);
+      }
+    }
+    tm = fill(TagsMap.create(stringTable));
+    tmCopy = TagsMap.create(stringTable);
+    etm = EncodedTagsMap.create(dictionary);
+    etmCopy = EncodedTagsMap.create(dictionary);
+    for (String key : KEYS) {
+      String value = tm.get(key);
+      // distinct but equal instances, as if decoded separately
+      tmCopy.put(key, new String(value));
+      etm.put(key, value);
+      etmCopy.put(key, new String(value));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void footprint() {
+    TagsMap<?>[] plain = new TagsMap<?>[liveMaps];
+    EncodedTagsMap<?>[] encoded = new EncodedTagsMap<?>[liveMaps];
+    for (int i = 0; i < liveMaps; ++i) {
+      TagsMap<String> map = fill(TagsMap.create(stringTable));
+      EncodedTagsMap<String> encodedMap = EncodedTagsMap.create(dictionary);
+      for (String key : KEYS) {
+        encodedMap.put(key, map.get(key));
+      }
+      plain[i] = map;
+      encoded[i] = encodedMap;
+    }
+    GraphLayout shared = GraphLayout.parseInstance(stringTable, distinct);
+    long plainBytes = GraphLayout.parseInstance((Object[]) plain).subtract(shared).totalSize();
+    long encodedBytes = GraphLayout.parseInstance((Object[]) encoded)
+            .subtract(GraphLayout.parseInstance(dictionary)).subtract(shared).totalSize();
+    System.out.printf("%ncardinality=%d maps=%d TagsMap=%d bytes EncodedTagsMap=%d bytes%n",
+            cardinality, liveMaps, plainBytes, encodedBytes);
+  }
+
+  @Benchmark
+  public String getTagsMap() {
+    return tm.get("region");
+  }
+
+  @Benchmark
+  public String getEncoded() {
+    return etm.get("region");
+  }
+
+  @Benchmark
+  public int valueCodeEncoded() {
+    return etm.valueCode("region");
+  }
+
+  @Benchmark
+  public Object putTagsMap() {
+    return tm.put("region", distinct[3][ThreadLocalRandom.current().nextInt(cardinality)]);
+  }
+
+  @Benchmark
+  public Object putEncoded() {
+    return etm.put("region", distinct[3][ThreadLocalRandom.current().nextInt(cardinality)]);
+  }
+
+  @Benchmark
+  public boolean equalsTagsMap() {
+    for (String key : KEYS) {
+      String value = tm.get(key);
+      if (null == value ? null != tmCopy.get(key) : !value.equals(tmCopy.get(key))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Benchmark
+  public boolean equalsEncoded() {
+    return etm.sameCodes(etmCopy);
+  }
+
+  private TagsMap<String> fill(TagsMap<String> map) {
+    for (int k = 0; k < KEYS.length; ++k) {
+      map.put(KEYS[k], distinct[k][ThreadLocalRandom.current().nextInt(cardinality)]);
+    }
+    return map;
+  }
+}
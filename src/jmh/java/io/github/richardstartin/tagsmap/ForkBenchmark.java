@@ -0,0 +1,59 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Creating a child map with a copy of its parent's entries followed by
+ * a few writes, by forking against copying entry by entry.
+ */
+@State(Scope.Benchmark)
+public class ForkBenchmark {
+
+  @Param({"8", "32", "64"})
+  int keyCount;
+
+  @Param({"0", "1", "8"})
+  int writes;
+
+  StringTable stringTable;
+  TagsMap<Object> parent;
+  String[] keys;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    stringTable = StringTables.create(keys);
+    parent = TagsMap.create(stringTable);
+    for (int i = 0; i < keyCount; i += 2) {
+      parent.put(keys[i], i);
+    }
+  }
+
+  @Benchmark
+  public void fork(Blackhole bh) {
+    TagsMap<Object> child = parent.fork();
+    for (int i = 0; i < writes; ++i) {
+      child.put(keys[i], i);
+    }
+    bh.consume(child.get(keys[0]));
+  }
+
+  @Benchmark
+  public void copy(Blackhole bh) {
+    TagsMap<Object> child = TagsMap.create(stringTable);
+    for (String key : keys) {
+      Object value = parent.get(key);
+      if (null != value) {
+        child.put(key, value);
+      }
+    }
+    for (int i = 0; i < writes; ++i) {
+      child.put(keys[i], i);
+    }
+    bh.consume(child.get(keys[0]));
+  }
+}
@@ -2,16 +2,13 @@ package io.github.richardstartin.tagsmap;
 
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
-import org.openjdk.jol.info.ClassLayout;
 
-import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ThreadLocalRandom;
 
 @State(Scope.Benchmark)
 public class GetTagBenchmark {
 
+  // see WideGetTagBenchmark for more than 64 keys
   @Param({"4", "8", "16", "32", "64"})
   int keyCount;
 
@@ -20,31 +17,54 @@ public class GetTagBenchmark {
 
   ConcurrentHashMap<String, Object> chm;
   TagsMap<Object> tm;
+  TagsMap<Object> htm;
+  // fixed keys, independent of keyCount
+  TagsMap<Object> constantTm;
+  BenchmarkTagsTagsMap<Object> gtm;
 
   String[] keys;
+  StringBuilder[] builders;
   int[] codes;
+  TagKey<Object>[] tagKeys;
 
   @Setup(Level.Trial)
+  @SuppressWarnings({"unchecked", "rawtypes"})
   public void setup() {
     keys = new String[keyCount];
     codes = new int[keyCount];
+    tagKeys = new TagKey[keyCount];
     for (int i = 0; i < keyCount; ++i) {
       keys[i] = Strings.create(10);
     }
     chm = new ConcurrentHashMap<>(keyCount);
     StringTable stringTable = StringTables.create(keys);
     tm = TagsMap.create(stringTable);
+    htm = TagsMap.createHybrid(stringTable);
     for (int i = 0; i < keyCount; ++i) {
       chm.put(keys[i], i);
       tm.put(keys[i], i);
+      htm.put(keys[i], i);
       codes[i] = stringTable.code(keys[i]);
+      tagKeys[i] = stringTable.key(keys[i], Object.class);
     }
     if (!present) {
       for (int i = 0; i < keyCount; ++i) {
         keys[i] += 'A';
       }
     }
+    gtm = BenchmarkTagsTagsMap.create();
+    // keySet() only has the present keys, so would be empty here
+    constantTm = TagsMap.create(StringTables.create(gtm.registeredKeys().toArray(new String[0])));
+    for (String key : gtm.registeredKeys()) {
+      constantTm.put(key, key);
+      gtm.put(key, key);
+    }
+    builders = new StringBuilder[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      builders[i] = new StringBuilder(keys[i]);
+    }
     tm.makeImmutable();
+    htm.makeImmutable();
   }
 
   @Threads(1)
@@ -119,6 +139,96 @@ public class GetTagBenchmark {
     }
   }
 
+  @Threads(1)
+  @Benchmark
+  public void tm1Key(Blackhole bh) {
+    for (TagKey<Object> key : tagKeys) {
+      bh.consume(tm.getTag(key));
+    }
+  }
+
+  @Threads(2)
+  @Benchmark
+  public void tm2Key(Blackhole bh) {
+    for (TagKey<Object> key : tagKeys) {
+      bh.consume(tm.getTag(key));
+    }
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void tm4Key(Blackhole bh) {
+    for (TagKey<Object> key : tagKeys) {
+      bh.consume(tm.getTag(key));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void tm1CharSequence(Blackhole bh) {
+    for (StringBuilder key : builders) {
+      bh.consume(tm.get(key));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void tm1ToString(Blackhole bh) {
+    for (StringBuilder key : builders) {
+      bh.consume(tm.get(key.toString()));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void tm1ConstantKeys(Blackhole bh) {
+    bh.consume(constantTm.get("http.method"));
+    bh.consume(constantTm.get("http.status_code"));
+    bh.consume(constantTm.get("db.type"));
+    bh.consume(constantTm.get("peer.service"));
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void gtm1ConstantKeys(Blackhole bh) {
+    bh.consume(gtm.get("http.method"));
+    bh.consume(gtm.get("http.status_code"));
+    bh.consume(gtm.get("db.type"));
+    bh.consume(gtm.get("peer.service"));
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void gtm1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(gtm.get(key));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void htm1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(htm.get(key));
+    }
+  }
+
+  @Threads(2)
+  @Benchmark
+  public void htm2(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(htm.get(key));
+    }
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void htm4(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(htm.get(key));
+    }
+  }
+
   @Threads(1)
   @Benchmark
   public void chm1(Blackhole bh) {
@@ -0,0 +1,112 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Grouping and filtering a batch of tag sets, either by walking the maps
+ * one by one or over the columns of a {@link TagsBatch}. Every map
+ * has a value for each of its keys, and the grouped tag has a fixed number
+ * of distinct values.
+ */
+@State(Scope.Benchmark)
+public class GroupByBenchmark {
+
+  private static final String[] KEYS = {
+          "service", "resource", "http.method", "http.status_code", "db.type", "db.instance",
+          "peer.service", "peer.hostname", "component", "span.kind", "env", "version"
+  };
+
+  @Param({"1000", "10000"})
+  int rows;
+
+  @Param({"8", "256"})
+  int cardinality;
+
+  List<TagsMap<String>> maps;
+  TagsBatch<String> batch;
+  long statusBit;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    StringTable stringTable = StringTables.create(KEYS);
+    String[] services = new String[cardinality];
+    for (int i = 0; i < cardinality; ++i) {
+      services[i] = Strings.create(12);
+    }
+    maps = new ArrayList<>(rows);
+    batch = TagsBatch.create(stringTable, rows);
+    for (int i = 0; i < rows; ++i) {
+      TagsMap<String> map = TagsMap.create(stringTable);
+      for (String key : KEYS) {
+        map.put(key, Strings.create(8));
+      }
+      map.put("service", services[ThreadLocalRandom.current().nextInt(cardinality)]);
+      if (ThreadLocalRandom.current().nextBoolean()) {
+        map.remove("http.status_code");
+      }
+      maps.add(map);
+      batch.append(map);
+    }
+    statusBit = batch.maskOf("http.status_code");
+  }
+
+  @Benchmark
+  public Map<String, List<TagsMap<String>>> groupByMaps() {
+    Map<String, List<TagsMap<String>>> groups = new HashMap<>();
+    for (TagsMap<String> map : maps) {
+      String service = map.get("service");
+      if (null != service) {
+        groups.computeIfAbsent(service, s -> new ArrayList<>()).add(map);
+      }
+    }
+    return groups;
+  }
+
+  @Benchmark
+  public Map<String, int[]> groupByBatch() {
+    return batch.groupBy("service");
+  }
+
+  @Benchmark
+  public Map<String, int[]> countByMaps() {
+    Map<String, int[]> counts = new HashMap<>();
+    for (TagsMap<String> map : maps) {
+      String service = map.get("service");
+      if (null != service) {
+        counts.computeIfAbsent(service, s -> new int[1])[0]++;
+      }
+    }
+    return counts;
+  }
+
+  @Benchmark
+  public Map<String, int[]> countByBatch() {
+    Map<String, int[]> counts = new HashMap<>();
+    for (String service : batch.column("service")) {
+      if (null != service) {
+        counts.computeIfAbsent(service, s -> new int[1])[0]++;
+      }
+    }
+    return counts;
+  }
+
+  @Benchmark
+  public int filterMaps() {
+    List<TagsMap<String>> filtered = new ArrayList<>();
+    for (TagsMap<String> map : maps) {
+      if (map.containsKey("http.status_code")) {
+        filtered.add(map);
+      }
+    }
+    return filtered.size();
+  }
+
+  @Benchmark
+  public int filterBatch() {
+    long statusBit = this.statusBit;
+    return batch.filter(mask -> (mask & statusBit) != 0).size();
+  }
+}
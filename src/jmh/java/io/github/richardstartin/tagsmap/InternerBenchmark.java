@@ -0,0 +1,80 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Filling maps with freshly decoded values, with and without interning.
+ * Each value is drawn from a fixed number of distinct values per key, and
+ * the footprint of a population of live maps is printed at the end of each
+ * trial, to show the heap saved at different value cardinalities.
+ */
+@State(Scope.Benchmark)
+public class InternerBenchmark {
+
+  private static final String[] KEYS = {
+          "http.method", "http.status_code", "db.type", "db.instance",
+          "peer.service", "peer.hostname", "component", "span.kind"
+  };
+
+  @Param({"4", "64", "1024"})
+  int cardinality;
+
+  @Param("256")
+  int capacityPerKey;
+
+  @Param("10000")
+  int liveMaps;
+
+  StringTable stringTable;
+  ValueInterner interner;
+  String[][] distinct;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    stringTable = StringTables.create(KEYS);
+    interner = ValueInterner.create(stringTable, capacityPerKey);
+    distinct = new String[KEYS.length][cardinality];
+    for (int k = 0; k < KEYS.length; ++k) {
+      for (int v = 0; v < cardinality; ++v) {
+        distinct[k][v] = Strings.create(12);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void footprint() {
+    ValueInterner interner = ValueInterner.create(stringTable, capacityPerKey);
+    TagsMap<?>[] plain = new TagsMap<?>[liveMaps];
+    TagsMap<?>[] interned = new TagsMap<?>[liveMaps];
+    for (int i = 0; i < liveMaps; ++i) {
+      plain[i] = fill(TagsMap.create(stringTable));
+      interned[i] = fill(TagsMap.create(stringTable, interner));
+    }
+    long plainBytes = GraphLayout.parseInstance((Object[]) plain).totalSize();
+    long internedBytes = GraphLayout.parseInstance(interned, interner).totalSize();
+    System.out.printf("%ncardinality=%d maps=%d plain=%d bytes interned=%d bytes (including interner) saved=%.1f%%%n",
+            cardinality, liveMaps, plainBytes, internedBytes, 100D * (plainBytes - internedBytes) / plainBytes);
+  }
+
+  private TagsMap<String> fill(TagsMap<String> map) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int k = 0; k < KEYS.length; ++k) {
+      // a copy, as if decoded from the wire
+      map.put(KEYS[k], new String(distinct[k][random.nextInt(cardinality)]));
+    }
+    return map;
+  }
+
+  @Benchmark
+  public TagsMap<String> put() {
+    return fill(TagsMap.create(stringTable));
+  }
+
+  @Benchmark
+  public TagsMap<String> putInterned() {
+    return fill(TagsMap.create(stringTable, interner));
+  }
+}
@@ -0,0 +1,93 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Iterating every entry of a map, as an exporter would. Run with -prof gc
+ * to compare the allocation of each approach. The consumers are created
+ * once, so only the iteration itself is measured.
+ */
+@State(Scope.Benchmark)
+public class IterationBenchmark {
+
+  @Param("32")
+  int keyCount;
+
+  @Param({"4", "16"})
+  int present;
+
+  TagsMap<Object> tm;
+  ConcurrentHashMap<String, Object> chm;
+  BiConsumer<String, Object> consumer;
+  IntObjConsumer<Object> codeConsumer;
+
+  @Setup(Level.Trial)
+  public void setup(Blackhole bh) {
+    consumer = (key, value) -> {
+      bh.consume(key);
+      bh.consume(value);
+    };
+    codeConsumer = (code, value) -> {
+      bh.consume(code);
+      bh.consume(value);
+    };
+    String[] keys = Strings.dottedNames(keyCount);
+    tm = TagsMap.create(StringTables.create(keys));
+    chm = new ConcurrentHashMap<>();
+    for (int i = 0; i < present; ++i) {
+      String key = keys[i * keyCount / present];
+      tm.put(key, i);
+      chm.put(key, i);
+    }
+  }
+
+  @Benchmark
+  public void tmForEach() {
+    tm.forEach(consumer);
+  }
+
+  @Benchmark
+  public void tmForEachCode() {
+    tm.forEachCode(codeConsumer);
+  }
+
+  @Benchmark
+  public void tmEntrySet(Blackhole bh) {
+    for (Map.Entry<String, Object> entry : tm.entrySet()) {
+      bh.consume(entry.getKey());
+      bh.consume(entry.getValue());
+    }
+  }
+
+  @Benchmark
+  public void tmValues(Blackhole bh) {
+    for (Object value : tm.values()) {
+      bh.consume(value);
+    }
+  }
+
+  @Benchmark
+  public void chmForEach() {
+    chm.forEach(consumer);
+  }
+
+  @Benchmark
+  public void chmEntrySet(Blackhole bh) {
+    for (Map.Entry<String, Object> entry : chm.entrySet()) {
+      bh.consume(entry.getKey());
+      bh.consume(entry.getValue());
+    }
+  }
+
+  @Benchmark
+  public void chmValues(Blackhole bh) {
+    for (Object value : chm.values()) {
+      bh.consume(value);
+    }
+  }
+}
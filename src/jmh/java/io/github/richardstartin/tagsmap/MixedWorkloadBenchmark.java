@@ -0,0 +1,200 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A mix of reads and writes against one shared map, with dotted attribute
+ * names for keys. Keys are drawn from a Zipf distribution, so a few hot keys
+ * take most of the accesses (an exponent of zero is uniform), and a share of
+ * the reads are for names which aren't in the map. Writes only go to keys
+ * in the map, since TagsMap rejects unregistered keys. Each thread replays
+ * a precomputed sequence of operations, so the measurement doesn't include
+ * drawing random numbers.
+ * <p>
+ * The footprint of a full map of each kind, excluding the keys, values
+ * and string table, is printed at the end of each trial. Run the jmh jar
+ * with {@code -prof gc} for the allocation rate of each map.
+ */
+@State(Scope.Benchmark)
+public class MixedWorkloadBenchmark {
+
+  private static final int OPERATIONS = 1 << 14;
+
+  @Param({"16", "64"})
+  int keyCount;
+
+  @Param({"0", "1.1"})
+  double zipfExponent;
+
+  @Param({"50", "90", "99"})
+  int readPercent;
+
+  @Param({"0", "50"})
+  int missPercent;
+
+  String[] keys;
+  String[] misses;
+  Integer[] values;
+  double[] cumulativeWeights;
+  StringTable stringTable;
+  ConcurrentHashMap<String, Object> chm;
+  HashMap<String, Object> hm;
+  TagsMap<Object> tm;
+
+  @State(Scope.Thread)
+  public static class Operations {
+    String[] keys;
+    boolean[] writes;
+    Integer[] values;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup(MixedWorkloadBenchmark benchmark) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      keys = new String[OPERATIONS];
+      writes = new boolean[OPERATIONS];
+      values = new Integer[OPERATIONS];
+      for (int i = 0; i < OPERATIONS; ++i) {
+        int rank = benchmark.sampleRank(random.nextDouble());
+        writes[i] = random.nextInt(100) >= benchmark.readPercent;
+        keys[i] = !writes[i] && random.nextInt(100) < benchmark.missPercent
+                ? benchmark.misses[rank]
+                : benchmark.keys[rank];
+        values[i] = benchmark.values[random.nextInt(benchmark.values.length)];
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    String[] names = Strings.dottedNames(keyCount * 2);
+    List<String> shuffled = new ArrayList<>(Arrays.asList(names).subList(0, keyCount));
+    // so the hottest keys aren't always the first semantic convention names
+    Collections.shuffle(shuffled);
+    keys = shuffled.toArray(new String[0]);
+    misses = Arrays.copyOfRange(names, keyCount, keyCount * 2);
+    values = new Integer[128];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = 1000 + i;
+    }
+    cumulativeWeights = new double[keyCount];
+    double total = 0;
+    for (int rank = 0; rank < keyCount; ++rank) {
+      total += 1D / Math.pow(rank + 1, zipfExponent);
+      cumulativeWeights[rank] = total;
+    }
+    for (int rank = 0; rank < keyCount; ++rank) {
+      cumulativeWeights[rank] /= total;
+    }
+    stringTable = StringTables.create(keys);
+    chm = new ConcurrentHashMap<>();
+    hm = new HashMap<>();
+    tm = TagsMap.create(stringTable);
+    fill(chm);
+    fill(hm);
+    fill(tm);
+  }
+
+  @TearDown(Level.Trial)
+  public void footprint() {
+    Map<String, Object> chm = fill(new ConcurrentHashMap<>());
+    Map<String, Object> hm = fill(new HashMap<>());
+    Map<String, Object> tm = fill(TagsMap.create(stringTable));
+    GraphLayout shared = GraphLayout.parseInstance(keys, values, stringTable);
+    System.out.printf("%nkeys=%d ConcurrentHashMap=%d bytes HashMap=%d bytes TagsMap=%d bytes%n", keyCount,
+            GraphLayout.parseInstance(chm).subtract(shared).totalSize(),
+            GraphLayout.parseInstance(hm).subtract(shared).totalSize(),
+            GraphLayout.parseInstance(tm).subtract(shared).totalSize());
+  }
+
+  int sampleRank(double uniform) {
+    int rank = Arrays.binarySearch(cumulativeWeights, uniform);
+    return Math.min(keyCount - 1, rank >= 0 ? rank : -rank - 1);
+  }
+
+  private Map<String, Object> fill(Map<String, Object> map) {
+    for (int i = 0; i < keys.length; ++i) {
+      map.put(keys[i], values[i % values.length]);
+    }
+    return map;
+  }
+
+  private static Object operate(Map<String, Object> map, Operations operations) {
+    int i = operations.cursor++ & (OPERATIONS - 1);
+    return operations.writes[i]
+            ? map.put(operations.keys[i], operations.values[i])
+            : map.get(operations.keys[i]);
+  }
+
+  // HashMap isn't thread-safe, so it only runs single threaded as a baseline
+  @Threads(1)
+  @Benchmark
+  public Object hm1(Operations operations) {
+    return operate(hm, operations);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object chm1(Operations operations) {
+    return operate(chm, operations);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object chm2(Operations operations) {
+    return operate(chm, operations);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object chm4(Operations operations) {
+    return operate(chm, operations);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object chm8(Operations operations) {
+    return operate(chm, operations);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object chm16(Operations operations) {
+    return operate(chm, operations);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object tm1(Operations operations) {
+    return operate(tm, operations);
+  }
+
+  @Threads(2)
+  @Benchmark
+  public Object tm2(Operations operations) {
+    return operate(tm, operations);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object tm4(Operations operations) {
+    return operate(tm, operations);
+  }
+
+  @Threads(8)
+  @Benchmark
+  public Object tm8(Operations operations) {
+    return operate(tm, operations);
+  }
+
+  @Threads(16)
+  @Benchmark
+  public Object tm16(Operations operations) {
+    return operate(tm, operations);
+  }
+}
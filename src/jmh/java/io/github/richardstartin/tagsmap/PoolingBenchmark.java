@@ -0,0 +1,66 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A map per request, allocated and dropped against recycled through
+ * {@link TagsMapPool}, run with -prof gc to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+public class PoolingBenchmark {
+
+  @Param({"8", "64"})
+  int keyCount;
+
+  @Param({"3", "8"})
+  int tagsPerRequest;
+
+  StringTable stringTable;
+  String[] keys;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    stringTable = StringTables.create(keys);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void allocate1(Blackhole bh) {
+    request(TagsMap.create(stringTable), bh);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void allocate4(Blackhole bh) {
+    request(TagsMap.create(stringTable), bh);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void pooled1(Blackhole bh) {
+    TagsMap<Object> map = TagsMapPool.acquire(stringTable);
+    request(map, bh);
+    map.recycle();
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void pooled4(Blackhole bh) {
+    TagsMap<Object> map = TagsMapPool.acquire(stringTable);
+    request(map, bh);
+    map.recycle();
+  }
+
+  private void request(TagsMap<Object> map, Blackhole bh) {
+    for (int i = 0; i < tagsPerRequest; ++i) {
+      map.put(keys[i], keys);
+    }
+    bh.consume(map.get(keys[0]));
+    bh.consume(map);
+  }
+}
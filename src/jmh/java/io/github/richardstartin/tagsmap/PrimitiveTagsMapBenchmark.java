@@ -0,0 +1,119 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counter updates through the primitive maps against boxed values,
+ * run with -prof gc to check the primitive maps don't allocate.
+ */
+@State(Scope.Benchmark)
+public class PrimitiveTagsMapBenchmark {
+
+  @Param({"4", "16", "64"})
+  int keyCount;
+
+  ConcurrentHashMap<String, Long> chm;
+  TagsMap<Long> tm;
+  LongTagsMap ltm;
+  DoubleTagsMap dtm;
+  IntTagsMap itm;
+
+  String[] keys;
+  int[] codes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new String[keyCount];
+    codes = new int[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    StringTable stringTable = StringTables.create(keys);
+    chm = new ConcurrentHashMap<>(keyCount);
+    tm = TagsMap.create(stringTable);
+    ltm = LongTagsMap.create(stringTable);
+    dtm = DoubleTagsMap.create(stringTable);
+    itm = IntTagsMap.create(stringTable);
+    for (int i = 0; i < keyCount; ++i) {
+      codes[i] = stringTable.code(keys[i]);
+      chm.put(keys[i], 0L);
+      tm.put(keys[i], 0L);
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void chmMerge1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(chm.merge(key, 1L, Long::sum));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void tmBoxed1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(tm.put(key, tm.get(key) + 1));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void ltmAdd1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(ltm.addAndGet(key, 1L));
+    }
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void ltmAdd4(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(ltm.addAndGet(key, 1L));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void ltmAddRaw1(Blackhole bh) {
+    for (int code : codes) {
+      bh.consume(ltm.addAndGet(code, 1L));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void ltmGet1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(ltm.get(key));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void dtmAdd1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(dtm.addAndGet(key, 1D));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void itmAdd1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(itm.addAndGet(key, 1));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void itmCas1(Blackhole bh) {
+    for (int code : codes) {
+      int value = itm.get(code);
+      bh.consume(itm.compareAndSet(code, value, value + 1));
+    }
+  }
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.ConcurrentHashMap;
 @State(Scope.Benchmark)
 public class PutTagBenchmark {
 
+    // see WidePutTagBenchmark for more than 64 keys
     @Param({"4", "8", "16", "32", "64"})
     int keyCount;
 
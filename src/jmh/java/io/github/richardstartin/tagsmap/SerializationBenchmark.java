@@ -0,0 +1,88 @@
+package io.github.richardstartin.tagsmap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+  @Param({"4", "16", "64"})
+  int keyCount;
+
+  @Param({"0.25", "1"})
+  double fill;
+
+  ConcurrentHashMap<String, Object> chm;
+  TagsMap<Object> tm;
+  ObjectMapper objectMapper;
+  ByteBuffer buffer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    String[] keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    chm = new ConcurrentHashMap<>(keyCount);
+    tm = TagsMap.create(StringTables.create(keys));
+    for (int i = 0; i < Math.max(1, (int) (keyCount * fill)); ++i) {
+      Object value = (i & 1) == 0 ? Strings.create(12) : (Object) (long) i;
+      chm.put(keys[i], value);
+      tm.put(keys[i], value);
+    }
+    objectMapper = new ObjectMapper();
+    buffer = ByteBuffer.allocate(64 * 1024);
+  }
+
+  @Benchmark
+  public ByteBuffer tmMsgPack() {
+    buffer.clear();
+    tm.writeTo(buffer, TagsEncoder.MSGPACK);
+    return buffer;
+  }
+
+  @Benchmark
+  public ByteBuffer tmJson() {
+    buffer.clear();
+    tm.writeTo(buffer, TagsEncoder.JSON);
+    return buffer;
+  }
+
+  /**
+   * msgpack written by hand, encoding the keys with String.getBytes
+   */
+  @Benchmark
+  public ByteBuffer chmMsgPackGetBytes() {
+    buffer.clear();
+    int size = chm.size();
+    if (size < 16) {
+      buffer.put((byte) (0x80 | size));
+    } else {
+      buffer.put((byte) 0xDE).putShort((short) size);
+    }
+    for (Map.Entry<String, Object> entry : chm.entrySet()) {
+      byte[] key = entry.getKey().getBytes(UTF_8);
+      buffer.put((byte) (0xA0 | key.length)).put(key);
+      Object value = entry.getValue();
+      if (value instanceof String) {
+        byte[] bytes = ((String) value).getBytes(UTF_8);
+        buffer.put((byte) (0xA0 | bytes.length)).put(bytes);
+      } else {
+        buffer.put((byte) 0xD3).putLong((Long) value);
+      }
+    }
+    return buffer;
+  }
+
+  @Benchmark
+  public byte[] chmJackson() throws IOException {
+    return objectMapper.writeValueAsBytes(chm);
+  }
+}
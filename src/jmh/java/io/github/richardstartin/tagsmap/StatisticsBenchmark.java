@@ -0,0 +1,91 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The cost of recording statistics, comparing maps over a plain and an
+ * instrumented string table with the same keys.
+ */
+@State(Scope.Benchmark)
+public class StatisticsBenchmark {
+
+  @Param("16")
+  int keyCount;
+
+  String[] keys;
+  TagsMap<Object> tm;
+  TagsMap<Object> instrumented;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+
+    String key(String[] keys) {
+      return keys[next++ & (keys.length - 1)];
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = Strings.dottedNames(keyCount);
+    tm = TagsMap.create(StringTables.create(keys));
+    instrumented = TagsMap.create(StringTables.createInstrumented(keys));
+    for (int i = 0; i < keys.length; i += 2) {
+      tm.put(keys[i], i);
+      instrumented.put(keys[i], i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void print() {
+    System.out.printf("%n%s%n", instrumented.stringTable().statistics().snapshot());
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object tmGet1(Cursor cursor) {
+    return tm.get(cursor.key(keys));
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object instrumentedGet1(Cursor cursor) {
+    return instrumented.get(cursor.key(keys));
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object tmGet4(Cursor cursor) {
+    return tm.get(cursor.key(keys));
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object instrumentedGet4(Cursor cursor) {
+    return instrumented.get(cursor.key(keys));
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object tmPut1(Cursor cursor) {
+    return tm.put(cursor.key(keys), cursor);
+  }
+
+  @Threads(1)
+  @Benchmark
+  public Object instrumentedPut1(Cursor cursor) {
+    return instrumented.put(cursor.key(keys), cursor);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object tmPut4(Cursor cursor) {
+    return tm.put(cursor.key(keys), cursor);
+  }
+
+  @Threads(4)
+  @Benchmark
+  public Object instrumentedPut4(Cursor cursor) {
+    return instrumented.put(cursor.key(keys), cursor);
+  }
+}
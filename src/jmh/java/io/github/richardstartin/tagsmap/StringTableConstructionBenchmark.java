@@ -0,0 +1,36 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building a string table from a set of keys, as done for every schema at startup,
+ * against loading the same table from its serialized form.
+ */
+@State(Scope.Benchmark)
+public class StringTableConstructionBenchmark {
+
+  @Param({"4", "8", "16", "32", "64", "4096", "65536"})
+  int keyCount;
+
+  String[] keys;
+  byte[] serialized;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    serialized = StringTables.create(keys).toBytes();
+  }
+
+  @Benchmark
+  public StringTable construct() {
+    return StringTables.create(keys);
+  }
+
+  @Benchmark
+  public StringTable load() {
+    return StringTables.load(serialized);
+  }
+}
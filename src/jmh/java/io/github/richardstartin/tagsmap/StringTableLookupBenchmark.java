@@ -0,0 +1,82 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Verified lookup of a code in large dictionaries, against a HashMap
+ * from key to code. The footprint of both is printed at the end of
+ * each trial, excluding the keys themselves. The table is measured as
+ * soon as it is built, before anything can populate its lazy caches.
+ */
+@State(Scope.Benchmark)
+public class StringTableLookupBenchmark {
+
+  @Param({"64", "1024", "4096", "16384", "100000"})
+  int keyCount;
+
+  @Param({"true", "false"})
+  boolean present;
+
+  StringTable table;
+  HashMap<String, Integer> map;
+  String[] keys;
+  int[] order;
+  int next;
+  long keyBytes;
+  long tableBytes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Set<String> unique = new HashSet<>();
+    while (unique.size() < keyCount) {
+      unique.add(Strings.create(16));
+    }
+    String[] registered = unique.toArray(new String[0]);
+    table = StringTables.create(registered);
+    // the keys are the roots, rather than the array holding them
+    keyBytes = GraphLayout.parseInstance((Object[]) registered).totalSize();
+    tableBytes = GraphLayout.parseInstance(table).totalSize() - keyBytes;
+    map = new HashMap<>();
+    for (int i = 0; i < registered.length; ++i) {
+      map.put(registered[i], table.code(registered[i]));
+    }
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = present ? new String(registered[i]) : registered[i] + 'A';
+    }
+    order = new int[1024];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = ThreadLocalRandom.current().nextInt(keyCount);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void footprint() {
+    long mapBytes = GraphLayout.parseInstance(map).totalSize() - keyBytes;
+    System.out.printf("%nkeys=%d StringTable=%.1f bytes/key HashMap=%.1f bytes/key%n",
+            keyCount, (double) tableBytes / keyCount, (double) mapBytes / keyCount);
+  }
+
+  private String nextKey() {
+    return keys[order[next++ & (order.length - 1)]];
+  }
+
+  @Benchmark
+  public int stringTable() {
+    String key = nextKey();
+    int code = table.code(key);
+    return key.equals(table.get(code)) ? code : -1;
+  }
+
+  @Benchmark
+  public int hashMap() {
+    Integer code = map.get(nextKey());
+    return null == code ? -1 : code;
+  }
+}
@@ -1,6 +1,8 @@
 package io.github.richardstartin.tagsmap;
 
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class Strings {
@@ -12,6 +14,53 @@ public class Strings {
         }
     }
 
+    // common OpenTelemetry attribute names, used first
+    private static final String[] SEMANTIC_CONVENTIONS = {
+            "http.request.method", "http.response.status_code", "http.route", "url.full", "url.path",
+            "url.scheme", "server.address", "server.port", "client.address", "user_agent.original",
+            "network.protocol.version", "network.peer.address", "db.system", "db.namespace",
+            "db.operation.name", "db.query.text", "db.collection.name", "messaging.system",
+            "messaging.destination.name", "messaging.operation.type", "rpc.system", "rpc.service",
+            "rpc.method", "service.name", "service.version", "service.instance.id",
+            "deployment.environment.name", "host.name", "host.arch", "os.type", "process.pid",
+            "process.runtime.name", "process.runtime.version", "telemetry.sdk.name",
+            "telemetry.sdk.language", "telemetry.sdk.version", "cloud.provider", "cloud.region",
+            "cloud.availability_zone", "k8s.namespace.name", "k8s.pod.name", "k8s.deployment.name",
+            "container.id", "container.image.name", "exception.type", "exception.message",
+            "error.type", "thread.name", "code.function.name", "code.file.path", "span.kind",
+            "feature_flag.key", "peer.service", "component"
+    };
+    private static final String[] NAMESPACES = {
+            "http", "db", "messaging", "rpc", "server", "client", "cloud", "k8s", "container",
+            "process", "service", "faas", "aws", "gcp", "session", "feature_flag", "app", "jvm"
+    };
+    private static final String[] COMPONENTS = {
+            "request", "response", "operation", "destination", "peer", "host", "pod", "runtime",
+            "sdk", "consumer", "batch", "client", "connection", "gc", "memory", "thread"
+    };
+    private static final String[] ATTRIBUTES = {
+            "name", "id", "method", "status_code", "size", "version", "type", "address", "port",
+            "kind", "count", "duration", "state", "region", "pool.name", "body.size"
+    };
+
+    /**
+     * @return distinct dotted attribute names, starting with real semantic convention
+     * names and continuing with generated names of the same shape
+     */
+    public static String[] dottedNames(int count) {
+        Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < SEMANTIC_CONVENTIONS.length && names.size() < count; ++i) {
+            names.add(SEMANTIC_CONVENTIONS[i]);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (names.size() < count) {
+            names.add(NAMESPACES[random.nextInt(NAMESPACES.length)]
+                    + "." + COMPONENTS[random.nextInt(COMPONENTS.length)]
+                    + "." + ATTRIBUTES[random.nextInt(ATTRIBUTES.length)]);
+        }
+        return names.toArray(new String[0]);
+    }
+
     public static String create(int size) {
         byte[] bytes = new byte[size];
         for (int i = 0; i < size; ++i) {
@@ -0,0 +1,80 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+
+/**
+ * Lookups in maps over a plain table, over an unchanged version of a
+ * {@link VersionedStringTable} and over a map which has moved to a later
+ * version, and the cost of publishing a version with one more key.
+ */
+@State(Scope.Benchmark)
+public class VersionedStringTableBenchmark {
+
+  @Param("32")
+  int keyCount;
+
+  String[] keys;
+  String added;
+  TagsMap<Object> tm;
+  TagsMap<Object> versioned;
+  TagsMap<Object> migrated;
+
+  @State(Scope.Thread)
+  public static class Cursor {
+    int next;
+
+    String key(String[] keys) {
+      return keys[next++ & (keys.length - 1)];
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    String[] names = Strings.dottedNames(keyCount + 1);
+    keys = Arrays.copyOf(names, keyCount);
+    added = names[keyCount];
+    tm = TagsMap.create(StringTables.create(keys));
+    versioned = TagsMap.create(VersionedStringTable.create(Long.SIZE, keys).current());
+    VersionedStringTable table = VersionedStringTable.create(Long.SIZE, keys);
+    migrated = TagsMap.create(table.current());
+    table.addKeys(added);
+    migrated.put(added, added);
+    for (int i = 0; i < keys.length; i += 2) {
+      tm.put(keys[i], i);
+      versioned.put(keys[i], i);
+      migrated.put(keys[i], i);
+    }
+  }
+
+  @Benchmark
+  public Object tmGet(Cursor cursor) {
+    return tm.get(cursor.key(keys));
+  }
+
+  @Benchmark
+  public Object versionedGet(Cursor cursor) {
+    return versioned.get(cursor.key(keys));
+  }
+
+  @Benchmark
+  public Object migratedGet(Cursor cursor) {
+    return migrated.get(cursor.key(keys));
+  }
+
+  @Benchmark
+  public Object tmPut(Cursor cursor) {
+    return tm.put(cursor.key(keys), cursor);
+  }
+
+  @Benchmark
+  public Object versionedPut(Cursor cursor) {
+    return versioned.put(cursor.key(keys), cursor);
+  }
+
+  @Benchmark
+  public StringTable addKeys() {
+    return VersionedStringTable.create(Long.SIZE, keys).addKeys(added);
+  }
+}
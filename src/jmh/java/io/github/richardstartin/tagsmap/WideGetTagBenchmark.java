@@ -0,0 +1,109 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+@State(Scope.Benchmark)
+public class WideGetTagBenchmark {
+
+  @Param({"64", "128", "256", "512"})
+  int keyCount;
+
+  @Param({"true", "false"})
+  boolean present;
+
+  ConcurrentHashMap<String, Object> chm;
+  WideTagsMap<Object> wtm;
+
+  String[] keys;
+  int[] codes;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    keys = new String[keyCount];
+    codes = new int[keyCount];
+    for (int i = 0; i < keyCount; ++i) {
+      keys[i] = Strings.create(10);
+    }
+    chm = new ConcurrentHashMap<>(keyCount);
+    StringTable stringTable = StringTables.create(keys);
+    wtm = WideTagsMap.create(stringTable);
+    for (int i = 0; i < keyCount; ++i) {
+      chm.put(keys[i], i);
+      wtm.put(keys[i], i);
+      codes[i] = stringTable.code(keys[i]);
+    }
+    if (!present) {
+      for (int i = 0; i < keyCount; ++i) {
+        keys[i] += 'A';
+      }
+    }
+    wtm.makeImmutable();
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void wtm1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(wtm.get(key));
+    }
+  }
+
+  @Threads(2)
+  @Benchmark
+  public void wtm2(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(wtm.get(key));
+    }
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void wtm4(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(wtm.get(key));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void wtm1Exc(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(wtm.getExclusive(key));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void wtm1Raw(Blackhole bh) {
+    for (int code : codes) {
+      bh.consume(wtm.getRaw(code));
+    }
+  }
+
+  @Threads(1)
+  @Benchmark
+  public void chm1(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(chm.get(key));
+    }
+  }
+
+  @Threads(2)
+  @Benchmark
+  public void chm2(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(chm.get(key));
+    }
+  }
+
+  @Threads(4)
+  @Benchmark
+  public void chm4(Blackhole bh) {
+    for (String key : keys) {
+      bh.consume(chm.get(key));
+    }
+  }
+}
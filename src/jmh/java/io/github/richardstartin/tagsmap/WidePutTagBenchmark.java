@@ -0,0 +1,77 @@
+package io.github.richardstartin.tagsmap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+@State(Scope.Benchmark)
+public class WidePutTagBenchmark {
+
+    @Param({"64", "128", "256", "512"})
+    int keyCount;
+
+    ConcurrentHashMap<String, Object> chm;
+    WideTagsMap<Object> wtm;
+
+    String[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; ++i) {
+            keys[i] = Strings.create(10);
+        }
+        chm = new ConcurrentHashMap<>(keyCount);
+        wtm = WideTagsMap.create(StringTables.create(keys));
+    }
+
+
+    @Threads(1)
+    @Benchmark
+    public void wtm1(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(wtm.put(key, 1));
+        }
+    }
+
+    @Threads(2)
+    @Benchmark
+    public void wtm2(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(wtm.put(key, 1));
+        }
+    }
+
+    @Threads(4)
+    @Benchmark
+    public void wtm4(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(wtm.put(key, 1));
+        }
+    }
+
+    @Threads(1)
+    @Benchmark
+    public void chm1(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(chm.put(key, 1));
+        }
+    }
+
+    @Threads(2)
+    @Benchmark
+    public void chm2(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(chm.put(key, 1));
+        }
+    }
+
+    @Threads(4)
+    @Benchmark
+    public void chm4(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(chm.put(key, 1));
+        }
+    }
+}
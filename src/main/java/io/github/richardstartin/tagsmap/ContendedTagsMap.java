@@ -0,0 +1,451 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_BASE_OFFSET;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_ELEMENT_SHIFT;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * A layout of {@link TagsMap} for maps written concurrently by many threads.
+ * There is no presence mask, a key is present when its slot is non-null, so
+ * writes are a single store or CAS on the slot. Each slot has its own
+ * {@link #PADDING_BYTES} region of the values array, so writers to different
+ * keys never share a cache line, nor adjacent lines fetched in pairs. This
+ * costs about {@link #PADDING_BYTES} bytes per key, and size() and iteration
+ * scan every slot.
+ * @param <T>
+ */
+public class ContendedTagsMap<T> implements ConcurrentMap<String, T> {
+
+  static final int PADDING_BYTES = 128;
+  static final int STRIDE_SHIFT = Integer.numberOfTrailingZeros(PADDING_BYTES >>> ARRAY_ELEMENT_SHIFT);
+
+  public static <T> ContendedTagsMap<T> create(StringTable table) {
+    return new ContendedTagsMap<>(table);
+  }
+
+  private final StringTable stringTable;
+  private final Object[] values;
+
+  private ContendedTagsMap(StringTable stringTable) {
+    this.stringTable = stringTable;
+    // slot i is at (i + 1) << STRIDE_SHIFT, with a padding region before
+    // the first and after the last slot to keep them off neighbouring objects
+    this.values = new Object[(stringTable.size() + 2) << STRIDE_SHIFT];
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < stringTable.size(); ++i) {
+      if (null != readValueAtIndex(i)) {
+        ++size;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (int i = 0; i < stringTable.size(); ++i) {
+      if (null != readValueAtIndex(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int index = indexOf(key);
+    return index >= 0 && null != readValueAtIndex(index);
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    if (null != value) {
+      for (int i = 0; i < stringTable.size(); ++i) {
+        if (value.equals(readValueAtIndex(i))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public T get(Object key) {
+    int index = indexOf(key);
+    return index >= 0 ? readValueAtIndex(index) : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T getRaw(int code) {
+    return (T) values[slot(code)];
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T put(String key, T value) {
+    int index = indexFor(key);
+    if (index < 0) {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+    return (T) UNSAFE.getAndSetObject(values, arrayIndex(index), value);
+  }
+
+  @Override
+  public T putIfAbsent(String key, T value) {
+    int index = indexFor(key);
+    if (index < 0) {
+      return null;
+    }
+    long arrayIndex = arrayIndex(index);
+    if (UNSAFE.compareAndSwapObject(values, arrayIndex, null, value)) {
+      return null;
+    }
+    return readValueAtIndex(arrayIndex);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T remove(Object key) {
+    int index = indexOf(key);
+    return index >= 0 ? (T) UNSAFE.getAndSetObject(values, arrayIndex(index), null) : null;
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends T> m) {
+    for (Entry<? extends String, ? extends T> entry : m.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < stringTable.size(); ++i) {
+      UNSAFE.putOrderedObject(values, arrayIndex(i), null);
+    }
+  }
+
+  /**
+   * @return a live view of the present keys
+   */
+  @Override
+  public Set<String> keySet() {
+    return new KeySet();
+  }
+
+  /**
+   * @return a live view of the present values
+   */
+  @Override
+  public Collection<T> values() {
+    return new Values();
+  }
+
+  /**
+   * @return a live view of the present entries. Its iterators reuse a single
+   * entry, which is only valid until the next call to next(), so entries
+   * which need to be kept must be copied, as toArray() does.
+   */
+  @Override
+  public Set<Entry<String, T>> entrySet() {
+    return new EntrySet();
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    int index = indexOf(key);
+    if (index < 0 || null == value) {
+      return false;
+    }
+    long arrayIndex = arrayIndex(index);
+    while (true) {
+      T existing = readValueAtIndex(arrayIndex);
+      if (null == existing || !existing.equals(value)) {
+        return false;
+      }
+      if (UNSAFE.compareAndSwapObject(values, arrayIndex, existing, null)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean replace(String key, T oldValue, T newValue) {
+    Objects.requireNonNull(oldValue);
+    Objects.requireNonNull(newValue);
+    int index = indexFor(key);
+    if (index < 0) {
+      return false;
+    }
+    long arrayIndex = arrayIndex(index);
+    while (true) {
+      T existing = readValueAtIndex(arrayIndex);
+      if (null == existing || !existing.equals(oldValue)) {
+        return false;
+      }
+      if (UNSAFE.compareAndSwapObject(values, arrayIndex, existing, newValue)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public T replace(String key, T value) {
+    Objects.requireNonNull(value);
+    int index = indexFor(key);
+    if (index < 0) {
+      return null;
+    }
+    long arrayIndex = arrayIndex(index);
+    while (true) {
+      T existing = readValueAtIndex(arrayIndex);
+      if (null == existing || UNSAFE.compareAndSwapObject(values, arrayIndex, existing, value)) {
+        return existing;
+      }
+    }
+  }
+
+  /**
+   * @return the code of the key, or -1 if the key isn't registered
+   */
+  public int indexFor(String key) {
+    int index = stringTable.code(key);
+    return index >= 0 && stringTable.get(index).equals(key) ? index : -1;
+  }
+
+  private int indexOf(Object key) {
+    return key instanceof String ? indexFor((String) key) : -1;
+  }
+
+  private T readValueAtIndex(int index) {
+    return readValueAtIndex(arrayIndex(index));
+  }
+
+  @SuppressWarnings("unchecked")
+  private T readValueAtIndex(long arrayIndex) {
+    return (T) UNSAFE.getObjectVolatile(values, arrayIndex);
+  }
+
+  private static int slot(int index) {
+    return (index + 1) << STRIDE_SHIFT;
+  }
+
+  private static long arrayIndex(int index) {
+    return ARRAY_BASE_OFFSET + ((long) slot(index) << ARRAY_ELEMENT_SHIFT);
+  }
+
+  /**
+   * Iterates over the slots, reading each value as it goes.
+   */
+  private abstract class PresentIterator<E> implements Iterator<E> {
+    private int index;
+    private int nextIndex = -1;
+    private T nextValue;
+    private int lastIndex = -1;
+
+    @Override
+    public boolean hasNext() {
+      if (nextIndex >= 0) {
+        return true;
+      }
+      while (index < stringTable.size()) {
+        T value = readValueAtIndex(index);
+        if (null != value) {
+          nextIndex = index++;
+          nextValue = value;
+          return true;
+        }
+        ++index;
+      }
+      return false;
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastIndex = nextIndex;
+      nextIndex = -1;
+      return element(stringTable.get(lastIndex), nextValue);
+    }
+
+    @Override
+    public void remove() {
+      if (lastIndex < 0) {
+        throw new IllegalStateException();
+      }
+      ContendedTagsMap.this.remove(stringTable.get(lastIndex));
+      lastIndex = -1;
+    }
+
+    abstract E element(String key, T value);
+  }
+
+  private final class KeySet extends AbstractSet<String> {
+
+    @Override
+    public Iterator<String> iterator() {
+      return new PresentIterator<String>() {
+        @Override
+        String element(String key, T value) {
+          return key;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return ContendedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return null != ContendedTagsMap.this.remove(o);
+    }
+
+    @Override
+    public void clear() {
+      ContendedTagsMap.this.clear();
+    }
+  }
+
+  private final class Values extends AbstractCollection<T> {
+
+    @Override
+    public Iterator<T> iterator() {
+      return new PresentIterator<T>() {
+        @Override
+        T element(String key, T value) {
+          return value;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return ContendedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      ContendedTagsMap.this.clear();
+    }
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<String, T>> {
+
+    @Override
+    public Iterator<Entry<String, T>> iterator() {
+      FlyweightEntry entry = new FlyweightEntry();
+      return new PresentIterator<Entry<String, T>>() {
+        @Override
+        Entry<String, T> element(String key, T value) {
+          entry.key = key;
+          entry.value = value;
+          return entry;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return ContendedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      Object value = get(entry.getKey());
+      return null != value && value.equals(entry.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return ContendedTagsMap.this.remove(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void clear() {
+      ContendedTagsMap.this.clear();
+    }
+
+    @Override
+    public Object[] toArray() {
+      return copyEntries().toArray();
+    }
+
+    @Override
+    public <A> A[] toArray(A[] a) {
+      return copyEntries().toArray(a);
+    }
+
+    private List<Entry<String, T>> copyEntries() {
+      List<Entry<String, T>> entries = new ArrayList<>(size());
+      ContendedTagsMap.this.forEach((key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+      return entries;
+    }
+  }
+
+  private final class FlyweightEntry implements Entry<String, T> {
+    private String key;
+    private T value;
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public T getValue() {
+      return value;
+    }
+
+    @Override
+    public T setValue(T value) {
+      this.value = value;
+      return put(key, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return key.equals(entry.getKey()) && value.equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.Arrays;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+
+/**
+ * A dense concurrent map from up to 64 predefined keys to unboxed doubles.
+ * Absent keys read as zero, and {@link #compareAndSet(int, double, double)}
+ * compares the raw bits of the values, like {@link Double#equals(Object)}.
+ */
+public class DoubleTagsMap extends PrimitiveTagsMap {
+
+  static final int ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(double[].class);
+  static final int ARRAY_ELEMENT_SHIFT = Integer.numberOfTrailingZeros(UNSAFE.arrayIndexScale(double[].class));
+
+  public static DoubleTagsMap create(StringTable table) {
+    return new DoubleTagsMap(table);
+  }
+
+  private final double[] values;
+
+  private DoubleTagsMap(StringTable stringTable) {
+    super(stringTable);
+    this.values = new double[stringTable.size()];
+  }
+
+  public double get(String key) {
+    return getOrDefault(key, 0D);
+  }
+
+  public double getOrDefault(String key, double defaultValue) {
+    int index = indexFor(key);
+    return index >= 0 && containsKey(index) ? get(index) : defaultValue;
+  }
+
+  public double get(int code) {
+    return UNSAFE.getDoubleVolatile(values, arrayIndex(code));
+  }
+
+  public double put(String key, double value) {
+    return put(codeFor(key), value);
+  }
+
+  public double put(int code, double value) {
+    double old = longBitsToDouble(UNSAFE.getAndSetLong(values, arrayIndex(code), doubleToRawLongBits(value)));
+    casOr(1L << code);
+    return old;
+  }
+
+  public double addAndGet(String key, double delta) {
+    return addAndGet(codeFor(key), delta);
+  }
+
+  public double addAndGet(int code, double delta) {
+    long arrayIndex = arrayIndex(code);
+    long oldBits;
+    double newValue;
+    do {
+      oldBits = UNSAFE.getLongVolatile(values, arrayIndex);
+      newValue = longBitsToDouble(oldBits) + delta;
+    } while (!UNSAFE.compareAndSwapLong(values, arrayIndex, oldBits, doubleToRawLongBits(newValue)));
+    casOr(1L << code);
+    return newValue;
+  }
+
+  public boolean compareAndSet(String key, double expect, double update) {
+    return compareAndSet(codeFor(key), expect, update);
+  }
+
+  public boolean compareAndSet(int code, double expect, double update) {
+    if (UNSAFE.compareAndSwapLong(values, arrayIndex(code),
+            doubleToRawLongBits(expect), doubleToRawLongBits(update))) {
+      casOr(1L << code);
+      return true;
+    }
+    return false;
+  }
+
+  public double remove(String key) {
+    int index = indexFor(key);
+    return index >= 0 ? remove(index) : 0D;
+  }
+
+  public double remove(int code) {
+    long arrayIndex = arrayIndex(code);
+    casAnd(~(1L << code));
+    return longBitsToDouble(UNSAFE.getAndSetLong(values, arrayIndex, 0L));
+  }
+
+  public void clear() {
+    clearMask();
+    Arrays.fill(values, 0D);
+  }
+
+  private long arrayIndex(int code) {
+    if (code < 0 || code >= values.length) {
+      throw new IllegalStateException("invalid code: " + code);
+    }
+    return ARRAY_BASE_OFFSET + ((long) code << ARRAY_ELEMENT_SHIFT);
+  }
+}
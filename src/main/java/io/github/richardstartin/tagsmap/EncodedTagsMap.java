@@ -0,0 +1,589 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * A map over a {@link StringTable} which stores the {@link ValueDictionary}
+ * code of each value rather than a reference, packed into longs at 8, 16 or
+ * 32 bits per key depending on the dictionary's cardinality. A code of zero
+ * means the key is absent, so there is no separate mask, and each write is
+ * a CAS on the word holding the key's code. Values are only decoded by
+ * {@link #get(Object)}; maps sharing a dictionary can be compared with
+ * {@link #sameCodes(EncodedTagsMap)}, and grouped by {@link #valueCode(int)},
+ * without decoding.
+ * @param <T>
+ */
+public class EncodedTagsMap<T> implements ConcurrentMap<String, T> {
+
+  public static <T> EncodedTagsMap<T> create(ValueDictionary dictionary) {
+    return new EncodedTagsMap<>(dictionary);
+  }
+
+  // everything else is derived from the dictionary, to keep the maps small
+  private final ValueDictionary dictionary;
+  private final long[] words;
+
+  private EncodedTagsMap(ValueDictionary dictionary) {
+    this.dictionary = dictionary;
+    int codesPerWordShift = 6 - dictionary.codeBitsShift();
+    this.words = new long[(dictionary.stringTable().size() + (1 << codesPerWordShift) - 1) >>> codesPerWordShift];
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (int code = 0; code < dictionary.stringTable().size(); ++code) {
+      if (0 != readValueCode(code)) {
+        ++size;
+      }
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (int i = 0; i < words.length; ++i) {
+      if (0L != UNSAFE.getLongVolatile(words, wordIndex(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int code = indexFor((String) key);
+    return code >= 0 && 0 != readValueCode(code);
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    for (int code = 0; code < dictionary.stringTable().size(); ++code) {
+      int valueCode = readValueCode(code);
+      if (0 != valueCode && valueCode == dictionary.codeOf(code, value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public T get(Object key) {
+    int code = indexFor((String) key);
+    return code >= 0 ? dictionary.decode(code, readValueCode(code)) : null;
+  }
+
+  /**
+   * @return the dictionary code of the key's value, or zero if the key is absent or unregistered
+   */
+  public int valueCode(String key) {
+    int code = indexFor(key);
+    return code >= 0 ? readValueCode(code) : 0;
+  }
+
+  /**
+   * @return the dictionary code of the value of the key with the code, or zero if the key is absent
+   * @throws IllegalStateException if the code isn't in the map's string table
+   */
+  public int valueCode(int code) {
+    if (code < 0 || code >= dictionary.stringTable().size()) {
+      throw new IllegalStateException("invalid code: " + code);
+    }
+    return readValueCode(code);
+  }
+
+  @Override
+  public T put(String key, T value) {
+    int code = codeFor(key);
+    return dictionary.decode(code, getAndSetValueCode(code, dictionary.encode(code, value)));
+  }
+
+  /**
+   * Codes are never reclaimed, so the value is only encoded once the key is
+   * seen to be absent, and only loses its code to a racing writer.
+   */
+  @Override
+  public T putIfAbsent(String key, T value) {
+    int code = codeFor(key);
+    int valueCode = dictionary.codeOf(code, value);
+    while (true) {
+      int current = readValueCode(code);
+      if (0 != current) {
+        return dictionary.decode(code, current);
+      }
+      if (0 == valueCode) {
+        valueCode = dictionary.encode(code, value);
+      }
+      if (compareAndSetValueCode(code, 0, valueCode)) {
+        return null;
+      }
+    }
+  }
+
+  @Override
+  public T remove(Object key) {
+    int code = indexFor((String) key);
+    return code >= 0 ? dictionary.decode(code, getAndSetValueCode(code, 0)) : null;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    int code = indexFor((String) key);
+    if (code < 0) {
+      return false;
+    }
+    int valueCode = dictionary.codeOf(code, value);
+    return 0 != valueCode && compareAndSetValueCode(code, valueCode, 0);
+  }
+
+  @Override
+  public boolean replace(String key, T oldValue, T newValue) {
+    int code = codeFor(key);
+    int oldCode = dictionary.codeOf(code, oldValue);
+    if (0 == oldCode || readValueCode(code) != oldCode) {
+      return false;
+    }
+    return compareAndSetValueCode(code, oldCode, dictionary.encode(code, newValue));
+  }
+
+  /**
+   * Like {@link #putIfAbsent(String, Object)}, only encodes the value once the key is seen to be present.
+   */
+  @Override
+  public T replace(String key, T value) {
+    int code = codeFor(key);
+    int valueCode = dictionary.codeOf(code, value);
+    while (true) {
+      int current = readValueCode(code);
+      if (0 == current) {
+        return null;
+      }
+      if (0 == valueCode) {
+        valueCode = dictionary.encode(code, value);
+      }
+      if (compareAndSetValueCode(code, current, valueCode)) {
+        return dictionary.decode(code, current);
+      }
+    }
+  }
+
+  /**
+   * When the source is an EncodedTagsMap over the same dictionary, the codes
+   * are copied without decoding or encoding any values.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void putAll(Map<? extends String, ? extends T> m) {
+    if (m instanceof EncodedTagsMap) {
+      EncodedTagsMap<? extends T> source = (EncodedTagsMap<? extends T>) m;
+      if (source.dictionary == dictionary) {
+        for (int code = 0; code < dictionary.stringTable().size(); ++code) {
+          int valueCode = source.readValueCode(code);
+          if (0 != valueCode) {
+            getAndSetValueCode(code, valueCode);
+          }
+        }
+      } else {
+        source.forEach(this::put);
+      }
+      return;
+    }
+    for (Entry<? extends String, ? extends T> entry : m.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < words.length; ++i) {
+      UNSAFE.putLongVolatile(words, wordIndex(i), 0L);
+    }
+  }
+
+  /**
+   * @return a live view of the present keys
+   */
+  @Override
+  public Set<String> keySet() {
+    return new KeySet();
+  }
+
+  /**
+   * @return a live view of the present values, which are decoded as they are iterated
+   */
+  @Override
+  public Collection<T> values() {
+    return new Values();
+  }
+
+  /**
+   * @return a live view of the present entries. Its iterators reuse a single
+   * entry, which is only valid until the next call to next(), so entries
+   * which need to be kept must be copied, as toArray() does.
+   */
+  @Override
+  public Set<Entry<String, T>> entrySet() {
+    return new EntrySet();
+  }
+
+  /**
+   * Calls the action with each present entry, decoding the values, without allocating.
+   */
+  @Override
+  public void forEach(BiConsumer<? super String, ? super T> action) {
+    StringTable stringTable = dictionary.stringTable();
+    for (int code = 0; code < stringTable.size(); ++code) {
+      int valueCode = readValueCode(code);
+      if (0 != valueCode) {
+        action.accept(stringTable.get(code), dictionary.decode(code, valueCode));
+      }
+    }
+  }
+
+  /**
+   * Maps over the same dictionary have equal values exactly when they have
+   * the same codes, so this compares a few longs without decoding anything.
+   * Maps over different dictionaries never have the same codes.
+   */
+  public boolean sameCodes(EncodedTagsMap<?> other) {
+    if (other.dictionary != dictionary) {
+      return false;
+    }
+    for (int i = 0; i < words.length; ++i) {
+      long offset = wordIndex(i);
+      if (UNSAFE.getLongVolatile(words, offset) != UNSAFE.getLongVolatile(other.words, offset)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Equal to any map with the same entries, as specified by {@link Map#equals(Object)},
+   * using {@link #sameCodes(EncodedTagsMap)} for maps over the same dictionary.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o instanceof EncodedTagsMap && ((EncodedTagsMap<?>) o).dictionary == dictionary) {
+      return sameCodes((EncodedTagsMap<?>) o);
+    }
+    if (!(o instanceof Map)) {
+      return false;
+    }
+    Map<?, ?> other = (Map<?, ?>) o;
+    StringTable stringTable = dictionary.stringTable();
+    int size = 0;
+    try {
+      for (int code = 0; code < stringTable.size(); ++code) {
+        int valueCode = readValueCode(code);
+        if (0 != valueCode) {
+          ++size;
+          if (!dictionary.decode(code, valueCode).equals(other.get(stringTable.get(code)))) {
+            return false;
+          }
+        }
+      }
+    } catch (ClassCastException | NullPointerException e) {
+      // the other map doesn't accept String keys
+      return false;
+    }
+    return size == other.size();
+  }
+
+  /**
+   * The sum of the hash codes of the entries, as specified by {@link Map#hashCode()},
+   * so the values of present keys are decoded.
+   */
+  @Override
+  public int hashCode() {
+    StringTable stringTable = dictionary.stringTable();
+    int hash = 0;
+    for (int code = 0; code < stringTable.size(); ++code) {
+      int valueCode = readValueCode(code);
+      if (0 != valueCode) {
+        hash += stringTable.get(code).hashCode() ^ dictionary.decode(code, valueCode).hashCode();
+      }
+    }
+    return hash;
+  }
+
+  public int indexFor(String key) {
+    StringTable stringTable = dictionary.stringTable();
+    int code = stringTable.code(key);
+    return code >= 0 && stringTable.get(code).equals(key) ? code : -1;
+  }
+
+  private int codeFor(String key) {
+    int code = indexFor(key);
+    if (code < 0) {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+    return code;
+  }
+
+  private int readValueCode(int code) {
+    return (int) ((UNSAFE.getLongVolatile(words, wordIndex(wordOf(code))) >>> shiftOf(code)) & codeMask());
+  }
+
+  private int getAndSetValueCode(int code, int valueCode) {
+    long offset = wordIndex(wordOf(code));
+    int shift = shiftOf(code);
+    long codeMask = codeMask();
+    long word;
+    do {
+      word = UNSAFE.getLongVolatile(words, offset);
+    } while (!UNSAFE.compareAndSwapLong(words, offset, word, (word & ~(codeMask << shift)) | ((long) valueCode << shift)));
+    return (int) ((word >>> shift) & codeMask);
+  }
+
+  private boolean compareAndSetValueCode(int code, int expect, int update) {
+    long offset = wordIndex(wordOf(code));
+    int shift = shiftOf(code);
+    long codeMask = codeMask();
+    while (true) {
+      long word = UNSAFE.getLongVolatile(words, offset);
+      if (((word >>> shift) & codeMask) != expect) {
+        return false;
+      }
+      // the CAS can fail because another key in the word changed, so retry until this key's code differs
+      if (UNSAFE.compareAndSwapLong(words, offset, word, (word & ~(codeMask << shift)) | ((long) update << shift))) {
+        return true;
+      }
+    }
+  }
+
+  private long codeMask() {
+    return (1L << (1 << dictionary.codeBitsShift())) - 1;
+  }
+
+  private int wordOf(int code) {
+    return code >>> (6 - dictionary.codeBitsShift());
+  }
+
+  private int shiftOf(int code) {
+    int codeBitsShift = dictionary.codeBitsShift();
+    return (code & ((1 << (6 - codeBitsShift)) - 1)) << codeBitsShift;
+  }
+
+  private static long wordIndex(int index) {
+    return LongTagsMap.ARRAY_BASE_OFFSET + ((long) index << LongTagsMap.ARRAY_ELEMENT_SHIFT);
+  }
+
+  /**
+   * Iterates over the codes, reading each value code as it goes.
+   */
+  private abstract class PresentIterator<E> implements Iterator<E> {
+    private int code;
+    private int nextCode = -1;
+    private int nextValueCode;
+    private int lastCode = -1;
+
+    @Override
+    public boolean hasNext() {
+      if (nextCode >= 0) {
+        return true;
+      }
+      int size = dictionary.stringTable().size();
+      while (code < size) {
+        int valueCode = readValueCode(code);
+        if (0 != valueCode) {
+          nextCode = code++;
+          nextValueCode = valueCode;
+          return true;
+        }
+        ++code;
+      }
+      return false;
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastCode = nextCode;
+      nextCode = -1;
+      return element(lastCode, nextValueCode);
+    }
+
+    @Override
+    public void remove() {
+      if (lastCode < 0) {
+        throw new IllegalStateException();
+      }
+      getAndSetValueCode(lastCode, 0);
+      lastCode = -1;
+    }
+
+    abstract E element(int code, int valueCode);
+  }
+
+  private final class KeySet extends AbstractSet<String> {
+
+    @Override
+    public Iterator<String> iterator() {
+      return new PresentIterator<String>() {
+        @Override
+        String element(int code, int valueCode) {
+          return dictionary.stringTable().get(code);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return EncodedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof String && containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return o instanceof String && null != EncodedTagsMap.this.remove(o);
+    }
+
+    @Override
+    public void clear() {
+      EncodedTagsMap.this.clear();
+    }
+  }
+
+  private final class Values extends AbstractCollection<T> {
+
+    @Override
+    public Iterator<T> iterator() {
+      return new PresentIterator<T>() {
+        @Override
+        T element(int code, int valueCode) {
+          return dictionary.decode(code, valueCode);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return EncodedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      EncodedTagsMap.this.clear();
+    }
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<String, T>> {
+
+    @Override
+    public Iterator<Entry<String, T>> iterator() {
+      FlyweightEntry entry = new FlyweightEntry();
+      return new PresentIterator<Entry<String, T>>() {
+        @Override
+        Entry<String, T> element(int code, int valueCode) {
+          entry.key = dictionary.stringTable().get(code);
+          entry.value = dictionary.decode(code, valueCode);
+          return entry;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return EncodedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry) || !(((Entry<?, ?>) o).getKey() instanceof String)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      Object value = get(entry.getKey());
+      return null != value && value.equals(entry.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Entry) || !(((Entry<?, ?>) o).getKey() instanceof String)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return EncodedTagsMap.this.remove(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void clear() {
+      EncodedTagsMap.this.clear();
+    }
+
+    @Override
+    public Object[] toArray() {
+      return copyEntries().toArray();
+    }
+
+    @Override
+    public <A> A[] toArray(A[] a) {
+      return copyEntries().toArray(a);
+    }
+
+    private List<Entry<String, T>> copyEntries() {
+      List<Entry<String, T>> entries = new ArrayList<>(size());
+      EncodedTagsMap.this.forEach((key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+      return entries;
+    }
+  }
+
+  private final class FlyweightEntry implements Entry<String, T> {
+    private String key;
+    private T value;
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public T getValue() {
+      return value;
+    }
+
+    @Override
+    public T setValue(T value) {
+      this.value = value;
+      return put(key, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return key.equals(entry.getKey()) && value.equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
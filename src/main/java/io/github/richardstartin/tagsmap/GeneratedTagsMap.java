@@ -0,0 +1,707 @@
+package io.github.richardstartin.tagsmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The base class of maps generated for {@link TagKeys}. Subclasses keep the
+ * value of each key in its own field and resolve keys with a switch over
+ * their hash codes, so there's no table to load and a lookup with a constant
+ * key can be folded by the JIT compiler to a field read. Like {@link TagsMap}
+ * presence is tracked in a mask, so there can be at most 64 keys.
+ * @param <T>
+ */
+public abstract class GeneratedTagsMap<T> implements ConcurrentMap<String, T> {
+
+  private static final long MASK_OFFSET;
+
+  static {
+    try {
+      MASK_OFFSET = UNSAFE.objectFieldOffset(GeneratedTagsMap.class.getDeclaredField("mask"));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the keys of each generated class, built from the first instance to need them
+  private static final ClassValue<Keys> KEYS = new ClassValue<Keys>() {
+    @Override
+    protected Keys computeValue(Class<?> type) {
+      return new Keys();
+    }
+  };
+
+  private long mask;
+
+  protected GeneratedTagsMap() {
+  }
+
+  /**
+   * @return the index of the key, or -1 if it isn't one of the generated keys
+   */
+  public abstract int indexFor(Object key);
+
+  protected abstract String keyAt(int index);
+
+  protected abstract int keyCount();
+
+  protected abstract T readValueAtIndex(int index);
+
+  protected abstract T getAndSetValueAtIndex(int index, T value);
+
+  protected abstract boolean casValueAtIndex(int index, T expect, T update);
+
+  protected abstract GeneratedTagsMap<T> newInstance();
+
+  /**
+   * @return all the generated keys, whether present or not
+   */
+  public Set<String> registeredKeys() {
+    return keys().registered;
+  }
+
+  /**
+   * Creates a map with the same entries as this map. The values are held in
+   * fields so can't be shared like {@link TagsMap#fork()}, and are copied instead.
+   */
+  public GeneratedTagsMap<T> fork() {
+    GeneratedTagsMap<T> fork = newInstance();
+    fork.mergeAll(this, null);
+    return fork;
+  }
+
+  @Override
+  public int size() {
+    return Long.bitCount(getMaskVolatile());
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return getMaskVolatile() == 0L;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int index = indexFor(key);
+    return index >= 0 && (getMaskVolatile() & (1L << index)) != 0;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    if (null != value) {
+      for (long mask = getMaskVolatile(); mask != 0; mask &= (mask - 1)) {
+        if (value.equals(readValueAtIndex(Long.numberOfTrailingZeros(mask)))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public T get(Object key) {
+    int index = indexFor(key);
+    return index >= 0 ? readValueAtIndex(index) : null;
+  }
+
+  /**
+   * Looks up a key held in a mutable or non-String CharSequence without copying it.
+   */
+  public T get(CharSequence key) {
+    if (key instanceof String) {
+      return get((Object) key);
+    }
+    int index = keys().indexOf(key);
+    return index >= 0 ? readValueAtIndex(index) : null;
+  }
+
+  /**
+   * The values are volatile fields, so this is the same as {@link #get(Object)},
+   * and exists so generated maps can stand in for {@link TagsMap}.
+   */
+  public T getExclusive(Object key) {
+    return get(key);
+  }
+
+  public T getRaw(int code) {
+    return readValueAtIndex(code);
+  }
+
+  public void putRaw(int code, T value) {
+    getAndSetValueAtIndex(code, value);
+  }
+
+  public void putRaw(String key, T value) {
+    putRaw(indexFor(key), value);
+  }
+
+  public void removeRaw(int code) {
+    getAndSetValueAtIndex(code, null);
+  }
+
+  public void removeRaw(String key) {
+    removeRaw(indexFor(key));
+  }
+
+  @Override
+  public T put(String key, T value) {
+    int index = indexFor(key);
+    if (index < 0) {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+    T old = getAndSetValueAtIndex(index, value);
+    casOr(1L << index);
+    return old;
+  }
+
+  @Override
+  public T putIfAbsent(String key, T value) {
+    int index = indexFor(key);
+    if (index < 0) {
+      return null;
+    }
+    if (casValueAtIndex(index, null, value)) {
+      casOr(1L << index);
+      return null;
+    }
+    return readValueAtIndex(index);
+  }
+
+  @Override
+  public T remove(Object key) {
+    int index = indexFor(key);
+    if (index < 0) {
+      return null;
+    }
+    T old = getAndSetValueAtIndex(index, null);
+    clearPresence(index);
+    return old;
+  }
+
+  /**
+   * Writes all the values before publishing them with a single update of the mask.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void putAll(Map<? extends String, ? extends T> m) {
+    if (m instanceof GeneratedTagsMap) {
+      mergeAll((GeneratedTagsMap<? extends T>) m, null);
+      return;
+    }
+    long bits = 0L;
+    try {
+      for (Entry<? extends String, ? extends T> entry : m.entrySet()) {
+        int index = indexFor(entry.getKey());
+        if (index < 0) {
+          throw new IllegalStateException("unregistered: " + entry.getKey());
+        }
+        getAndSetValueAtIndex(index, entry.getValue());
+        bits |= 1L << index;
+      }
+    } finally {
+      casOr(bits);
+    }
+  }
+
+  /**
+   * Puts all the entries of the source map into this map, resolving
+   * conflicts with the remapping function like {@link #merge}, and
+   * publishes the changes with a single update of the mask.
+   * @param remapping combines the existing value with the source value,
+   *                  the entry is removed if it returns null. When null,
+   *                  the source value replaces the existing value.
+   */
+  public void mergeAll(GeneratedTagsMap<? extends T> source, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    boolean sameKeys = source.getClass() == getClass();
+    long set = 0L;
+    long cleared = 0L;
+    try {
+      for (long bits = source.getMaskVolatile(); bits != 0; bits &= (bits - 1)) {
+        int sourceIndex = Long.numberOfTrailingZeros(bits);
+        T value = source.readValueAtIndex(sourceIndex);
+        if (null == value) {
+          continue;
+        }
+        int index = sameKeys ? sourceIndex : indexFor(source.keyAt(sourceIndex));
+        if (index < 0) {
+          throw new IllegalStateException("unregistered: " + source.keyAt(sourceIndex));
+        }
+        if (null == remapping) {
+          getAndSetValueAtIndex(index, value);
+          set |= 1L << index;
+        } else if (null != mergeValueAtIndex(index, value, remapping)) {
+          set |= 1L << index;
+        } else {
+          cleared |= 1L << index;
+        }
+      }
+    } finally {
+      casOr(set);
+      if (cleared != 0) {
+        casAnd(~cleared);
+        // restore the bits of values put concurrently
+        for (; cleared != 0; cleared &= (cleared - 1)) {
+          int index = Long.numberOfTrailingZeros(cleared);
+          if (null != readValueAtIndex(index)) {
+            casOr(1L << index);
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void clear() {
+    long mask = UNSAFE.getAndSetLong(this, MASK_OFFSET, 0L);
+    for (; mask != 0; mask &= (mask - 1)) {
+      getAndSetValueAtIndex(Long.numberOfTrailingZeros(mask), null);
+    }
+  }
+
+  /**
+   * @return a live view of the present keys, see {@link #registeredKeys()} for all the keys
+   */
+  @Override
+  public Set<String> keySet() {
+    return new KeySet();
+  }
+
+  /**
+   * @return a live view of the present values
+   */
+  @Override
+  public Collection<T> values() {
+    return new Values();
+  }
+
+  /**
+   * @return a live view of the present entries. Its iterators reuse a single
+   * entry, which is only valid until the next call to next(), so entries
+   * which need to be kept must be copied, as toArray() does.
+   */
+  @Override
+  public Set<Entry<String, T>> entrySet() {
+    return new EntrySet();
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    int index = indexFor(key);
+    if (index < 0 || null == value) {
+      return false;
+    }
+    while (true) {
+      T existing = readValueAtIndex(index);
+      if (null == existing || !existing.equals(value)) {
+        return false;
+      }
+      if (casValueAtIndex(index, existing, null)) {
+        clearPresence(index);
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean replace(String key, T oldValue, T newValue) {
+    Objects.requireNonNull(oldValue);
+    Objects.requireNonNull(newValue);
+    int index = indexFor(key);
+    if (index < 0) {
+      return false;
+    }
+    while (true) {
+      T existing = readValueAtIndex(index);
+      if (null == existing || !existing.equals(oldValue)) {
+        return false;
+      }
+      if (casValueAtIndex(index, existing, newValue)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public T replace(String key, T value) {
+    Objects.requireNonNull(value);
+    int index = indexFor(key);
+    if (index < 0) {
+      return null;
+    }
+    while (true) {
+      T existing = readValueAtIndex(index);
+      if (null == existing || casValueAtIndex(index, existing, value)) {
+        return existing;
+      }
+    }
+  }
+
+  /**
+   * Writes the present entries in index order, copying the keys from the
+   * encodings cached for the generated class.
+   * @throws java.nio.BufferOverflowException if the buffer is too small
+   */
+  public void writeTo(ByteBuffer buffer, TagsEncoder encoder) {
+    try {
+      writeTo(TagsEncoder.Output.of(buffer), encoder);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void writeTo(OutputStream out, TagsEncoder encoder) throws IOException {
+    TagsEncoder.Output output = TagsEncoder.Output.of(out);
+    try {
+      writeTo(output, encoder);
+      output.flush();
+    } finally {
+      output.release();
+    }
+  }
+
+  private void writeTo(TagsEncoder.Output out, TagsEncoder encoder) throws IOException {
+    long mask = getMaskVolatile();
+    byte[][] keys = keys().encodedKeys(encoder);
+    encoder.writeStart(Long.bitCount(mask), out);
+    int index = 0;
+    while (mask != 0) {
+      int code = Long.numberOfTrailingZeros(mask);
+      encoder.writeKey(index++, keys[code], out);
+      encoder.writeValue(readValueAtIndex(code), out);
+      mask &= (mask - 1);
+    }
+    encoder.writeEnd(out);
+  }
+
+  private T mergeValueAtIndex(int index, T value, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    while (true) {
+      T existing = readValueAtIndex(index);
+      T merged = null == existing ? value : remapping.apply(existing, value);
+      if (casValueAtIndex(index, existing, merged)) {
+        return merged;
+      }
+    }
+  }
+
+  // a value put between clearing the value and its bit keeps its bit
+  private void clearPresence(int index) {
+    casAnd(~(1L << index));
+    if (null != readValueAtIndex(index)) {
+      casOr(1L << index);
+    }
+  }
+
+  private Keys keys() {
+    Keys keys = KEYS.get(getClass());
+    if (null == keys.keys) {
+      keys.init(this);
+    }
+    return keys;
+  }
+
+  private long getMaskVolatile() {
+    return UNSAFE.getLongVolatile(this, MASK_OFFSET);
+  }
+
+  private void casOr(long bit) {
+    long oldMask;
+    long newMask;
+    do {
+      oldMask = getMaskVolatile();
+      newMask = oldMask | bit;
+    } while (oldMask != newMask
+            && !UNSAFE.compareAndSwapLong(this, MASK_OFFSET, oldMask, newMask));
+  }
+
+  private void casAnd(long bit) {
+    long oldMask;
+    long newMask;
+    do {
+      oldMask = getMaskVolatile();
+      newMask = oldMask & bit;
+    } while (oldMask != newMask
+            && !UNSAFE.compareAndSwapLong(this, MASK_OFFSET, oldMask, newMask));
+  }
+
+  private static final class Keys {
+    private volatile String[] keys;
+    private Set<String> registered;
+    private volatile byte[][][] encodedKeys;
+
+    synchronized void init(GeneratedTagsMap<?> map) {
+      if (null == keys) {
+        String[] keys = new String[map.keyCount()];
+        for (int i = 0; i < keys.length; ++i) {
+          keys[i] = map.keyAt(i);
+        }
+        registered = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(keys)));
+        this.keys = keys;
+      }
+    }
+
+    // there are at most 64 keys, whose hash codes are cached, so a scan is cheap enough
+    int indexOf(CharSequence key) {
+      int hash = 0;
+      for (int i = 0; i < key.length(); ++i) {
+        hash = 31 * hash + key.charAt(i);
+      }
+      String[] keys = this.keys;
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i].hashCode() == hash && keys[i].contentEquals(key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    byte[][] encodedKeys(TagsEncoder encoder) {
+      byte[][][] encodedKeys = this.encodedKeys;
+      if (null != encodedKeys && encoder.id < encodedKeys.length && null != encodedKeys[encoder.id]) {
+        return encodedKeys[encoder.id];
+      }
+      return encodeKeys(encoder);
+    }
+
+    private synchronized byte[][] encodeKeys(TagsEncoder encoder) {
+      byte[][][] encodedKeys = this.encodedKeys;
+      if (null == encodedKeys || encoder.id >= encodedKeys.length) {
+        encodedKeys = null == encodedKeys
+                ? new byte[encoder.id + 1][][]
+                : Arrays.copyOf(encodedKeys, encoder.id + 1);
+      } else if (null != encodedKeys[encoder.id]) {
+        return encodedKeys[encoder.id];
+      } else {
+        encodedKeys = encodedKeys.clone();
+      }
+      byte[][] encoded = new byte[keys.length][];
+      for (int i = 0; i < encoded.length; ++i) {
+        encoded[i] = encoder.encodeKey(keys[i].getBytes(UTF_8));
+      }
+      encodedKeys[encoder.id] = encoded;
+      this.encodedKeys = encodedKeys;
+      return encoded;
+    }
+  }
+
+  /**
+   * Iterates over the keys present in the mask when it was created, reading
+   * each value as it goes and skipping values removed since.
+   */
+  private abstract class PresentIterator<E> implements Iterator<E> {
+    private long remaining = getMaskVolatile();
+    private int nextIndex = -1;
+    private T nextValue;
+    private int lastIndex = -1;
+
+    @Override
+    public boolean hasNext() {
+      if (nextIndex >= 0) {
+        return true;
+      }
+      while (remaining != 0) {
+        int index = Long.numberOfTrailingZeros(remaining);
+        remaining &= (remaining - 1);
+        T value = readValueAtIndex(index);
+        if (null != value) {
+          nextIndex = index;
+          nextValue = value;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastIndex = nextIndex;
+      nextIndex = -1;
+      return element(keyAt(lastIndex), nextValue);
+    }
+
+    @Override
+    public void remove() {
+      if (lastIndex < 0) {
+        throw new IllegalStateException();
+      }
+      GeneratedTagsMap.this.remove(keyAt(lastIndex));
+      lastIndex = -1;
+    }
+
+    abstract E element(String key, T value);
+  }
+
+  private final class KeySet extends AbstractSet<String> {
+
+    @Override
+    public Iterator<String> iterator() {
+      return new PresentIterator<String>() {
+        @Override
+        String element(String key, T value) {
+          return key;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return GeneratedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return null != GeneratedTagsMap.this.remove(o);
+    }
+
+    @Override
+    public void clear() {
+      GeneratedTagsMap.this.clear();
+    }
+  }
+
+  private final class Values extends AbstractCollection<T> {
+
+    @Override
+    public Iterator<T> iterator() {
+      return new PresentIterator<T>() {
+        @Override
+        T element(String key, T value) {
+          return value;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return GeneratedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      GeneratedTagsMap.this.clear();
+    }
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<String, T>> {
+
+    @Override
+    public Iterator<Entry<String, T>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return GeneratedTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      Object value = get(entry.getKey());
+      return null != value && value.equals(entry.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return GeneratedTagsMap.this.remove(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void clear() {
+      GeneratedTagsMap.this.clear();
+    }
+
+    @Override
+    public Object[] toArray() {
+      return copyEntries().toArray();
+    }
+
+    @Override
+    public <A> A[] toArray(A[] a) {
+      return copyEntries().toArray(a);
+    }
+
+    private List<Entry<String, T>> copyEntries() {
+      List<Entry<String, T>> entries = new ArrayList<>(size());
+      GeneratedTagsMap.this.forEach((key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+      return entries;
+    }
+  }
+
+  /**
+   * Is its own entry, so iterating the entries allocates a single object.
+   */
+  private final class EntryIterator extends PresentIterator<Entry<String, T>> implements Entry<String, T> {
+    private String key;
+    private T value;
+
+    @Override
+    Entry<String, T> element(String key, T value) {
+      this.key = key;
+      this.value = value;
+      return this;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public T getValue() {
+      return value;
+    }
+
+    @Override
+    public T setValue(T value) {
+      this.value = value;
+      return put(key, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return key.equals(entry.getKey()) && value.equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package io.github.richardstartin.tagsmap;
+
+/**
+ * Receives the code of a key in a {@link StringTable} and its value.
+ * @param <T>
+ */
+@FunctionalInterface
+public interface IntObjConsumer<T> {
+
+  void accept(int code, T value);
+}
@@ -0,0 +1,94 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.Arrays;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * A dense concurrent map from up to 64 predefined keys to unboxed ints.
+ * Absent keys read as zero.
+ */
+public class IntTagsMap extends PrimitiveTagsMap {
+
+  static final int ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(int[].class);
+  static final int ARRAY_ELEMENT_SHIFT = Integer.numberOfTrailingZeros(UNSAFE.arrayIndexScale(int[].class));
+
+  public static IntTagsMap create(StringTable table) {
+    return new IntTagsMap(table);
+  }
+
+  private final int[] values;
+
+  private IntTagsMap(StringTable stringTable) {
+    super(stringTable);
+    this.values = new int[stringTable.size()];
+  }
+
+  public int get(String key) {
+    return getOrDefault(key, 0);
+  }
+
+  public int getOrDefault(String key, int defaultValue) {
+    int index = indexFor(key);
+    return index >= 0 && containsKey(index) ? get(index) : defaultValue;
+  }
+
+  public int get(int code) {
+    return UNSAFE.getIntVolatile(values, arrayIndex(code));
+  }
+
+  public int put(String key, int value) {
+    return put(codeFor(key), value);
+  }
+
+  public int put(int code, int value) {
+    int old = UNSAFE.getAndSetInt(values, arrayIndex(code), value);
+    casOr(1L << code);
+    return old;
+  }
+
+  public int addAndGet(String key, int delta) {
+    return addAndGet(codeFor(key), delta);
+  }
+
+  public int addAndGet(int code, int delta) {
+    int value = UNSAFE.getAndAddInt(values, arrayIndex(code), delta) + delta;
+    casOr(1L << code);
+    return value;
+  }
+
+  public boolean compareAndSet(String key, int expect, int update) {
+    return compareAndSet(codeFor(key), expect, update);
+  }
+
+  public boolean compareAndSet(int code, int expect, int update) {
+    if (UNSAFE.compareAndSwapInt(values, arrayIndex(code), expect, update)) {
+      casOr(1L << code);
+      return true;
+    }
+    return false;
+  }
+
+  public int remove(String key) {
+    int index = indexFor(key);
+    return index >= 0 ? remove(index) : 0;
+  }
+
+  public int remove(int code) {
+    long arrayIndex = arrayIndex(code);
+    casAnd(~(1L << code));
+    return UNSAFE.getAndSetInt(values, arrayIndex, 0);
+  }
+
+  public void clear() {
+    clearMask();
+    Arrays.fill(values, 0);
+  }
+
+  private long arrayIndex(int code) {
+    if (code < 0 || code >= values.length) {
+      throw new IllegalStateException("invalid code: " + code);
+    }
+    return ARRAY_BASE_OFFSET + ((long) code << ARRAY_ELEMENT_SHIFT);
+  }
+}
@@ -0,0 +1,142 @@
+package io.github.richardstartin.tagsmap;
+
+import java.io.IOException;
+
+/**
+ * Writes a map as a JSON object. Numbers and booleans are written as
+ * JSON literals, except non-finite numbers which are quoted, and
+ * everything else is written as a string.
+ */
+final class JsonTagsEncoder extends TagsEncoder {
+
+  private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+  private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+  private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  /**
+   * The key is cached with a leading comma, which is skipped for the first entry.
+   */
+  @Override
+  protected byte[] encodeKey(byte[] utf8) {
+    int escapes = 0;
+    for (byte b : utf8) {
+      if (b == '"' || b == '\\') {
+        escapes += 1;
+      } else if (b >= 0 && b < 0x20) {
+        escapes += 5;
+      }
+    }
+    byte[] encoded = new byte[utf8.length + escapes + 4];
+    int pos = 0;
+    encoded[pos++] = ',';
+    encoded[pos++] = '"';
+    for (byte b : utf8) {
+      if (b == '"' || b == '\\') {
+        encoded[pos++] = '\\';
+        encoded[pos++] = b;
+      } else if (b >= 0 && b < 0x20) {
+        encoded[pos++] = '\\';
+        encoded[pos++] = 'u';
+        encoded[pos++] = '0';
+        encoded[pos++] = '0';
+        encoded[pos++] = HEX[b >>> 4];
+        encoded[pos++] = HEX[b & 0xF];
+      } else {
+        encoded[pos++] = b;
+      }
+    }
+    encoded[pos++] = '"';
+    encoded[pos] = ':';
+    return encoded;
+  }
+
+  @Override
+  protected void writeStart(int size, Output out) throws IOException {
+    out.write('{');
+  }
+
+  @Override
+  protected void writeKey(int index, byte[] encodedKey, Output out) throws IOException {
+    int skip = index == 0 ? 1 : 0;
+    out.write(encodedKey, skip, encodedKey.length - skip);
+  }
+
+  @Override
+  protected void writeValue(Object value, Output out) throws IOException {
+    if (null == value) {
+      out.write(NULL);
+    } else if (value instanceof CharSequence) {
+      writeString((CharSequence) value, out);
+    } else if (value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte) {
+      writeLong(((Number) value).longValue(), out);
+    } else if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if (Double.isFinite(d)) {
+        writeAscii(value.toString(), out);
+      } else {
+        out.write('"');
+        writeAscii(value.toString(), out);
+        out.write('"');
+      }
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TRUE : FALSE);
+    } else {
+      writeString(String.valueOf(value), out);
+    }
+  }
+
+  @Override
+  protected void writeEnd(Output out) throws IOException {
+    out.write('}');
+  }
+
+  private static void writeString(CharSequence value, Output out) throws IOException {
+    out.write('"');
+    for (int i = 0; i < value.length(); ) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.write('\\');
+        out.write(c);
+        ++i;
+      } else if (c < 0x20) {
+        out.write('\\');
+        out.write('u');
+        out.write('0');
+        out.write('0');
+        out.write(HEX[c >>> 4]);
+        out.write(HEX[c & 0xF]);
+        ++i;
+      } else {
+        i += writeUtf8(value, i, out);
+      }
+    }
+    out.write('"');
+  }
+
+  private static void writeLong(long value, Output out) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      writeAscii(Long.toString(value), out);
+      return;
+    }
+    if (value < 0) {
+      out.write('-');
+      value = -value;
+    }
+    long divisor = 1;
+    while (divisor <= value / 10) {
+      divisor *= 10;
+    }
+    while (divisor > 0) {
+      out.write((int) ('0' + (value / divisor) % 10));
+      divisor /= 10;
+    }
+  }
+
+  private static void writeAscii(String value, Output out) throws IOException {
+    for (int i = 0; i < value.length(); ++i) {
+      out.write(value.charAt(i));
+    }
+  }
+}
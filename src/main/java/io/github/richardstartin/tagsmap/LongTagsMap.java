@@ -0,0 +1,95 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.Arrays;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * A dense concurrent map from up to 64 predefined keys to unboxed longs.
+ * Absent keys read as zero.
+ */
+public class LongTagsMap extends PrimitiveTagsMap {
+
+  static final int ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(long[].class);
+  static final int ARRAY_ELEMENT_SHIFT = Integer.numberOfTrailingZeros(UNSAFE.arrayIndexScale(long[].class));
+
+  public static LongTagsMap create(StringTable table) {
+    return new LongTagsMap(table);
+  }
+
+  private final long[] values;
+
+  private LongTagsMap(StringTable stringTable) {
+    super(stringTable);
+    this.values = new long[stringTable.size()];
+  }
+
+  public long get(String key) {
+    return getOrDefault(key, 0L);
+  }
+
+  public long getOrDefault(String key, long defaultValue) {
+    int index = indexFor(key);
+    return index >= 0 && containsKey(index) ? get(index) : defaultValue;
+  }
+
+  public long get(int code) {
+    return UNSAFE.getLongVolatile(values, arrayIndex(code));
+  }
+
+  public long put(String key, long value) {
+    return put(codeFor(key), value);
+  }
+
+  public long put(int code, long value) {
+    long old = UNSAFE.getAndSetLong(values, arrayIndex(code), value);
+    casOr(1L << code);
+    return old;
+  }
+
+  public long addAndGet(String key, long delta) {
+    return addAndGet(codeFor(key), delta);
+  }
+
+  public long addAndGet(int code, long delta) {
+    long value = UNSAFE.getAndAddLong(values, arrayIndex(code), delta) + delta;
+    casOr(1L << code);
+    return value;
+  }
+
+  public boolean compareAndSet(String key, long expect, long update) {
+    return compareAndSet(codeFor(key), expect, update);
+  }
+
+  public boolean compareAndSet(int code, long expect, long update) {
+    if (UNSAFE.compareAndSwapLong(values, arrayIndex(code), expect, update)) {
+      casOr(1L << code);
+      return true;
+    }
+    return false;
+  }
+
+  public long remove(String key) {
+    int index = indexFor(key);
+    return index >= 0 ? remove(index) : 0L;
+  }
+
+  public long remove(int code) {
+    long arrayIndex = arrayIndex(code);
+    casAnd(~(1L << code));
+    return UNSAFE.getAndSetLong(values, arrayIndex, 0L);
+  }
+
+  public void clear() {
+    clearMask();
+    Arrays.fill(values, 0L);
+  }
+
+  // the code is checked before it becomes an offset, since unregistered keys have code -1
+  private long arrayIndex(int code) {
+    if (code < 0 || code >= values.length) {
+      throw new IllegalStateException("invalid code: " + code);
+    }
+    return ARRAY_BASE_OFFSET + ((long) code << ARRAY_ELEMENT_SHIFT);
+  }
+}
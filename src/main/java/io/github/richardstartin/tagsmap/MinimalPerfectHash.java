@@ -0,0 +1,254 @@
+package io.github.richardstartin.tagsmap;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal perfect hash over large key sets, in the style of PTHash.
+ * Keys are hashed to 64 bits, split into buckets of about {@link #BUCKET_SIZE}
+ * keys, and each bucket gets the smallest pilot which places all of its keys
+ * in free slots of a table slightly larger than the key set. Pilots are
+ * bit-packed at the width of the largest, and the few keys placed beyond
+ * the end of the key set are remapped to the holes below it, so codes are
+ * dense in [0, size).
+ * <p>
+ * The 64 bit key hash combines {@link String#hashCode()} with a second
+ * hash over the same chars, so it can be computed from anything that can
+ * produce the chars of the key, without first building a String.
+ */
+final class MinimalPerfectHash {
+
+  static final int HASH2_SEED = 0x811C9DC5;
+
+  private static final int BUCKET_SIZE = 5;
+  private static final double LOAD_FACTOR = 0.98;
+  private static final int MAX_PILOT = 1 << 20;
+  private static final long PILOT_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final int size;
+  private final int slots;
+  private final int buckets;
+  private final int pilotWidth;
+  private final long pilotMask;
+  private final long[] pilots;
+  private final int[] remap;
+
+  private MinimalPerfectHash(int size, int slots, int buckets, int pilotWidth, long[] pilots, int[] remap) {
+    this.size = size;
+    this.slots = slots;
+    this.buckets = buckets;
+    this.pilotWidth = pilotWidth;
+    this.pilotMask = pilotWidth == 64 ? -1L : (1L << pilotWidth) - 1;
+    this.pilots = pilots;
+    this.remap = remap;
+  }
+
+  /**
+   * Builds a minimal perfect hash over the keys.
+   * @param codes receives the code of each key
+   */
+  static MinimalPerfectHash build(String[] keys, int[] codes) {
+    int n = keys.length;
+    int slots = Math.max(n, (int) Math.ceil(n / LOAD_FACTOR));
+    int buckets = Math.max(1, (n + BUCKET_SIZE - 1) / BUCKET_SIZE);
+    long[] hashes = new long[n];
+    int[] bucketStart = new int[buckets + 1];
+    for (int i = 0; i < n; ++i) {
+      hashes[i] = keyHash(keys[i].hashCode(), hash2(keys[i]));
+      bucketStart[bucket(hashes[i], buckets) + 1]++;
+    }
+    int maxBucketSize = 0;
+    for (int b = 0; b < buckets; ++b) {
+      maxBucketSize = Math.max(maxBucketSize, bucketStart[b + 1]);
+      bucketStart[b + 1] += bucketStart[b];
+    }
+    int[] keysByBucket = new int[n];
+    int[] fill = Arrays.copyOf(bucketStart, buckets);
+    for (int i = 0; i < n; ++i) {
+      keysByBucket[fill[bucket(hashes[i], buckets)]++] = i;
+    }
+    // counting sort the buckets by descending size, the largest
+    // buckets are the hardest to place so go while the table is emptiest
+    int[] sizeStart = new int[maxBucketSize + 2];
+    for (int b = 0; b < buckets; ++b) {
+      sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+    }
+    for (int i = 1; i < sizeStart.length; ++i) {
+      sizeStart[i] += sizeStart[i - 1];
+    }
+    int[] bucketOrder = new int[buckets];
+    for (int b = 0; b < buckets; ++b) {
+      bucketOrder[sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+    }
+    long[] taken = new long[(slots + 63) >>> 6];
+    int[] slotOf = new int[n];
+    int[] bucketPilots = new int[buckets];
+    int maxPilot = 0;
+    for (int o = 0; o < buckets; ++o) {
+      int bucket = bucketOrder[o];
+      int from = bucketStart[bucket];
+      int to = bucketStart[bucket + 1];
+      if (from == to) {
+        break;
+      }
+      int pilot = 0;
+      for (; ; ++pilot) {
+        if (pilot == MAX_PILOT) {
+          throw new IllegalStateException("keys with colliding hashes: " + keys(keys, keysByBucket, from, to));
+        }
+        int placed = from;
+        for (; placed < to; ++placed) {
+          int slot = slot(hashes[keysByBucket[placed]], pilot, slots);
+          if ((taken[slot >>> 6] & (1L << slot)) != 0) {
+            break;
+          }
+          taken[slot >>> 6] |= 1L << slot;
+          slotOf[keysByBucket[placed]] = slot;
+        }
+        if (placed == to) {
+          break;
+        }
+        // only release the slots this pilot claimed
+        for (int k = from; k < placed; ++k) {
+          int slot = slotOf[keysByBucket[k]];
+          taken[slot >>> 6] &= ~(1L << slot);
+        }
+      }
+      bucketPilots[bucket] = pilot;
+      maxPilot = Math.max(maxPilot, pilot);
+    }
+    int pilotWidth = Math.max(1, Long.SIZE - Long.numberOfLeadingZeros(maxPilot));
+    // one word of padding so reads never need a bounds check on the next word
+    long[] pilots = new long[(int) (((long) buckets * pilotWidth + 63) >>> 6) + 1];
+    for (int b = 0; b < buckets; ++b) {
+      long bit = (long) b * pilotWidth;
+      int word = (int) (bit >>> 6);
+      int shift = (int) (bit & 63);
+      pilots[word] |= (long) bucketPilots[b] << shift;
+      if (shift + pilotWidth > 64) {
+        pilots[word + 1] |= (long) bucketPilots[b] >>> (64 - shift);
+      }
+    }
+    // slots at or beyond n which aren't taken by a key still map to some valid code,
+    // unknown keys hashed there will fail verification against that code's key
+    int[] remap = new int[slots - n];
+    int hole = 0;
+    for (int slot = n; slot < slots; ++slot) {
+      if ((taken[slot >>> 6] & (1L << slot)) != 0) {
+        while ((taken[hole >>> 6] & (1L << hole)) != 0) {
+          ++hole;
+        }
+        remap[slot - n] = hole++;
+      }
+    }
+    for (int i = 0; i < n; ++i) {
+      codes[i] = slotOf[i] < n ? slotOf[i] : remap[slotOf[i] - n];
+    }
+    return new MinimalPerfectHash(n, slots, buckets, pilotWidth, pilots, remap);
+  }
+
+  /**
+   * @param hash the {@link String#hashCode()} of the key
+   * @param hash2 the {@link #hash2(CharSequence)} of the key
+   * @return a code in [0, size), which is only the code of the key if the key was registered
+   */
+  int code(int hash, int hash2) {
+    long key = keyHash(hash, hash2);
+    int slot = slot(key, pilot(bucket(key, buckets)), slots);
+    return slot < size ? slot : remap[slot - size];
+  }
+
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(slots);
+    out.writeInt(buckets);
+    out.writeInt(pilotWidth);
+    out.writeInt(pilots.length);
+    for (long pilot : pilots) {
+      out.writeLong(pilot);
+    }
+    out.writeInt(remap.length);
+    for (int code : remap) {
+      out.writeInt(code);
+    }
+  }
+
+  /**
+   * Reads a hash written by {@link #writeTo(DataOutputStream)} over size keys.
+   */
+  static MinimalPerfectHash read(ByteBuffer in, int size) {
+    int slots = in.getInt();
+    int buckets = in.getInt();
+    int pilotWidth = in.getInt();
+    int pilotsLength = in.getInt();
+    if (slots < size || buckets <= 0 || pilotWidth <= 0 || pilotWidth > 64
+            || pilotsLength != (int) (((long) buckets * pilotWidth + 63) >>> 6) + 1) {
+      throw new IllegalStateException("corrupt perfect hash header");
+    }
+    long[] pilots = new long[StringTable.checkRemaining(in, pilotsLength, Long.BYTES)];
+    for (int i = 0; i < pilots.length; ++i) {
+      pilots[i] = in.getLong();
+    }
+    int remapLength = in.getInt();
+    if (remapLength != slots - size) {
+      throw new IllegalStateException("corrupt perfect hash remap");
+    }
+    int[] remap = new int[StringTable.checkRemaining(in, remapLength, Integer.BYTES)];
+    for (int i = 0; i < remap.length; ++i) {
+      remap[i] = in.getInt();
+      if (remap[i] < 0 || remap[i] >= Math.max(size, 1)) {
+        throw new IllegalStateException("corrupt perfect hash remap");
+      }
+    }
+    return new MinimalPerfectHash(size, slots, buckets, pilotWidth, pilots, remap);
+  }
+
+  private int pilot(int bucket) {
+    long bit = (long) bucket * pilotWidth;
+    int word = (int) (bit >>> 6);
+    int shift = (int) (bit & 63);
+    // (x << 1) << (63 - shift) is zero when shift is zero, unlike x << (64 - shift)
+    return (int) (((pilots[word] >>> shift) | ((pilots[word + 1] << 1) << (63 - shift))) & pilotMask);
+  }
+
+  static int hash2(CharSequence value) {
+    int hash2 = HASH2_SEED;
+    for (int i = 0; i < value.length(); ++i) {
+      hash2 = hash2Step(hash2, value.charAt(i));
+    }
+    return hash2;
+  }
+
+  static int hash2Step(int hash2, int c) {
+    return (hash2 ^ c) * 0x01000193;
+  }
+
+  private static long keyHash(int hash, int hash2) {
+    return mix(((long) hash << 32) | (hash2 & 0xFFFFFFFFL));
+  }
+
+  private static int bucket(long key, int buckets) {
+    return (int) (((key >>> 32) * buckets) >>> 32);
+  }
+
+  private static int slot(long key, int pilot, int slots) {
+    return (int) (((mix(key ^ (pilot * PILOT_MULTIPLIER)) >>> 32) * slots) >>> 32);
+  }
+
+  private static long mix(long x) {
+    x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+    x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return x ^ (x >>> 33);
+  }
+
+  private static List<String> keys(String[] keys, int[] keysByBucket, int from, int to) {
+    List<String> list = new ArrayList<>(to - from);
+    for (int k = from; k < to; ++k) {
+      list.add(keys[keysByBucket[k]]);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,149 @@
+package io.github.richardstartin.tagsmap;
+
+import java.io.IOException;
+
+/**
+ * Writes a map as a msgpack map with str keys.
+ */
+final class MsgPackTagsEncoder extends TagsEncoder {
+
+  @Override
+  protected byte[] encodeKey(byte[] utf8) {
+    int length = utf8.length;
+    int headerLength = length < 32 ? 1 : length < 256 ? 2 : length < 65536 ? 3 : 5;
+    byte[] encoded = new byte[headerLength + length];
+    if (length < 32) {
+      encoded[0] = (byte) (0xA0 | length);
+    } else if (length < 256) {
+      encoded[0] = (byte) 0xD9;
+      encoded[1] = (byte) length;
+    } else if (length < 65536) {
+      encoded[0] = (byte) 0xDA;
+      encoded[1] = (byte) (length >>> 8);
+      encoded[2] = (byte) length;
+    } else {
+      encoded[0] = (byte) 0xDB;
+      encoded[1] = (byte) (length >>> 24);
+      encoded[2] = (byte) (length >>> 16);
+      encoded[3] = (byte) (length >>> 8);
+      encoded[4] = (byte) length;
+    }
+    System.arraycopy(utf8, 0, encoded, headerLength, length);
+    return encoded;
+  }
+
+  @Override
+  protected void writeStart(int size, Output out) throws IOException {
+    if (size < 16) {
+      out.write(0x80 | size);
+    } else if (size < 65536) {
+      out.write(0xDE);
+      writeShort(size, out);
+    } else {
+      out.write(0xDF);
+      writeInt(size, out);
+    }
+  }
+
+  @Override
+  protected void writeKey(int index, byte[] encodedKey, Output out) throws IOException {
+    out.write(encodedKey);
+  }
+
+  @Override
+  protected void writeValue(Object value, Output out) throws IOException {
+    if (null == value) {
+      out.write(0xC0);
+    } else if (value instanceof CharSequence) {
+      writeString((CharSequence) value, out);
+    } else if (value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte) {
+      writeLong(((Number) value).longValue(), out);
+    } else if (value instanceof Double) {
+      out.write(0xCB);
+      writeLongBits(Double.doubleToLongBits((Double) value), out);
+    } else if (value instanceof Float) {
+      out.write(0xCA);
+      writeInt(Float.floatToIntBits((Float) value), out);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? 0xC3 : 0xC2);
+    } else if (value instanceof byte[]) {
+      writeBinary((byte[]) value, out);
+    } else {
+      writeString(String.valueOf(value), out);
+    }
+  }
+
+  @Override
+  protected void writeEnd(Output out) {
+  }
+
+  private static void writeString(CharSequence value, Output out) throws IOException {
+    int length = utf8Length(value);
+    if (length < 32) {
+      out.write(0xA0 | length);
+    } else if (length < 256) {
+      out.write(0xD9);
+      out.write(length);
+    } else if (length < 65536) {
+      out.write(0xDA);
+      writeShort(length, out);
+    } else {
+      out.write(0xDB);
+      writeInt(length, out);
+    }
+    for (int i = 0; i < value.length(); ) {
+      i += writeUtf8(value, i, out);
+    }
+  }
+
+  private static void writeBinary(byte[] value, Output out) throws IOException {
+    int length = value.length;
+    if (length < 256) {
+      out.write(0xC4);
+      out.write(length);
+    } else if (length < 65536) {
+      out.write(0xC5);
+      writeShort(length, out);
+    } else {
+      out.write(0xC6);
+      writeInt(length, out);
+    }
+    out.write(value);
+  }
+
+  private static void writeLong(long value, Output out) throws IOException {
+    if (value >= -32 && value < 128) {
+      out.write((int) value);
+    } else if (value == (byte) value) {
+      out.write(0xD0);
+      out.write((int) value);
+    } else if (value == (short) value) {
+      out.write(0xD1);
+      writeShort((int) value, out);
+    } else if (value == (int) value) {
+      out.write(0xD2);
+      writeInt((int) value, out);
+    } else {
+      out.write(0xD3);
+      writeLongBits(value, out);
+    }
+  }
+
+  private static void writeShort(int value, Output out) throws IOException {
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  private static void writeInt(int value, Output out) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  private static void writeLongBits(long value, Output out) throws IOException {
+    writeInt((int) (value >>> 32), out);
+    writeInt((int) value, out);
+  }
+}
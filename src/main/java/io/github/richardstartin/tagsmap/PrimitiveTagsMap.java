@@ -0,0 +1,96 @@
+package io.github.richardstartin.tagsmap;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * Key resolution and presence tracking shared by the primitive maps.
+ * Presence is kept in a separate mask because zero is a valid value,
+ * so like {@link TagsMap} these only support up to 64 predefined keys.
+ */
+abstract class PrimitiveTagsMap {
+
+  static final long MASK_OFFSET;
+
+  static {
+    try {
+      MASK_OFFSET = UNSAFE.objectFieldOffset(PrimitiveTagsMap.class.getDeclaredField("mask"));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  final StringTable stringTable;
+  private long mask;
+
+  PrimitiveTagsMap(StringTable stringTable) {
+    if (stringTable.size() > Long.SIZE) {
+      throw new IllegalStateException("too many keys for " + getClass().getSimpleName() + ": " + stringTable.size());
+    }
+    this.stringTable = stringTable;
+  }
+
+  public int size() {
+    return Long.bitCount(getMaskVolatile());
+  }
+
+  public boolean isEmpty() {
+    return getMaskVolatile() == 0L;
+  }
+
+  public boolean containsKey(String key) {
+    int index = indexFor(key);
+    return index >= 0 && containsKey(index);
+  }
+
+  public boolean containsKey(int code) {
+    // the shift would otherwise wrap codes of 64 and above onto other keys
+    if (code < 0 || code >= stringTable.size()) {
+      throw new IllegalStateException("invalid code: " + code);
+    }
+    return (getMaskVolatile() & (1L << code)) != 0;
+  }
+
+  /**
+   * @return the code of the key, or -1 if the key isn't registered
+   */
+  public int indexFor(String key) {
+    int index = stringTable.code(key);
+    return index >= 0 && stringTable.get(index).equals(key) ? index : -1;
+  }
+
+  int codeFor(String key) {
+    int index = indexFor(key);
+    if (index < 0) {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+    return index;
+  }
+
+  long getMaskVolatile() {
+    return UNSAFE.getLongVolatile(this, MASK_OFFSET);
+  }
+
+  void clearMask() {
+    UNSAFE.putLongVolatile(this, MASK_OFFSET, 0L);
+  }
+
+  void casOr(long bit) {
+    long oldMask;
+    long newMask;
+    do {
+      oldMask = getMaskVolatile();
+      newMask = oldMask | bit;
+    } while (oldMask != newMask
+            && !UNSAFE.compareAndSwapLong(this, MASK_OFFSET, oldMask, newMask));
+  }
+
+  void casAnd(long bit) {
+    long oldMask;
+    long newMask;
+    do {
+      oldMask = getMaskVolatile();
+      newMask = oldMask & bit;
+    } while (oldMask != newMask
+            && !UNSAFE.compareAndSwapLong(this, MASK_OFFSET, oldMask, newMask));
+  }
+}
@@ -1,93 +1,301 @@
 package io.github.richardstartin.tagsmap;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class StringTable {
 
+  private static final int SEED_STEP = 1187;
+  private static final int MAX_SEED_ATTEMPTS = 1 << 20;
+  // beyond this the displacement table's power of two sizing and
+  // seed search get expensive, so switch to a minimal perfect hash
+  static final int MPHF_THRESHOLD = 1024;
+  private static final int FORMAT_MAGIC = 0x5354424C;
+  private static final int FORMAT_VERSION = 1;
+
+  // decoded from utf8 on first use in tables read by read(ByteBuffer)
   private final String[] strings;
   private final byte[][] utf8;
-  private final Set<String> keySet;
+  private volatile Set<String> keySet;
   private final int size;
   private final int[] values;
   private final int[] seeds;
+  private final MinimalPerfectHash mphf;
+  private final TagsStatistics statistics;
+  private volatile byte[][][] encodedKeys;
+  // the number of codes maps over this table make room for, more than the
+  // size if this is a version of a VersionedStringTable
+  private final int capacity;
+  private final int version;
+  // the next version, once it has been published
+  private volatile StringTable successor;
 
-  @SuppressWarnings("unchecked")
   StringTable(String... strings) {
-    int length = 1 << -Integer.numberOfLeadingZeros(strings.length - 1);
-    Set<String> keySet = new TreeSet<>();
-    this.values = new int[length];
+    this(strings, false);
+  }
+
+  StringTable(String[] strings, boolean instrumented) {
+    this(strings, instrumented, strings.length, 0);
+  }
+
+  StringTable(String[] strings, boolean instrumented, int capacity, int version) {
+    int n = strings.length;
+    this.utf8 = new byte[n][];
+    this.size = n;
+    this.capacity = capacity;
+    this.version = version;
+    if (n > MPHF_THRESHOLD) {
+      // codes are assigned by the hash function, so store the keys in code order
+      int[] codes = new int[n];
+      this.mphf = MinimalPerfectHash.build(strings, codes);
+      this.strings = new String[n];
+      for (int i = 0; i < n; ++i) {
+        this.strings[codes[i]] = strings[i];
+        this.utf8[codes[i]] = strings[i].getBytes(UTF_8);
+      }
+      this.values = null;
+      this.seeds = null;
+    } else {
+      this.mphf = null;
+      this.strings = strings.clone();
+      int length = 1 << -Integer.numberOfLeadingZeros(n - 1);
+      this.values = new int[length];
+      this.seeds = new int[length];
+      int[] hashes = new int[n];
+      for (int i = 0; i < n; ++i) {
+        utf8[i] = strings[i].getBytes(UTF_8);
+        hashes[i] = strings[i].hashCode();
+      }
+      buildDisplacements(hashes);
+    }
+    this.statistics = instrumented ? new TagsStatistics(this) : null;
+  }
+
+  private StringTable(byte[][] utf8, int[] values, int[] seeds, MinimalPerfectHash mphf) {
+    this.size = utf8.length;
+    this.strings = new String[utf8.length];
+    this.utf8 = utf8;
+    this.values = values;
+    this.seeds = seeds;
+    this.mphf = mphf;
+    this.statistics = null;
+    this.capacity = utf8.length;
+    this.version = 0;
+  }
+
+  private void buildDisplacements(int[] hashes) {
+    int n = hashes.length;
+    int length = values.length;
+    int mask = length - 1;
     Arrays.fill(values, -1);
-    this.seeds = new int[length];
-    this.strings = new String[strings.length];
-    this.utf8 = new byte[strings.length][];
-    for (int i = 0; i < strings.length; ++i) {
-      this.strings[i] = strings[i];
-      this.utf8[i] = strings[i].getBytes(UTF_8);
-    }
-    List<Bucket>[] buckets = new List[length];
-    Arrays.setAll(buckets, i -> new ArrayList<>());
-    for (int i = 0; i < strings.length; ++i) {
-      String string = strings[i];
-      int hash = string.hashCode();
-      int modHash = hash & (length - 1);
-      buckets[modHash].add(new Bucket(i, hash));
-      keySet.add(string);
-    }
-    Arrays.sort(buckets, Comparator.comparingInt(l -> -l.size()));
-    BitSet free = new BitSet(values.length);
-    free.set(0, values.length);
-    int[] entries = new int[length];
-    Arrays.fill(entries, -1);
-    int b = 0;
-    for (; b < buckets.length && buckets[b].size() > 1; b++) {
-      List<Bucket> subKeys = buckets[b];
+    // bucketStart[b + 1] counts the keys in bucket b, and is then
+    // turned into the offset of the bucket's keys in keysByBucket
+    int[] bucketStart = new int[length + 1];
+    for (int i = 0; i < n; ++i) {
+      bucketStart[(hashes[i] & mask) + 1]++;
+    }
+    int maxBucketSize = 0;
+    for (int b = 0; b < length; ++b) {
+      maxBucketSize = Math.max(maxBucketSize, bucketStart[b + 1]);
+      bucketStart[b + 1] += bucketStart[b];
+    }
+    int[] keysByBucket = new int[n];
+    int[] fill = Arrays.copyOf(bucketStart, length);
+    for (int i = 0; i < n; ++i) {
+      keysByBucket[fill[hashes[i] & mask]++] = i;
+    }
+    // counting sort the buckets by descending size
+    int[] sizeStart = new int[maxBucketSize + 2];
+    for (int b = 0; b < length; ++b) {
+      sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+    }
+    for (int i = 1; i < sizeStart.length; ++i) {
+      sizeStart[i] += sizeStart[i - 1];
+    }
+    int[] bucketOrder = new int[length];
+    for (int b = 0; b < length; ++b) {
+      bucketOrder[sizeStart[maxBucketSize - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+    }
+    int[] tried = new int[maxBucketSize];
+    int o = 0;
+    for (; o < length; ++o) {
+      int bucket = bucketOrder[o];
+      int from = bucketStart[bucket];
+      int to = bucketStart[bucket + 1];
+      if (to - from < 2) {
+        break;
+      }
       int seed = 93;
-      nextSeed: while (true) {
-        seed += 1187;
-        boolean marked = false;
-        for (Bucket bucket : subKeys) {
-          int i = xorShift(bucket.hash + seed) & (length - 1);
-          if (entries[i] == -1 && values[i] == -1) {
-            marked = true;
-            entries[i] = bucket.position;
-            continue;
-          }
-          if (marked) {
-            Arrays.fill(entries, -1);
+      for (int attempt = 0; ; ++attempt) {
+        if (attempt == MAX_SEED_ATTEMPTS) {
+          throw new IllegalStateException("keys with colliding hash codes: " + bucketKeys(keysByBucket, from, to));
+        }
+        seed = (seed + SEED_STEP) & Integer.MAX_VALUE;
+        int marked = 0;
+        for (int k = from; k < to; ++k) {
+          int slot = mix(hashes[keysByBucket[k]] ^ seed) & mask;
+          if (values[slot] != -1) {
+            break;
           }
-          continue nextSeed;
+          values[slot] = keysByBucket[k];
+          tried[marked++] = slot;
+        }
+        if (marked == to - from) {
+          break;
+        }
+        // only reset the slots this seed claimed
+        for (int t = 0; t < marked; ++t) {
+          values[tried[t]] = -1;
         }
+      }
+      seeds[bucket] = seed;
+    }
+    int slot = 0;
+    for (; o < length; ++o) {
+      int bucket = bucketOrder[o];
+      if (bucketStart[bucket + 1] == bucketStart[bucket]) {
         break;
       }
-      for (int e = 0; e < entries.length; ++e) {
-        if (entries[e] != -1) {
-          values[e] = entries[e];
-          free.clear(e);
-        }
+      while (values[slot] != -1) {
+        ++slot;
       }
-      seeds[subKeys.get(0).hash & (length - 1)] = seed;
+      values[slot] = keysByBucket[bucketStart[bucket]];
+      seeds[bucket] = -slot - 1;
     }
+  }
 
-    int slot = free.nextSetBit(0);
-    while (b < buckets.length && !buckets[b].isEmpty()) {
-      Bucket bucket = buckets[b].get(0);
-      values[slot] = bucket.position;
-      seeds[bucket.hash & (length - 1)] = -slot - 1;
-      ++b;
-      free.set(slot, false);
-      slot = free.nextSetBit(slot);
+  private List<String> bucketKeys(int[] keysByBucket, int from, int to) {
+    List<String> keys = new ArrayList<>(to - from);
+    for (int k = from; k < to; ++k) {
+      keys.add(strings[keysByBucket[k]]);
     }
-    this.keySet = Collections.unmodifiableSet(keySet);
-    this.size = strings.length;
+    return keys;
   }
 
-
+  /**
+   * Above {@link #MPHF_THRESHOLD} keys, this also computes a second hash over
+   * every char of the key, which unlike {@link String#hashCode()} can't be
+   * cached, so costs time proportional to the length of the key on every call.
+   * Keys looked up often from large tables should be resolved once with
+   * {@link #key(String, Class)}.
+   */
   public int code(String value) {
-    int hash = value.hashCode();
+    return null == mphf ? codeForHash(value.hashCode()) : mphf.code(value.hashCode(), MinimalPerfectHash.hash2(value));
+  }
+
+  /**
+   * Looks up the code of a key held in any CharSequence without copying it to a String.
+   * Unlike {@link #code(String)} the key is verified against the stored key.
+   * @return the code of the key, or -1 if the chars are not a registered key
+   */
+  public int code(CharSequence value) {
+    int code;
+    if (value instanceof String) {
+      code = code((String) value);
+    } else {
+      int hash = 0;
+      int hash2 = MinimalPerfectHash.HASH2_SEED;
+      for (int i = 0; i < value.length(); ++i) {
+        char c = value.charAt(i);
+        hash = 31 * hash + c;
+        hash2 = MinimalPerfectHash.hash2Step(hash2, c);
+      }
+      code = null == mphf ? codeForHash(hash) : mphf.code(hash, hash2);
+    }
+    return code >= 0 && get(code).contentEquals(value) ? code : -1;
+  }
+
+  /**
+   * Looks up the code of a key from its UTF-8 encoding without decoding it to a String.
+   * Unlike {@link #code(String)} the key is verified against the stored encoding.
+   * @return the code of the key, or -1 if the bytes are not a registered key
+   */
+  public int code(byte[] buf, int off, int len) {
+    return codeForUtf8(buf, null, off, len);
+  }
+
+  /**
+   * Looks up the code of a key from its UTF-8 encoding at an absolute position in the buffer.
+   * The buffer's position and limit are not modified.
+   * @see #code(byte[], int, int)
+   */
+  public int code(ByteBuffer buf, int off, int len) {
+    if (buf.hasArray()) {
+      return codeForUtf8(buf.array(), null, buf.arrayOffset() + off, len);
+    }
+    return codeForUtf8(null, buf, off, len);
+  }
+
+  /**
+   * Hashes the chars the UTF-8 bytes decode to, as {@link String#hashCode()}
+   * and {@link MinimalPerfectHash#hash2(CharSequence)} would, then verifies the
+   * bytes against the stored encoding. The bytes are read from the array,
+   * or from the buffer when the array is null.
+   */
+  private int codeForUtf8(byte[] array, ByteBuffer buffer, int off, int len) {
+    int hash = 0;
+    int hash2 = MinimalPerfectHash.HASH2_SEED;
+    int i = off;
+    int end = off + len;
+    while (i < end) {
+      int b = byteAt(array, buffer, i);
+      if (b >= 0) {
+        hash = 31 * hash + b;
+        hash2 = MinimalPerfectHash.hash2Step(hash2, b);
+        i++;
+      } else if ((b & 0xE0) == 0xC0 && i + 1 < end) {
+        int c = ((b & 0x1F) << 6) | (byteAt(array, buffer, i + 1) & 0x3F);
+        hash = 31 * hash + c;
+        hash2 = MinimalPerfectHash.hash2Step(hash2, c);
+        i += 2;
+      } else if ((b & 0xF0) == 0xE0 && i + 2 < end) {
+        int c = ((b & 0x0F) << 12) | ((byteAt(array, buffer, i + 1) & 0x3F) << 6)
+                | (byteAt(array, buffer, i + 2) & 0x3F);
+        hash = 31 * hash + c;
+        hash2 = MinimalPerfectHash.hash2Step(hash2, c);
+        i += 3;
+      } else if ((b & 0xF8) == 0xF0 && i + 3 < end) {
+        int codePoint = ((b & 0x07) << 18) | ((byteAt(array, buffer, i + 1) & 0x3F) << 12)
+                | ((byteAt(array, buffer, i + 2) & 0x3F) << 6) | (byteAt(array, buffer, i + 3) & 0x3F);
+        hash = 31 * (31 * hash + Character.highSurrogate(codePoint)) + Character.lowSurrogate(codePoint);
+        hash2 = MinimalPerfectHash.hash2Step(MinimalPerfectHash.hash2Step(hash2,
+                Character.highSurrogate(codePoint)), Character.lowSurrogate(codePoint));
+        i += 4;
+      } else {
+        return -1;
+      }
+    }
+    int code = null == mphf ? codeForHash(hash) : mphf.code(hash, hash2);
+    if (code >= 0) {
+      byte[] encoded = utf8[code];
+      if (encoded.length != len) {
+        return -1;
+      }
+      for (int j = 0; j < len; ++j) {
+        if (encoded[j] != byteAt(array, buffer, off + j)) {
+          return -1;
+        }
+      }
+    }
+    return code;
+  }
+
+  private static byte byteAt(byte[] array, ByteBuffer buffer, int index) {
+    return null != array ? array[index] : buffer.get(index);
+  }
+
+  private int codeForHash(int hash) {
     int seed = seeds[hash & (values.length - 1)];
-    int index = seed < 0 ? -seed-1 : xorShift(seed + hash) & (values.length - 1);
+    int index = seed < 0 ? -seed-1 : mix(hash ^ seed) & (values.length - 1);
     return values[index];
   }
 
@@ -95,12 +303,70 @@ public class StringTable {
     return size;
   }
 
+  int capacity() {
+    return capacity;
+  }
+
+  int version() {
+    return version;
+  }
+
+  /**
+   * @return the latest published version of this table, which is this table unless it was
+   * created by a {@link VersionedStringTable} which has had keys added since
+   */
+  StringTable latest() {
+    StringTable latest = this;
+    StringTable next;
+    while (null != (next = latest.successor)) {
+      latest = next;
+    }
+    return latest;
+  }
+
+  void publishSuccessor(StringTable successor) {
+    this.successor = successor;
+  }
+
+  /**
+   * @return the statistics of the maps over this table, or null if it wasn't created instrumented
+   */
+  public TagsStatistics statistics() {
+    return statistics;
+  }
+
   public Set<String> keySet() {
+    Set<String> keySet = this.keySet;
+    if (null == keySet) {
+      keySet = new TreeSet<>();
+      for (int code = 0; code < size; ++code) {
+        keySet.add(get(code));
+      }
+      keySet = Collections.unmodifiableSet(keySet);
+      this.keySet = keySet;
+    }
     return keySet;
   }
 
   public String get(int code) {
-    return strings[code];
+    String string = strings[code];
+    if (null == string) {
+      // racing threads decode equal strings, and Strings are safe to publish without a fence
+      string = strings[code] = new String(utf8[code], UTF_8);
+    }
+    return string;
+  }
+
+  /**
+   * @return a handle for the key, which maps over this table can resolve without hashing
+   * @throws IllegalStateException if the key isn't in the table
+   */
+  public <T> TagKey<T> key(String name, Class<T> type) {
+    int code = code(name);
+    if (code < 0 || !get(code).equals(name)) {
+      throw new IllegalStateException("unregistered: " + name);
+    }
+    return new TagKey<>(this, code, name, type);
   }
 
   public byte[] getEncoded(int code) {
@@ -109,23 +375,158 @@ public class StringTable {
 
   public byte[] getEncoded(String value) {
     int code = code(value);
-    return code >= 0 && value.equals(strings[code]) ? utf8[code] : null;
+    return code >= 0 && value.equals(get(code)) ? utf8[code] : null;
+  }
+
+  /**
+   * Writes the finished table so {@link StringTables#load(byte[])} can read it back
+   * without searching for seeds or pilots again. The format is big-endian: a magic
+   * number, the format version, the number of keys, the kind of hash, then either
+   * the displacement seeds and values or the perfect hash's pilots and remap, and
+   * last the length-prefixed UTF-8 keys in code order.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(FORMAT_MAGIC);
+    data.writeInt(FORMAT_VERSION);
+    data.writeInt(size);
+    data.writeBoolean(null != mphf);
+    if (null == mphf) {
+      data.writeInt(values.length);
+      for (int i = 0; i < values.length; ++i) {
+        data.writeInt(seeds[i]);
+        data.writeInt(values[i]);
+      }
+    } else {
+      mphf.writeTo(data);
+    }
+    for (byte[] key : utf8) {
+      data.writeInt(key.length);
+      data.write(key);
+    }
+    data.flush();
   }
 
-  private static class Bucket {
-    int position;
-    int hash;
+  public byte[] toBytes() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      writeTo(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
 
-    public Bucket(int position, int hash) {
-      this.position = position;
-      this.hash = hash;
+  /**
+   * Reads a table written by {@link #writeTo(OutputStream)} from the buffer's position,
+   * without modifying the buffer's position.
+   * @throws IllegalStateException if the buffer doesn't hold a complete table
+   */
+  static StringTable read(ByteBuffer buffer) {
+    ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    try {
+      if (in.getInt() != FORMAT_MAGIC) {
+        throw new IllegalStateException("not a serialized string table");
+      }
+      int version = in.getInt();
+      if (version != FORMAT_VERSION) {
+        throw new IllegalStateException("unsupported string table version: " + version);
+      }
+      int size = in.getInt();
+      if (size < 0) {
+        throw new IllegalStateException("invalid string table size: " + size);
+      }
+      // each key has at least its length
+      checkRemaining(in, size, Integer.BYTES);
+      int[] values = null;
+      int[] seeds = null;
+      MinimalPerfectHash mphf = null;
+      if (in.get() != 0) {
+        mphf = MinimalPerfectHash.read(in, size);
+      } else {
+        int length = in.getInt();
+        if (length <= 0 || Integer.bitCount(length) != 1 || length < size) {
+          throw new IllegalStateException("invalid displacement table length: " + length);
+        }
+        checkRemaining(in, length, 2 * Integer.BYTES);
+        values = new int[length];
+        seeds = new int[length];
+        for (int i = 0; i < length; ++i) {
+          seeds[i] = in.getInt();
+          values[i] = in.getInt();
+          if (values[i] < -1 || values[i] >= size || (seeds[i] < 0 && -seeds[i] - 1 >= length)) {
+            throw new IllegalStateException("corrupt displacement table at " + i);
+          }
+        }
+      }
+      byte[][] utf8 = new byte[size][];
+      for (int code = 0; code < size; ++code) {
+        utf8[code] = new byte[checkRemaining(in, in.getInt(), Byte.BYTES)];
+        in.get(utf8[code]);
+      }
+      return new StringTable(utf8, values, seeds, mphf);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalStateException("truncated string table", e);
+    }
+  }
+
+  /**
+   * Checks a length read from a serialized table before allocating an array
+   * of that length, so a corrupt length can't cause a huge allocation.
+   * @return the length
+   */
+  static int checkRemaining(ByteBuffer in, int length, int bytesPerElement) {
+    if (length < 0) {
+      throw new IllegalStateException("invalid length: " + length);
+    }
+    if ((long) length * bytesPerElement > in.remaining()) {
+      throw new IllegalStateException("truncated string table");
+    }
+    return length;
+  }
+
+  /**
+   * @return the keys as encoded by the encoder, computed on first use and cached
+   */
+  byte[][] encodedKeys(TagsEncoder encoder) {
+    byte[][][] encodedKeys = this.encodedKeys;
+    if (null != encodedKeys && encoder.id < encodedKeys.length && null != encodedKeys[encoder.id]) {
+      return encodedKeys[encoder.id];
+    }
+    return encodeKeys(encoder);
+  }
+
+  private synchronized byte[][] encodeKeys(TagsEncoder encoder) {
+    byte[][][] encodedKeys = this.encodedKeys;
+    if (null == encodedKeys || encoder.id >= encodedKeys.length) {
+      encodedKeys = null == encodedKeys
+              ? new byte[encoder.id + 1][][]
+              : Arrays.copyOf(encodedKeys, encoder.id + 1);
+    } else if (null != encodedKeys[encoder.id]) {
+      return encodedKeys[encoder.id];
+    } else {
+      encodedKeys = encodedKeys.clone();
+    }
+    byte[][] keys = new byte[utf8.length][];
+    for (int i = 0; i < utf8.length; ++i) {
+      keys[i] = encoder.encodeKey(utf8[i]);
     }
+    encodedKeys[encoder.id] = keys;
+    this.encodedKeys = encodedKeys;
+    return keys;
   }
 
-  private static int xorShift(int x) {
-    x ^= x << 13;
-    x ^= x >>> 17;
-    x ^= x << 5;
-    return x;
+  /**
+   * The murmur3 finalizer, so the low bits used to pick a slot depend on
+   * every bit of the hash. A single fold and multiply isn't enough: keys
+   * whose hashes differ by the same pattern in both halves still collide
+   * in the low bits for every seed.
+   */
+  private static int mix(int x) {
+    x ^= x >>> 16;
+    x *= 0x85EBCA6B;
+    x ^= x >>> 13;
+    x *= 0xC2B2AE35;
+    return x ^ (x >>> 16);
   }
 }
@@ -1,5 +1,11 @@
 package io.github.richardstartin.tagsmap;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -15,9 +21,6 @@ public class StringTables {
   };
 
   public static void registerKeys(Class<?> klass, String... keys) {
-    if (keys.length > 64) {
-      throw new IllegalStateException();
-    }
     String[] present = KEYS.putIfAbsent(klass, keys);
     if (null != present) {
       throw new IllegalStateException("keys " + Arrays.toString(present) + " already registered for class " + klass);
@@ -31,4 +34,50 @@ public class StringTables {
   public static StringTable create(String... keys) {
     return new StringTable(keys);
   }
+
+  /**
+   * Creates a table whose maps record {@link TagsStatistics}, see {@link StringTable#statistics()}.
+   */
+  public static StringTable createInstrumented(String... keys) {
+    return new StringTable(keys, true);
+  }
+
+  /**
+   * Loads a table written by {@link StringTable#writeTo(java.io.OutputStream)},
+   * which is much cheaper than creating it from its keys because the hash
+   * isn't constructed again, and the keys are only decoded when they're used.
+   * @throws IllegalStateException if the bytes aren't a serialized table
+   */
+  public static StringTable load(byte[] serialized) {
+    return load(ByteBuffer.wrap(serialized));
+  }
+
+  /**
+   * Loads a table from the buffer's position, without modifying the buffer's position.
+   */
+  public static StringTable load(ByteBuffer serialized) {
+    return StringTable.read(serialized);
+  }
+
+  /**
+   * Loads a table from a file, e.g. one generated at build time, by mapping it.
+   */
+  public static StringTable load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path)) {
+      return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Loads a table from a stream, such as a class path resource, without closing the stream.
+   */
+  public static StringTable load(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return load(out.toByteArray());
+  }
 }
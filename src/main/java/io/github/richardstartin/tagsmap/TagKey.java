@@ -0,0 +1,39 @@
+package io.github.richardstartin.tagsmap;
+
+/**
+ * A key resolved against a {@link StringTable} once, so maps over the same
+ * table can access its value by code without hashing or comparing the key.
+ * Maps over a different table fall back to looking up the name.
+ * @param <T> the type of the key's values
+ */
+public final class TagKey<T> {
+
+  final StringTable stringTable;
+  final int code;
+  private final String name;
+  private final Class<T> type;
+
+  TagKey(StringTable stringTable, int code, String name, Class<T> type) {
+    this.stringTable = stringTable;
+    this.code = code;
+    this.name = name;
+    this.type = type;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  public int code() {
+    return code;
+  }
+
+  public Class<T> type() {
+    return type;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
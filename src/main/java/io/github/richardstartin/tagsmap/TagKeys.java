@@ -0,0 +1,18 @@
+package io.github.richardstartin.tagsmap;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates a map specialized to a fixed set of keys, named after the
+ * annotated type with a TagsMap suffix, in the same package. Requires the
+ * tags-map processor on the annotation processor path.
+ * @see GeneratedTagsMap
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface TagKeys {
+  String[] value();
+}
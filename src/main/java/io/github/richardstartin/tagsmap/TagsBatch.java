@@ -0,0 +1,292 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.*;
+import java.util.function.LongPredicate;
+
+/**
+ * Rows of tags over one {@link StringTable}, stored by column: each code
+ * has an array of the values of all rows, allocated the first time a row
+ * has a value for it, and each row has a presence mask in the same layout
+ * as {@link TagsMap}. Scanning one tag across a batch only reads that tag's
+ * column and the masks, rather than chasing a map per row. Batches are not
+ * thread-safe, and only hold the registered keys of hybrid maps.
+ * @param <T>
+ */
+public final class TagsBatch<T> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  public static <T> TagsBatch<T> create(StringTable table) {
+    return new TagsBatch<>(table, DEFAULT_CAPACITY);
+  }
+
+  public static <T> TagsBatch<T> create(StringTable table, int capacity) {
+    return new TagsBatch<>(table, capacity);
+  }
+
+  private final StringTable stringTable;
+  private final Object[][] columns;
+  private long[] masks;
+  private int size;
+
+  private TagsBatch(StringTable stringTable, int capacity) {
+    if (stringTable.size() > Long.SIZE) {
+      throw new IllegalStateException("too many keys for TagsBatch: " + stringTable.size());
+    }
+    this.stringTable = stringTable;
+    this.columns = new Object[stringTable.size()][];
+    this.masks = new long[Math.max(1, capacity)];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Appends a row with the registered entries of the map.
+   * @throws IllegalStateException if the map has a different string table
+   */
+  public void append(TagsMap<? extends T> map) {
+    // read the mask first, in case the map moves to a new version of its table
+    long mask = map.mask();
+    if (map.stringTable() != stringTable) {
+      throw new IllegalStateException("map belongs to a different string table");
+    }
+    ensureCapacity(size + 1);
+    long present = 0L;
+    for (long remaining = mask; remaining != 0; remaining &= (remaining - 1)) {
+      int code = Long.numberOfTrailingZeros(remaining);
+      Object value = map.readValueAtIndex(code);
+      // the value may have been removed concurrently
+      if (null != value) {
+        column(code)[size] = value;
+        present |= 1L << code;
+      }
+    }
+    masks[size++] = present;
+  }
+
+  public long mask(int row) {
+    checkRow(row);
+    return masks[row];
+  }
+
+  /**
+   * @return the bits of the keys in a row's mask, for use with {@link #filter(LongPredicate)}
+   * @throws IllegalStateException if any of the keys isn't registered
+   */
+  public long maskOf(String... keys) {
+    long mask = 0L;
+    for (String key : keys) {
+      mask |= 1L << codeOf(key);
+    }
+    return mask;
+  }
+
+  public T get(int row, String key) {
+    int code = stringTable.code(key);
+    return code >= 0 && stringTable.get(code).equals(key) ? get(row, code) : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T get(int row, int code) {
+    checkRow(row);
+    return (masks[row] & (1L << code)) != 0 ? (T) columns[code][row] : null;
+  }
+
+  /**
+   * @return a view of the key's values in row order, null where a row doesn't have the key
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> column(String key) {
+    int code = codeOf(key);
+    Object[] column = columns[code];
+    if (null == column) {
+      return Collections.nCopies(size, null);
+    }
+    return (List<T>) Collections.unmodifiableList(Arrays.asList(column).subList(0, size));
+  }
+
+  /**
+   * @return a map with the entries of the row
+   */
+  @SuppressWarnings("unchecked")
+  public TagsMap<T> row(int row) {
+    checkRow(row);
+    TagsMap<T> map = TagsMap.create(stringTable);
+    for (long mask = masks[row]; mask != 0; mask &= (mask - 1)) {
+      int code = Long.numberOfTrailingZeros(mask);
+      map.put(stringTable.get(code), (T) columns[code][row]);
+    }
+    return map;
+  }
+
+  /**
+   * @return a batch of the same rows with only the columns of the keys
+   */
+  public TagsBatch<T> project(String... keys) {
+    long projection = maskOf(keys);
+    TagsBatch<T> projected = new TagsBatch<>(stringTable, size);
+    for (long remaining = projection; remaining != 0; remaining &= (remaining - 1)) {
+      int code = Long.numberOfTrailingZeros(remaining);
+      if (null != columns[code]) {
+        projected.columns[code] = Arrays.copyOf(columns[code], projected.masks.length);
+      }
+    }
+    for (int row = 0; row < size; ++row) {
+      projected.masks[row] = masks[row] & projection;
+    }
+    projected.size = size;
+    return projected;
+  }
+
+  /**
+   * @return a batch of the rows whose masks match the predicate, in the same order
+   */
+  public TagsBatch<T> filter(LongPredicate predicate) {
+    int[] rows = new int[size];
+    int count = 0;
+    for (int row = 0; row < size; ++row) {
+      if (predicate.test(masks[row])) {
+        rows[count++] = row;
+      }
+    }
+    return select(rows, count);
+  }
+
+  /**
+   * @return a batch of the rows, in the order given
+   */
+  public TagsBatch<T> select(int[] rows) {
+    for (int row : rows) {
+      checkRow(row);
+    }
+    return select(rows, rows.length);
+  }
+
+  /**
+   * Finds the rows which have the key for each of its values, in one pass
+   * over the key's column, without copying any other columns. The rows of
+   * a group can be read in place or copied out with {@link #select(int[])}.
+   * @return the ascending rows of each distinct value of the key, in order of first appearance
+   */
+  @SuppressWarnings("unchecked")
+  public Map<T, int[]> groupBy(String key) {
+    int groupCode = codeOf(key);
+    Object[] groupColumn = columns[groupCode];
+    if (null == groupColumn) {
+      return Collections.emptyMap();
+    }
+    long bit = 1L << groupCode;
+    Map<Object, Integer> groupIds = new HashMap<>();
+    List<Object> groupValues = new ArrayList<>();
+    int[] groupOf = new int[size];
+    int[] counts = new int[Math.min(size, 16)];
+    for (int row = 0; row < size; ++row) {
+      if ((masks[row] & bit) == 0) {
+        groupOf[row] = -1;
+        continue;
+      }
+      Object value = groupColumn[row];
+      Integer groupId = groupIds.get(value);
+      if (null == groupId) {
+        groupId = groupValues.size();
+        groupIds.put(value, groupId);
+        groupValues.add(value);
+        if (groupId == counts.length) {
+          counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+      }
+      groupOf[row] = groupId;
+      ++counts[groupId];
+    }
+    int[][] groups = new int[groupValues.size()][];
+    for (int g = 0; g < groups.length; ++g) {
+      groups[g] = new int[counts[g]];
+      counts[g] = 0;
+    }
+    for (int row = 0; row < size; ++row) {
+      int g = groupOf[row];
+      if (g >= 0) {
+        groups[g][counts[g]++] = row;
+      }
+    }
+    Map<T, int[]> grouped = new LinkedHashMap<>();
+    for (int g = 0; g < groups.length; ++g) {
+      grouped.put((T) groupValues.get(g), groups[g]);
+    }
+    return grouped;
+  }
+
+  /**
+   * Removes all rows, keeping the allocated columns for reuse.
+   */
+  public void clear() {
+    for (Object[] column : columns) {
+      if (null != column) {
+        Arrays.fill(column, 0, size, null);
+      }
+    }
+    size = 0;
+  }
+
+  StringTable stringTable() {
+    return stringTable;
+  }
+
+  private TagsBatch<T> select(int[] rows, int count) {
+    TagsBatch<T> selected = new TagsBatch<>(stringTable, count);
+    for (int i = 0; i < count; ++i) {
+      selected.masks[i] = masks[rows[i]];
+    }
+    for (int code = 0; code < columns.length; ++code) {
+      Object[] column = columns[code];
+      if (null != column) {
+        Object[] target = selected.column(code);
+        for (int i = 0; i < count; ++i) {
+          target[i] = column[rows[i]];
+        }
+      }
+    }
+    selected.size = count;
+    return selected;
+  }
+
+  private Object[] column(int code) {
+    Object[] column = columns[code];
+    if (null == column) {
+      column = columns[code] = new Object[masks.length];
+    }
+    return column;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > masks.length) {
+      int newCapacity = Math.max(capacity, masks.length * 2);
+      masks = Arrays.copyOf(masks, newCapacity);
+      for (int code = 0; code < columns.length; ++code) {
+        if (null != columns[code]) {
+          columns[code] = Arrays.copyOf(columns[code], newCapacity);
+        }
+      }
+    }
+  }
+
+  private int codeOf(String key) {
+    int code = stringTable.code(key);
+    if (code < 0 || !stringTable.get(code).equals(key)) {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+    return code;
+  }
+
+  private void checkRow(int row) {
+    if (row < 0 || row >= size) {
+      throw new IllegalStateException("no row " + row + " in batch of " + size);
+    }
+  }
+}
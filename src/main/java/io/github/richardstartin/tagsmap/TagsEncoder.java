@@ -0,0 +1,227 @@
+package io.github.richardstartin.tagsmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the entries of a {@link TagsMap} in some wire format. Keys are
+ * encoded once per {@link StringTable} by {@link #encodeKey(byte[])} and
+ * cached, so writing a map only copies the cached key bytes and encodes
+ * the values. The cache is keyed by the encoder's class, so creating
+ * encoders doesn't grow the caches of every table.
+ */
+public abstract class TagsEncoder {
+
+  private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+  private static final ClassValue<Integer> IDS = new ClassValue<Integer>() {
+    @Override
+    protected Integer computeValue(Class<?> type) {
+      return NEXT_ID.getAndIncrement();
+    }
+  };
+
+  public static final TagsEncoder MSGPACK = new MsgPackTagsEncoder();
+  public static final TagsEncoder JSON = new JsonTagsEncoder();
+
+  final int id = IDS.get(getClass());
+
+  /**
+   * @param utf8 the UTF-8 encoding of a key
+   * @return everything written before the key's value, this is cached per string
+   * table and encoder class, so must be the same for every instance of the class
+   */
+  protected abstract byte[] encodeKey(byte[] utf8);
+
+  /**
+   * Called once before any entries are written.
+   * @param size the number of entries which will be written
+   */
+  protected abstract void writeStart(int size, Output out) throws IOException;
+
+  /**
+   * @param index the position of the entry in the output
+   * @param encodedKey the cached result of {@link #encodeKey(byte[])}
+   */
+  protected abstract void writeKey(int index, byte[] encodedKey, Output out) throws IOException;
+
+  /**
+   * @param value the value of the entry, which may be null if it was removed concurrently
+   */
+  protected abstract void writeValue(Object value, Output out) throws IOException;
+
+  protected abstract void writeEnd(Output out) throws IOException;
+
+  /**
+   * The destination of an encoder, either a ByteBuffer or an OutputStream.
+   */
+  public static abstract class Output {
+
+    public abstract void write(int b) throws IOException;
+
+    public abstract void write(byte[] bytes, int off, int len) throws IOException;
+
+    public void write(byte[] bytes) throws IOException {
+      write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes anything buffered to the destination, called once everything has been written.
+     */
+    void flush() throws IOException {
+    }
+
+    /**
+     * Called once the output is no longer needed, whether or not it was flushed.
+     */
+    void release() {
+    }
+
+    static Output of(ByteBuffer buffer) {
+      return new ByteBufferOutput(buffer);
+    }
+
+    /**
+     * @return the calling thread's stream output, unless it's already in use
+     * by an enclosing write, which must be released after use
+     */
+    static Output of(OutputStream out) {
+      StreamOutput output = StreamOutput.CACHED.get();
+      if (null != output.out) {
+        output = new StreamOutput();
+      }
+      output.out = out;
+      return output;
+    }
+  }
+
+  /**
+   * @return the length of the value encoded as UTF-8, which like
+   * {@link String#getBytes(java.nio.charset.Charset)} replaces unpaired surrogates with '?'
+   */
+  static int utf8Length(CharSequence value) {
+    int length = value.length();
+    int utf8Length = length;
+    for (int i = 0; i < length; ++i) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          utf8Length += 1;
+        } else if (Character.isSurrogate(c)) {
+          if (Character.isHighSurrogate(c) && i + 1 < length
+                  && Character.isLowSurrogate(value.charAt(i + 1))) {
+            utf8Length += 2;
+            ++i;
+          }
+        } else {
+          utf8Length += 2;
+        }
+      }
+    }
+    return utf8Length;
+  }
+
+  /**
+   * Writes the character at position i, or the surrogate pair starting there, as UTF-8.
+   * @return the number of chars consumed
+   */
+  static int writeUtf8(CharSequence value, int i, Output out) throws IOException {
+    char c = value.charAt(i);
+    if (c < 0x80) {
+      out.write(c);
+    } else if (c < 0x800) {
+      out.write(0xC0 | (c >>> 6));
+      out.write(0x80 | (c & 0x3F));
+    } else if (Character.isSurrogate(c)) {
+      if (Character.isHighSurrogate(c) && i + 1 < value.length()
+              && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+        out.write(0xF0 | (codePoint >>> 18));
+        out.write(0x80 | ((codePoint >>> 12) & 0x3F));
+        out.write(0x80 | ((codePoint >>> 6) & 0x3F));
+        out.write(0x80 | (codePoint & 0x3F));
+        return 2;
+      }
+      out.write('?');
+    } else {
+      out.write(0xE0 | (c >>> 12));
+      out.write(0x80 | ((c >>> 6) & 0x3F));
+      out.write(0x80 | (c & 0x3F));
+    }
+    return 1;
+  }
+
+  private static final class ByteBufferOutput extends Output {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferOutput(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) {
+      buffer.put(bytes, off, len);
+    }
+  }
+
+  /**
+   * Values are mostly written a byte at a time, so they're collected in a
+   * scratch array which is written to the stream when it fills up and by
+   * {@link #flush()}, rather than making a call to the stream per byte.
+   * Each thread reuses one instance, which is in use while it has a stream.
+   */
+  private static final class StreamOutput extends Output {
+
+    private static final int BUFFER_SIZE = 512;
+
+    static final ThreadLocal<StreamOutput> CACHED = ThreadLocal.withInitial(StreamOutput::new);
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private OutputStream out;
+    private int position;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (position == buffer.length) {
+        flush();
+      }
+      buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+      if (len > buffer.length - position) {
+        flush();
+        if (len > buffer.length) {
+          out.write(bytes, off, len);
+          return;
+        }
+      }
+      System.arraycopy(bytes, off, buffer, position, len);
+      position += len;
+    }
+
+    @Override
+    void flush() throws IOException {
+      if (position > 0) {
+        out.write(buffer, 0, position);
+        position = 0;
+      }
+    }
+
+    @Override
+    void release() {
+      // drops anything left by a failed write, and the reference to the stream
+      out = null;
+      position = 0;
+    }
+  }
+}
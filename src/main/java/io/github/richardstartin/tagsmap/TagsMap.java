@@ -1,64 +1,154 @@
 package io.github.richardstartin.tagsmap;
 
-import sun.misc.Unsafe;
-
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static io.github.richardstartin.tagsmap.TagsMapAccess.compareAndSet;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.compareAndSetOverflow;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.compareAndSetPooled;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.compareAndSetValues;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.getAcquire;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.getAndSet;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.getAndSetMask;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.getMaskAcquire;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.getStringTableAcquire;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.getValuesAcquire;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.setRelease;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.setStringTableRelease;
+import static io.github.richardstartin.tagsmap.TagsMapAccess.weakCompareAndSetMask;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
- * A dense concurrent hashmap which only supports up to 64 predefined keys
+ * A dense concurrent hashmap which only supports up to 64 predefined keys,
+ * see {@link WideTagsMap} for larger key sets. A hybrid map also accepts
+ * unregistered keys, which are kept in a small copy-on-write overflow
+ * array, allocated the first time an unregistered key is put.
+ * Maps created by {@link #fork()} share their values with the map they were
+ * forked from until either of them is written to. Values put for registered
+ * keys can be canonicalized by a {@link ValueInterner}. Maps over a table
+ * created by {@link StringTables#createInstrumented(String...)} record
+ * {@link TagsStatistics} in the table. Maps over a version of a
+ * {@link VersionedStringTable} move to the latest version the first time
+ * they are written a key their version doesn't have.
  * @param <T>
  */
 public class TagsMap<T> implements ConcurrentMap<String, T> {
 
-  static final Unsafe UNSAFE;
-  static final int ARRAY_BASE_OFFSET;
-  static final int ARRAY_ELEMENT_SHIFT;
-  static final long MASK_OFFSET;
+  // marks a slot written through the new table during a migration
+  private static final Object COPY_SUPERSEDED = new Object();
 
-  static {
-    try {
-      Field f = Unsafe.class.getDeclaredField("theUnsafe");
-      f.setAccessible(true);
-      UNSAFE = (Unsafe) f.get(null);
-      ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(Object[].class);
-      ARRAY_ELEMENT_SHIFT = Integer.numberOfTrailingZeros(UNSAFE.arrayIndexScale(Object[].class));
-      MASK_OFFSET = UNSAFE.objectFieldOffset(TagsMap.class.getDeclaredField("mask"));
-    } catch (Exception e) {
-      throw new IllegalStateException(e);
-    }
+  public static <T> TagsMap<T> create(StringTable table) {
+    return create(table, false, null);
   }
 
-  public static <T> TagsMap<T> create(StringTable table) {
-    return new TagsMap<>(table);
+  public static <T> TagsMap<T> createHybrid(StringTable table) {
+    return create(table, true, null);
+  }
+
+  public static <T> TagsMap<T> create(StringTable table, ValueInterner interner) {
+    return create(table, false, interner);
+  }
+
+  public static <T> TagsMap<T> createHybrid(StringTable table, ValueInterner interner) {
+    return create(table, true, interner);
   }
 
-  private final StringTable stringTable;
-  private final Object[] values;
+  private static <T> TagsMap<T> create(StringTable table, boolean hybrid, ValueInterner interner) {
+    return null == table.statistics()
+            ? new TagsMap<>(table, hybrid, interner)
+            : new InstrumentedTagsMap<>(table, hybrid, interner);
+  }
+
+  // only replaced by a later version with the same codes, see migrate
+  private StringTable stringTable;
+  // replaced by a CAS when a writer copies a shared array, so only read through getValuesAcquire
+  private Object[] values;
+  private final boolean hybrid;
+  private final ValueInterner interner;
   private long mask;
+  // slots written by putRaw, which aren't in the mask, so clear() can reach them; only the writer reads it
+  private long raw;
+  // alternating keys and values
+  private volatile Object[] overflow;
+  // values array shared with a forked map, which must be copied before writing
+  private volatile Object[] shared;
+  // set by recycle and reset when a pool hands the map out again, so it can't be pooled twice
+  private int pooled;
 
-  private TagsMap(StringTable stringTable) {
+  private TagsMap(StringTable stringTable, boolean hybrid, ValueInterner interner) {
+    if (stringTable.capacity() > Long.SIZE) {
+      throw new IllegalStateException("too many keys for TagsMap: " + stringTable.capacity());
+    }
+    // an interner created over any version of a VersionedStringTable has room for every version
+    if (null != interner && interner.stringTable().latest() != stringTable.latest()) {
+      throw new IllegalStateException("interner belongs to a different string table");
+    }
     this.stringTable = stringTable;
-    this.values = new Object[stringTable.size()];
+    this.values = new Object[stringTable.capacity()];
+    this.hybrid = hybrid;
+    this.interner = interner;
+  }
+
+  private TagsMap(TagsMap<T> parent, Object[] values) {
+    this.stringTable = parent.stringTable;
+    this.hybrid = parent.hybrid;
+    this.interner = parent.interner;
+    this.values = values;
+    this.shared = values;
+    this.mask = parent.getMaskVolatile();
+    this.overflow = parent.overflow;
+  }
+
+  /**
+   * Creates a map with the same entries as this map, which shares this map's
+   * values until either map is written to, at which point the writer takes
+   * a private copy. Reading from an unmodified fork costs the same as reading
+   * from this map. Writes to this map racing with the fork may be visible to it.
+   */
+  public TagsMap<T> fork() {
+    Object[] values = getValuesAcquire(this);
+    this.shared = values;
+    return newFork(values);
+  }
+
+  TagsMap<T> newFork(Object[] values) {
+    return new TagsMap<>(this, values);
   }
 
   @Override
   public int size() {
-    return Long.bitCount(getMaskVolatile());
+    int size = Long.bitCount(getMaskVolatile());
+    if (hybrid) {
+      Object[] overflow = this.overflow;
+      if (null != overflow) {
+        size += overflow.length >>> 1;
+      }
+    }
+    return size;
   }
 
   @Override
   public boolean isEmpty() {
-    return getMaskVolatile() == 0L;
+    return getMaskVolatile() == 0L && (!hybrid || null == overflow);
   }
 
   @Override
   public boolean containsKey(Object key) {
-    int index = indexFor((String) key);
-    if (index >= 0 && stringTable.get(index).equals(key)) {
+    StringTable table = stringTable;
+    int index = table.code((String) key);
+    if (index >= 0 && table.get(index).equals(key)) {
       return (getMaskVolatile() & (1L << index)) != 0;
     }
+    if (hybrid) {
+      return overflowIndex(overflow, key) >= 0 || (superseded(table) && containsKey(key));
+    }
     return false;
   }
 
@@ -68,31 +158,103 @@ public class TagsMap<T> implements ConcurrentMap<String, T> {
       long mask = getMaskVolatile();
       while (mask != 0) {
         int pos = Long.numberOfTrailingZeros(mask);
-        if (readValueAtIndex(pos).equals(value)) {
+        if (value.equals(readValueAtIndex(pos))) {
           return true;
         }
         mask &= (mask - 1);
       }
+      if (hybrid) {
+        Object[] overflow = this.overflow;
+        if (null != overflow) {
+          for (int i = 1; i < overflow.length; i += 2) {
+            if (value.equals(overflow[i])) {
+              return true;
+            }
+          }
+        }
+      }
     }
     return false;
   }
 
   @Override
   public T get(Object key) {
-    int index = indexFor((String) key);
-    if (index >= 0 && stringTable.get(index).equals(key)) {
-      return readValueAtIndex(index);
+    StringTable table = stringTable;
+    int index = table.code((String) key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      return recordLookup(readValueAtIndex(index));
+    }
+    if (hybrid) {
+      T value = overflowGet(key);
+      // the entry may have just moved from the overflow to a slot
+      return null == value && superseded(table) ? get(key) : recordLookup(value);
     }
-    return null;
+    return recordLookup(null);
+  }
+
+  /**
+   * Looks up a key held in a mutable or non-String CharSequence without copying it.
+   */
+  @SuppressWarnings("unchecked")
+  public T get(CharSequence key) {
+    if (key instanceof String) {
+      return get((Object) key);
+    }
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0) {
+      return recordLookup(readValueAtIndex(index));
+    }
+    if (hybrid) {
+      Object[] overflow = this.overflow;
+      int overflowIndex = overflowIndexOf(overflow, key);
+      if (overflowIndex < 0 && superseded(table)) {
+        return get(key);
+      }
+      return recordLookup(overflowIndex >= 0 ? (T) overflow[overflowIndex + 1] : null);
+    }
+    return recordLookup(null);
+  }
+
+  /**
+   * Reads the value of a key resolved from this map's string table by code,
+   * without hashing or comparing the key. The value is cast unchecked to the
+   * key's type, which holds as long as the key is only written through
+   * {@link #putTag(TagKey, Object)}. Named apart from {@link #get(Object)}
+   * so that get(null) isn't ambiguous with {@link #get(CharSequence)}.
+   */
+  @SuppressWarnings("unchecked")
+  public <V extends T> V getTag(TagKey<V> key) {
+    if (key.stringTable == stringTable) {
+      return (V) recordLookup(readValueAtIndex(key.code));
+    }
+    return (V) get((Object) key.name());
+  }
+
+  @SuppressWarnings("unchecked")
+  public <V extends T> V putTag(TagKey<V> key, V value) {
+    if (key.stringTable == stringTable) {
+      return (V) setValueAtIndex(key.code, value);
+    }
+    return (V) put(key.name(), value);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <V extends T> V removeTag(TagKey<V> key) {
+    if (key.stringTable == stringTable) {
+      return (V) removeValueAtIndex(key.code);
+    }
+    return (V) remove((Object) key.name());
   }
 
   public T getExclusive(Object key) {
-    int index = indexFor((String) key);
+    StringTable table = stringTable;
+    int index = table.code((String) key);
     if (index >= 0 && (mask & 1L << index) != 0
-            && stringTable.get(index).equals(key)) {
+            && table.get(index).equals(key)) {
       return getRaw(index);
     }
-    return null;
+    return hybrid ? overflowGet(key) : null;
   }
 
   public T getRaw(Object key) {
@@ -101,119 +263,741 @@ public class TagsMap<T> implements ConcurrentMap<String, T> {
 
   @SuppressWarnings("unchecked")
   public T getRaw(int code) {
-    return (T) values[code];
+    return (T) getValuesAcquire(this)[code];
   }
 
+  /**
+   * Writes the value without publishing it in the mask, so unlike
+   * {@link #put(String, Object)} it's only safe for a single writer.
+   */
   public void putRaw(int code, T value) {
-    values[code] = value;
+    writableValues()[code] = value;
+    raw |= 1L << code;
   }
 
   public void putRaw(String key, T value) {
-    values[indexFor(key)] = value;
+    putRaw(indexFor(key), value);
   }
 
   public void removeRaw(String key) {
-    values[indexFor(key)] = null;
+    writableValues()[indexFor(key)] = null;
   }
 
   public void removeRaw(int code) {
-    values[code] = null;
+    writableValues()[code] = null;
   }
 
   @Override
   public T put(String key, T value) {
-    int index = stringTable.code(key);
-    if (index >= 0 && stringTable.get(index).equals(key)) {
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
       return setValueAtIndex(index, value);
     }
+    if (migrate(table)) {
+      return put(key, value);
+    }
+    recordUnregisteredPut();
+    if (hybrid) {
+      return overflowPut(table, key, value, false);
+    }
     throw new IllegalStateException("unregistered: " + key);
   }
 
   @Override
   public T remove(Object key) {
-    int index = stringTable.code((String) key);
-    if (index >= 0 && stringTable.get(index).equals(key)) {
+    StringTable table = stringTable;
+    int index = table.code((String) key);
+    if (index >= 0 && table.get(index).equals(key)) {
       return removeValueAtIndex(index);
     }
-    return null;
+    return hybrid ? overflowRemove(table, key) : null;
   }
 
+  /**
+   * Writes all the values before publishing them with a single update of the mask.
+   * When the source is a TagsMap over the same string table, the values are
+   * copied slot by slot without any key lookups.
+   */
   @Override
+  @SuppressWarnings("unchecked")
   public void putAll(Map<? extends String, ? extends T> m) {
-    throw new IllegalStateException();
+    if (m instanceof TagsMap) {
+      mergeAll((TagsMap<? extends T>) m, null);
+      return;
+    }
+    Object[] values = writableValues();
+    StringTable table = stringTable;
+    long bits = 0L;
+    try {
+      for (Entry<? extends String, ? extends T> entry : m.entrySet()) {
+        String key = entry.getKey();
+        int index = table.code(key);
+        if (!(index >= 0 && table.get(index).equals(key)) && migrate(table)) {
+          table = getStringTableAcquire(this);
+          index = table.code(key);
+        }
+        if (index >= 0 && table.get(index).equals(key)) {
+          setRelease(values, index, intern(index, entry.getValue()));
+          bits |= 1L << index;
+        } else if (hybrid) {
+          overflowPut(table, key, entry.getValue(), false);
+        } else {
+          throw new IllegalStateException("unregistered: " + key);
+        }
+      }
+    } finally {
+      casOr(bits);
+    }
+  }
+
+  /**
+   * Puts all the entries of the source map into this map, resolving
+   * conflicts with the remapping function like {@link #merge}, and
+   * publishes the changes with a single update of the mask.
+   * @param remapping combines the existing value with the source value,
+   *                  the entry is removed if it returns null. When null,
+   *                  the source value replaces the existing value.
+   */
+  @SuppressWarnings("unchecked")
+  public void mergeAll(TagsMap<? extends T> source, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    if (source.stringTable != stringTable) {
+      mergeAllByKey(source, remapping);
+      return;
+    }
+    Object[] values = writableValues();
+    long sourceMask = source.getMaskVolatile();
+    long set = 0L;
+    long cleared = 0L;
+    for (long bits = sourceMask; bits != 0; bits &= (bits - 1)) {
+      int index = Long.numberOfTrailingZeros(bits);
+      T value = source.readValueAtIndex(index);
+      if (null == value) {
+        continue;
+      }
+      if (null == remapping) {
+        setRelease(values, index, intern(index, value));
+        set |= 1L << index;
+      } else if (null != mergeValueAtIndex(values, index, value, remapping)) {
+        set |= 1L << index;
+      } else {
+        cleared |= 1L << index;
+      }
+    }
+    casOr(set);
+    for (; cleared != 0; cleared &= (cleared - 1)) {
+      clearPresence(values, Long.numberOfTrailingZeros(cleared));
+    }
+    Object[] overflow = source.hybrid ? source.overflow : null;
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        mergeByKey((String) overflow[i], (T) overflow[i + 1], remapping);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void mergeAllByKey(TagsMap<? extends T> source, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    for (long bits = source.getMaskVolatile(); bits != 0; bits &= (bits - 1)) {
+      int index = Long.numberOfTrailingZeros(bits);
+      T value = source.readValueAtIndex(index);
+      if (null != value) {
+        mergeByKey(source.stringTable.get(index), value, remapping);
+      }
+    }
+    Object[] overflow = source.hybrid ? source.overflow : null;
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        mergeByKey((String) overflow[i], (T) overflow[i + 1], remapping);
+      }
+    }
   }
 
+  private void mergeByKey(String key, T value, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      if (null == remapping) {
+        setValueAtIndex(index, value);
+      } else if (null != mergeValueAtIndex(writableValues(), index, value, remapping)) {
+        casOr(1L << index);
+      } else {
+        casAnd(~(1L << index));
+      }
+    } else if (migrate(table)) {
+      mergeByKey(key, value, remapping);
+    } else if (hybrid) {
+      overflowMerge(table, key, value, remapping);
+    } else {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+  }
+
+  private T mergeValueAtIndex(Object[] values, int index, T value, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    while (true) {
+      T existing = readValueAtIndex(values, index);
+      T merged = null == existing ? value : remapping.apply(existing, value);
+      if (compareAndSet(values, index, existing, merged)) {
+        return merged;
+      }
+    }
+  }
+
+  /**
+   * Only the slots present in the mask, or written by the calling thread
+   * with {@link #putRaw(int, Object)}, are cleared.
+   */
   @Override
   public void clear() {
-    UNSAFE.putLongVolatile(this, MASK_OFFSET, 0L);
-    Arrays.fill(values, null);
+    long mask = getAndSetMask(this, 0L) | raw;
+    raw = 0L;
+    while (true) {
+      Object[] values = getValuesAcquire(this);
+      if (values != shared) {
+        while (mask != 0) {
+          setRelease(values, Long.numberOfTrailingZeros(mask), null);
+          mask &= (mask - 1);
+        }
+        break;
+      }
+      // if this fails, a writer installed a private copy, whose slots need clearing
+      if (compareAndSetValues(this, values, new Object[values.length])) {
+        break;
+      }
+    }
+    if (hybrid) {
+      overflow = null;
+    }
   }
 
+  /**
+   * Clears the map and returns it to the calling thread's {@link TagsMapPool}.
+   * The map must not be used by anything after it has been recycled.
+   * @throws IllegalStateException if the map has already been recycled
+   */
+  public void recycle() {
+    if (!compareAndSetPooled(this, 0, 1)) {
+      throw new IllegalStateException("already recycled");
+    }
+    clear();
+    TagsMapPool.release(this);
+  }
+
+  /**
+   * Called by {@link TagsMapPool} when it hands out a recycled map.
+   */
+  void reuse() {
+    compareAndSetPooled(this, 1, 0);
+  }
+
+  /**
+   * @return a live view of the present keys, including the overflow keys of a hybrid map
+   */
   @Override
   public Set<String> keySet() {
-    return stringTable.keySet();
+    return new KeySet();
   }
 
+  /**
+   * @return a live view of the present values
+   */
   @Override
   public Collection<T> values() {
-    long mask = getMaskVolatile();
-    List<T> values;
-    do {
-      values = new ArrayList<>(Long.bitCount(mask));
-      while (mask != 0) {
-        values.add(readValueAtIndex(Long.numberOfTrailingZeros(mask)));
-        mask &= (mask - 1);
-      }
-    } while (mask != getMaskVolatile());
-    return values;
+    return new Values();
   }
 
+  /**
+   * @return a live view of the present entries. Its iterators reuse a single
+   * entry, which is only valid until the next call to next(), so entries
+   * which need to be kept must be copied, as toArray() does.
+   */
   @Override
   public Set<Entry<String, T>> entrySet() {
-    throw new IllegalStateException();
+    return new EntrySet();
+  }
+
+  /**
+   * Calls the action with each present entry, without allocating.
+   */
+  @Override
+  public void forEach(BiConsumer<? super String, ? super T> action) {
+    long mask = getMaskVolatile();
+    while (mask != 0) {
+      int code = Long.numberOfTrailingZeros(mask);
+      T value = readValueAtIndex(code);
+      // the value may have been removed concurrently
+      if (null != value) {
+        action.accept(stringTable.get(code), value);
+      }
+      mask &= (mask - 1);
+    }
+    if (hybrid) {
+      forEachOverflow(action);
+    }
+  }
+
+  // kept out of forEach so it stays small enough to inline into callers
+  @SuppressWarnings("unchecked")
+  private void forEachOverflow(BiConsumer<? super String, ? super T> action) {
+    Object[] overflow = this.overflow;
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        action.accept((String) overflow[i], (T) overflow[i + 1]);
+      }
+    }
+  }
+
+  /**
+   * Calls the action with the code and value of each present registered key,
+   * without allocating or resolving the keys. Overflow entries have no code
+   * so are skipped.
+   */
+  public void forEachCode(IntObjConsumer<? super T> action) {
+    long mask = getMaskVolatile();
+    while (mask != 0) {
+      int code = Long.numberOfTrailingZeros(mask);
+      T value = readValueAtIndex(code);
+      if (null != value) {
+        action.accept(code, value);
+      }
+      mask &= (mask - 1);
+    }
   }
 
   @Override
   public T putIfAbsent(String key, T value) {
-    int index = stringTable.code(key);
-    if (index >= 0 && stringTable.get(index).equals(key)) {
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
       return setValueAtIndexIfUnset(index, value);
     }
-    return null;
+    if (migrate(table)) {
+      return putIfAbsent(key, value);
+    }
+    recordUnregisteredPut();
+    return hybrid ? overflowPut(table, key, value, true) : null;
   }
 
   @Override
   public boolean remove(Object key, Object value) {
-    throw new IllegalStateException();
+    if (null == value) {
+      return false;
+    }
+    StringTable table = stringTable;
+    int index = table.code((String) key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        if (null == existing || !existing.equals(value)) {
+          return false;
+        }
+        if (compareAndSet(values, index, existing, null)) {
+          clearPresence(values, index);
+          return true;
+        }
+      }
+    }
+    return hybrid && overflowRemove(table, key, value);
   }
 
   @Override
   public boolean replace(String key, T oldValue, T newValue) {
-    throw new IllegalStateException();
+    Objects.requireNonNull(oldValue);
+    Objects.requireNonNull(newValue);
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      T update = intern(index, newValue);
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        if (null == existing || !existing.equals(oldValue)) {
+          return false;
+        }
+        if (compareAndSet(values, index, existing, update)) {
+          return true;
+        }
+      }
+    }
+    return hybrid && null != overflowReplace(table, key, oldValue, newValue);
   }
 
   @Override
   public T replace(String key, T value) {
-    throw new IllegalStateException();
+    Objects.requireNonNull(value);
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      T update = intern(index, value);
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        if (null == existing || compareAndSet(values, index, existing, update)) {
+          return existing;
+        }
+      }
+    }
+    return hybrid ? overflowReplace(table, key, null, value) : null;
+  }
+
+  /**
+   * The mapping function may be called more than once if another thread
+   * puts a value and then removes it concurrently, but only the first
+   * value to be set is kept.
+   */
+  @Override
+  public T computeIfAbsent(String key, Function<? super String, ? extends T> mappingFunction) {
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        if (null != existing) {
+          return existing;
+        }
+        T value = mappingFunction.apply(key);
+        if (null == value) {
+          return null;
+        }
+        value = intern(index, value);
+        if (compareAndSet(values, index, null, value)) {
+          casOr(1L << index);
+          return value;
+        }
+      }
+    }
+    if (migrate(table)) {
+      return computeIfAbsent(key, mappingFunction);
+    }
+    if (hybrid) {
+      return ConcurrentMap.super.computeIfAbsent(key, mappingFunction);
+    }
+    throw new IllegalStateException("unregistered: " + key);
+  }
+
+  /**
+   * The remapping function may be called more than once when racing with
+   * other writers to the same key, like {@link #merge}.
+   */
+  @Override
+  public T computeIfPresent(String key, BiFunction<? super String, ? super T, ? extends T> remappingFunction) {
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        if (null == existing) {
+          return null;
+        }
+        T value = remappingFunction.apply(key, existing);
+        if (compareAndSetValueAtIndex(values, index, existing, value)) {
+          return value;
+        }
+      }
+    }
+    return hybrid ? ConcurrentMap.super.computeIfPresent(key, remappingFunction) : null;
+  }
+
+  /**
+   * The remapping function may be called more than once when racing with
+   * other writers to the same key, like {@link #merge}.
+   */
+  @Override
+  public T compute(String key, BiFunction<? super String, ? super T, ? extends T> remappingFunction) {
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        T value = remappingFunction.apply(key, existing);
+        if (null == existing && null == value) {
+          return null;
+        }
+        if (compareAndSetValueAtIndex(values, index, existing, value)) {
+          return value;
+        }
+      }
+    }
+    if (migrate(table)) {
+      return compute(key, remappingFunction);
+    }
+    if (hybrid) {
+      return ConcurrentMap.super.compute(key, remappingFunction);
+    }
+    throw new IllegalStateException("unregistered: " + key);
+  }
+
+  /**
+   * Merges with a CAS on the key's slot, so the remapping function may be
+   * called more than once when racing with other writers to the same key.
+   */
+  @Override
+  public T merge(String key, T value, BiFunction<? super T, ? super T, ? extends T> remappingFunction) {
+    Objects.requireNonNull(value);
+    Objects.requireNonNull(remappingFunction);
+    StringTable table = stringTable;
+    int index = table.code(key);
+    if (index >= 0 && table.get(index).equals(key)) {
+      Object[] values = writableValues();
+      while (true) {
+        T existing = readValueAtIndex(values, index);
+        T merged = null == existing ? value : remappingFunction.apply(existing, value);
+        if (compareAndSetValueAtIndex(values, index, existing, merged)) {
+          return merged;
+        }
+      }
+    }
+    if (migrate(table)) {
+      return merge(key, value, remappingFunction);
+    }
+    if (hybrid) {
+      return overflowMerge(table, key, value, remappingFunction);
+    }
+    throw new IllegalStateException("unregistered: " + key);
+  }
+
+  /**
+   * Replaces the value if it's still the expected value, and updates the mask
+   * to match: a null value removes the key.
+   */
+  private boolean compareAndSetValueAtIndex(Object[] values, int index, T expect, T value) {
+    if (null == value) {
+      if (compareAndSet(values, index, expect, null)) {
+        clearPresence(values, index);
+        return true;
+      }
+      return false;
+    }
+    if (compareAndSet(values, index, expect, intern(index, value))) {
+      casOr(1L << index);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Clears the key's bit after its slot was nulled, restoring it if a
+   * racing put filled the slot again before the bit was cleared.
+   */
+  private void clearPresence(Object[] values, int index) {
+    casAnd(~(1L << index));
+    if (null != readValueAtIndex(values, index)) {
+      casOr(1L << index);
+    }
   }
 
   @SuppressWarnings("unchecked")
-  private T readValueAtIndex(int index) {
-    return (T) UNSAFE.getObjectVolatile(values, arrayIndex(index));
+  T readValueAtIndex(int index) {
+    return (T) getAcquire(getValuesAcquire(this), index);
   }
 
   @SuppressWarnings("unchecked")
-  private T readValueAtIndex(long index) {
-    return (T) UNSAFE.getObjectVolatile(values, index);
+  private static <T> T readValueAtIndex(Object[] values, int index) {
+    return (T) getAcquire(values, index);
   }
 
   private T setValueAtIndexIfUnset(int index, T value) {
-    long arrayIndex = arrayIndex(index);
-    if (UNSAFE.compareAndSwapObject(values, arrayIndex, null, value)) {
+    Object[] values = writableValues();
+    if (compareAndSet(values, index, null, intern(index, value))) {
       casOr(1L << index);
       return null;
     }
-    return readValueAtIndex(arrayIndex);
+    return readValueAtIndex(values, index);
+  }
+
+  /**
+   * @return the values array, copied first if it's shared with a forked map
+   */
+  private Object[] writableValues() {
+    Object[] values = getValuesAcquire(this);
+    return values != shared ? values : copySharedValues(values);
+  }
+
+  private Object[] copySharedValues(Object[] values) {
+    Object[] copy = new Object[values.length];
+    for (int i = 0; i < copy.length; ++i) {
+      copy[i] = readValueAtIndex(values, i);
+    }
+    if (compareAndSetValues(this, values, copy)) {
+      return copy;
+    }
+    // another writer got there first
+    return getValuesAcquire(this);
+  }
+
+  /**
+   * @return true if the map has moved on from the table since it was read
+   */
+  private boolean superseded(StringTable table) {
+    return table != getStringTableAcquire(this);
+  }
+
+  /**
+   * Called when a key the table doesn't have is written, to move the map to
+   * the latest version of a {@link VersionedStringTable}, which might have it.
+   * Keys have the same codes in every version, and the values array already
+   * has room for the table's capacity, so this only publishes the new table,
+   * after copying any overflow entries of newly registered keys to their slots.
+   * @return true if the map has moved on from the table, so the write should be retried
+   */
+  private boolean migrate(StringTable table) {
+    if (superseded(table)) {
+      return true;
+    }
+    StringTable latest = table.latest();
+    if (latest == table) {
+      return false;
+    }
+    migrate(table, latest);
+    return true;
+  }
+
+  private synchronized void migrate(StringTable table, StringTable latest) {
+    if (stringTable != table) {
+      return;
+    }
+    if (!hybrid) {
+      setStringTableRelease(this, latest);
+      return;
+    }
+    // copy the entries before publishing the table, so readers of the new
+    // table find them, then remove them from the overflow, catching up with
+    // any writes made through the old table in the meantime
+    Object[] copied = new Object[latest.size()];
+    moveOverflow(latest, copied, false);
+    setStringTableRelease(this, latest);
+    while (!moveOverflow(latest, copied, true)) {
+      // an overflow entry changed, copy it again
+    }
+  }
+
+  /**
+   * Copies the overflow entries of keys registered in the table to their
+   * slots. A slot is only written if it's empty or still has the value last
+   * copied to it, so writes made through the new table aren't overwritten,
+   * and slots copied earlier whose entries have since been removed are cleared.
+   * @param copied the value last copied to each slot, or COPY_SUPERSEDED
+   * @return false if the entries couldn't be removed because the overflow changed
+   */
+  @SuppressWarnings("unchecked")
+  private boolean moveOverflow(StringTable table, Object[] copied, boolean remove) {
+    Object[] overflow = this.overflow;
+    Object[] values = writableValues();
+    long moved = 0L;
+    int remaining = 0;
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        String key = (String) overflow[i];
+        int code = table.code(key);
+        if (code < 0 || !table.get(code).equals(key)) {
+          ++remaining;
+          continue;
+        }
+        moved |= 1L << code;
+        Object value = intern(code, (T) overflow[i + 1]);
+        if (copied[code] != value) {
+          if (compareAndSet(values, code, copied[code], value)) {
+            casOr(1L << code);
+            copied[code] = value;
+          } else {
+            copied[code] = COPY_SUPERSEDED;
+          }
+        }
+      }
+    }
+    for (int code = 0; code < copied.length; ++code) {
+      Object value = copied[code];
+      if ((moved & (1L << code)) == 0 && null != value && COPY_SUPERSEDED != value) {
+        if (compareAndSet(values, code, value, null)) {
+          clearPresence(values, code);
+          copied[code] = null;
+        } else {
+          copied[code] = COPY_SUPERSEDED;
+        }
+      }
+    }
+    if (!remove || moved == 0L) {
+      return true;
+    }
+    Object[] unregistered = null;
+    if (remaining > 0) {
+      unregistered = new Object[remaining * 2];
+      int j = 0;
+      for (int i = 0; i < overflow.length; i += 2) {
+        String key = (String) overflow[i];
+        int code = table.code(key);
+        if (code < 0 || !table.get(code).equals(key)) {
+          unregistered[j++] = key;
+          unregistered[j++] = overflow[i + 1];
+        }
+      }
+    }
+    return compareAndSetOverflow(this, overflow, unregistered);
+  }
+
+  /**
+   * Writes the present entries in code order, copying the keys from the
+   * encodings cached in the string table.
+   * @throws java.nio.BufferOverflowException if the buffer is too small
+   */
+  public void writeTo(ByteBuffer buffer, TagsEncoder encoder) {
+    try {
+      writeTo(TagsEncoder.Output.of(buffer), encoder);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public void writeTo(OutputStream out, TagsEncoder encoder) throws IOException {
+    TagsEncoder.Output output = TagsEncoder.Output.of(out);
+    try {
+      writeTo(output, encoder);
+      output.flush();
+    } finally {
+      output.release();
+    }
+  }
+
+  private void writeTo(TagsEncoder.Output out, TagsEncoder encoder) throws IOException {
+    // read the mask first, so the table has the codes of any keys added by a migration
+    long mask = getMaskVolatile();
+    byte[][] keys = stringTable.encodedKeys(encoder);
+    Object[] overflow = hybrid ? this.overflow : null;
+    encoder.writeStart(Long.bitCount(mask) + (null == overflow ? 0 : overflow.length >>> 1), out);
+    int index = 0;
+    while (mask != 0) {
+      int code = Long.numberOfTrailingZeros(mask);
+      encoder.writeKey(index++, keys[code], out);
+      encoder.writeValue(readValueAtIndex(code), out);
+      mask &= (mask - 1);
+    }
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        encoder.writeKey(index++, encoder.encodeKey(((String) overflow[i]).getBytes(UTF_8)), out);
+        encoder.writeValue(overflow[i + 1], out);
+      }
+    }
+    encoder.writeEnd(out);
+  }
+
+  StringTable stringTable() {
+    return stringTable;
+  }
+
+  boolean isHybrid() {
+    return hybrid;
+  }
+
+  ValueInterner interner() {
+    return interner;
+  }
+
+  long mask() {
+    return getMaskVolatile();
   }
 
   public int indexFor(String key) {
@@ -229,54 +1013,489 @@ public class TagsMap<T> implements ConcurrentMap<String, T> {
   public void makeImmutable() {
     long mask = getMaskVolatile();
     this.mask = mask;
+    Object[] values = getValuesAcquire(this);
     while (mask != 0L) { // wait for any pending updates
       int index = Long.numberOfTrailingZeros(mask);
-      values[index] = readValueAtIndex(index);
+      values[index] = readValueAtIndex(values, index);
       mask &= (mask - 1);
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private T overflowGet(Object key) {
+    Object[] overflow = this.overflow;
+    int index = overflowIndex(overflow, key);
+    return index >= 0 ? (T) overflow[index + 1] : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T overflowPut(StringTable table, String key, T value, boolean onlyIfAbsent) {
+    while (true) {
+      Object[] overflow = this.overflow;
+      if (superseded(table)) {
+        return onlyIfAbsent ? putIfAbsent(key, value) : put(key, value);
+      }
+      int index = overflowIndex(overflow, key);
+      T old = index >= 0 ? (T) overflow[index + 1] : null;
+      if (index >= 0 && onlyIfAbsent) {
+        return old;
+      }
+      if (compareAndSetOverflow(this, overflow, withOverflowEntry(overflow, index, key, value))) {
+        return old;
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private T overflowRemove(StringTable table, Object key) {
+    while (true) {
+      Object[] overflow = this.overflow;
+      if (superseded(table)) {
+        return remove(key);
+      }
+      int index = overflowIndex(overflow, key);
+      if (index < 0) {
+        return null;
+      }
+      if (compareAndSetOverflow(this, overflow, withoutOverflowEntry(overflow, index))) {
+        return (T) overflow[index + 1];
+      }
+    }
+  }
+
+  private boolean overflowRemove(StringTable table, Object key, Object value) {
+    while (true) {
+      Object[] overflow = this.overflow;
+      if (superseded(table)) {
+        return remove(key, value);
+      }
+      int index = overflowIndex(overflow, key);
+      if (index < 0 || !overflow[index + 1].equals(value)) {
+        return false;
+      }
+      if (compareAndSetOverflow(this, overflow, withoutOverflowEntry(overflow, index))) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param expect the value to replace, or null to replace any value
+   * @return the replaced value, or null if nothing was replaced
+   */
+  @SuppressWarnings("unchecked")
+  private T overflowReplace(StringTable table, String key, Object expect, T value) {
+    while (true) {
+      Object[] overflow = this.overflow;
+      if (superseded(table)) {
+        if (null == expect) {
+          return replace(key, value);
+        }
+        return replace(key, (T) expect, value) ? (T) expect : null;
+      }
+      int index = overflowIndex(overflow, key);
+      if (index < 0 || (null != expect && !overflow[index + 1].equals(expect))) {
+        return null;
+      }
+      if (compareAndSetOverflow(this, overflow, withOverflowEntry(overflow, index, key, value))) {
+        return (T) overflow[index + 1];
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private T overflowMerge(StringTable table, String key, T value, BiFunction<? super T, ? super T, ? extends T> remapping) {
+    while (true) {
+      Object[] overflow = this.overflow;
+      if (superseded(table)) {
+        if (null == remapping) {
+          put(key, value);
+          return value;
+        }
+        return merge(key, value, remapping);
+      }
+      int index = overflowIndex(overflow, key);
+      T merged = index < 0 || null == remapping ? value : remapping.apply((T) overflow[index + 1], value);
+      Object[] updated = null != merged
+              ? withOverflowEntry(overflow, index, key, merged)
+              : index >= 0 ? withoutOverflowEntry(overflow, index) : overflow;
+      if (updated == overflow || compareAndSetOverflow(this, overflow, updated)) {
+        return merged;
+      }
+    }
+  }
+
+  private static Object[] withOverflowEntry(Object[] overflow, int index, String key, Object value) {
+    Object[] updated;
+    if (index >= 0) {
+      updated = overflow.clone();
+      updated[index + 1] = value;
+    } else {
+      updated = null == overflow ? new Object[2] : Arrays.copyOf(overflow, overflow.length + 2);
+      updated[updated.length - 2] = key;
+      updated[updated.length - 1] = value;
+    }
+    return updated;
+  }
+
+  private static Object[] withoutOverflowEntry(Object[] overflow, int index) {
+    if (overflow.length == 2) {
+      return null;
+    }
+    Object[] updated = new Object[overflow.length - 2];
+    System.arraycopy(overflow, 0, updated, 0, index);
+    System.arraycopy(overflow, index + 2, updated, index, overflow.length - index - 2);
+    return updated;
+  }
+
+  private static int overflowIndex(Object[] overflow, Object key) {
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        if (overflow[i].equals(key)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static int overflowIndexOf(Object[] overflow, CharSequence key) {
+    if (null != overflow) {
+      for (int i = 0; i < overflow.length; i += 2) {
+        if (((String) overflow[i]).contentEquals(key)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
   private long getMaskVolatile() {
-    return UNSAFE.getLongVolatile(this, MASK_OFFSET);
+    return getMaskAcquire(this);
   }
 
   private T setValueAtIndex(int index, T value) {
-    long arrayIndex = arrayIndex(index);
-    T old = readValueAtIndex(arrayIndex);
-    UNSAFE.putOrderedObject(values, arrayIndex, value);
+    Object[] values = writableValues();
+    T old = readValueAtIndex(values, index);
+    setRelease(values, index, intern(index, value));
     casOr(1L << index);
     return old;
   }
 
+  private <V extends T> V intern(int index, V value) {
+    return null == interner ? value : interner.intern(index, value);
+  }
+
   @SuppressWarnings("unchecked")
   private T removeValueAtIndex(int index) {
-    long arrayIndex = arrayIndex(index);
+    Object[] values = writableValues();
     casAnd(~(1L << index));
-    return (T) UNSAFE.getAndSetObject(values, arrayIndex, null);
+    return (T) getAndSet(values, index, null);
   }
 
   private void casOr(long bit) {
     long oldMask;
     long newMask;
+    int attempts = 0;
     do {
+      ++attempts;
       oldMask = getMaskVolatile();
       newMask = oldMask | bit;
     } while (oldMask != newMask
-            && !UNSAFE.compareAndSwapLong(this, MASK_OFFSET, oldMask, newMask));
+            && !weakCompareAndSetMask(this, oldMask, newMask));
+    recordMaskUpdate(attempts, newMask & ~oldMask);
   }
 
   private void casAnd(long bit) {
     long oldMask;
     long newMask;
+    int attempts = 0;
     do {
+      ++attempts;
       oldMask = getMaskVolatile();
       newMask = oldMask & bit;
     } while (oldMask != newMask
-            && !UNSAFE.compareAndSwapLong(this, MASK_OFFSET, oldMask, newMask));
+            && !weakCompareAndSetMask(this, oldMask, newMask));
+    recordMaskUpdate(attempts, 0L);
+  }
+
+  // the statistics hooks do nothing unless overridden by InstrumentedTagsMap
+
+  void recordUnregisteredPut() {
+  }
+
+  void recordMaskUpdate(int attempts, long filled) {
+  }
+
+  <V> V recordLookup(V value) {
+    return value;
+  }
+
+  /**
+   * A map over an instrumented table, which records its {@link TagsStatistics}.
+   * Kept apart so that uninstrumented maps neither hold the statistics nor
+   * check for them.
+   */
+  private static final class InstrumentedTagsMap<T> extends TagsMap<T> {
+    private final TagsStatistics.MapStatistics statistics;
+
+    InstrumentedTagsMap(StringTable stringTable, boolean hybrid, ValueInterner interner) {
+      super(stringTable, hybrid, interner);
+      this.statistics = stringTable.statistics().recordMap(0L);
+    }
+
+    InstrumentedTagsMap(InstrumentedTagsMap<T> parent, Object[] values) {
+      super(parent, values);
+      // the fork has held the keys it starts with
+      this.statistics = stringTable().statistics().recordMap(mask());
+    }
+
+    @Override
+    TagsMap<T> newFork(Object[] values) {
+      return new InstrumentedTagsMap<>(this, values);
+    }
+
+    @Override
+    void recordUnregisteredPut() {
+      statistics.recordUnregisteredPut();
+    }
+
+    @Override
+    void recordMaskUpdate(int attempts, long filled) {
+      if (attempts > 1) {
+        statistics.recordCasRetries(attempts - 1);
+      }
+      statistics.recordFills(filled);
+    }
+
+    @Override
+    <V> V recordLookup(V value) {
+      statistics.recordLookup(null != value);
+      return value;
+    }
+  }
+
+  /**
+   * Iterates over the keys present in the mask when it was created, reading
+   * each value as it goes and skipping values removed since, then over the
+   * overflow entries as they were when it was created.
+   */
+  private abstract class PresentIterator<E> implements Iterator<E> {
+    private long remaining = getMaskVolatile();
+    private final Object[] overflow = hybrid ? TagsMap.this.overflow : null;
+    private int overflowIndex;
+    private String nextKey;
+    private T nextValue;
+    private String lastKey;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+      if (null != nextKey) {
+        return true;
+      }
+      while (remaining != 0) {
+        int code = Long.numberOfTrailingZeros(remaining);
+        remaining &= (remaining - 1);
+        T value = readValueAtIndex(code);
+        if (null != value) {
+          nextKey = stringTable.get(code);
+          nextValue = value;
+          return true;
+        }
+      }
+      if (null != overflow && overflowIndex < overflow.length) {
+        nextKey = (String) overflow[overflowIndex];
+        nextValue = (T) overflow[overflowIndex + 1];
+        overflowIndex += 2;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastKey = nextKey;
+      nextKey = null;
+      return element(lastKey, nextValue);
+    }
+
+    @Override
+    public void remove() {
+      if (null == lastKey) {
+        throw new IllegalStateException();
+      }
+      TagsMap.this.remove(lastKey);
+      lastKey = null;
+    }
+
+    abstract E element(String key, T value);
+  }
+
+  private final class KeySet extends AbstractSet<String> {
+
+    @Override
+    public Iterator<String> iterator() {
+      return new PresentIterator<String>() {
+        @Override
+        String element(String key, T value) {
+          return key;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return TagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof String && containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return o instanceof String && null != TagsMap.this.remove(o);
+    }
+
+    @Override
+    public void clear() {
+      TagsMap.this.clear();
+    }
   }
 
-  private long arrayIndex(int index) {
-    return ARRAY_BASE_OFFSET + ((long)index << ARRAY_ELEMENT_SHIFT);
+  private final class Values extends AbstractCollection<T> {
+
+    @Override
+    public Iterator<T> iterator() {
+      return new PresentIterator<T>() {
+        @Override
+        T element(String key, T value) {
+          return value;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return TagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      TagsMap.this.clear();
+    }
   }
 
+  private final class EntrySet extends AbstractSet<Entry<String, T>> {
+
+    @Override
+    public Iterator<Entry<String, T>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return TagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      Object value = entry.getKey() instanceof String ? get(entry.getKey()) : null;
+      return null != value && value.equals(entry.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return entry.getKey() instanceof String && TagsMap.this.remove(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void clear() {
+      TagsMap.this.clear();
+    }
+
+    @Override
+    public Object[] toArray() {
+      return copyEntries().toArray();
+    }
+
+    @Override
+    public <A> A[] toArray(A[] a) {
+      return copyEntries().toArray(a);
+    }
+
+    private List<Entry<String, T>> copyEntries() {
+      List<Entry<String, T>> entries = new ArrayList<>(size());
+      TagsMap.this.forEach((key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+      return entries;
+    }
+  }
+
+  /**
+   * Is its own entry, so iterating the entries allocates a single object.
+   */
+  private final class EntryIterator extends PresentIterator<Entry<String, T>> implements Entry<String, T> {
+    private String key;
+    private T value;
+
+    @Override
+    Entry<String, T> element(String key, T value) {
+      this.key = key;
+      this.value = value;
+      return this;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public T getValue() {
+      return value;
+    }
+
+    @Override
+    public T setValue(T value) {
+      this.value = value;
+      return put(key, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return key.equals(entry.getKey()) && value.equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
 }
@@ -0,0 +1,94 @@
+package io.github.richardstartin.tagsmap;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_BASE_OFFSET;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_ELEMENT_SHIFT;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * The memory accesses made by {@link TagsMap}, named after the weakest
+ * access mode each one needs. This is the Java 8 implementation, where
+ * acquire reads are volatile reads and release writes are ordered puts.
+ * JDK 9+ loads the VarHandle implementation from META-INF/versions/9.
+ */
+final class TagsMapAccess {
+
+  private static final long MASK_OFFSET;
+  private static final long OVERFLOW_OFFSET;
+  private static final long VALUES_OFFSET;
+  private static final long STRING_TABLE_OFFSET;
+  private static final long POOLED_OFFSET;
+
+  static {
+    try {
+      MASK_OFFSET = UNSAFE.objectFieldOffset(TagsMap.class.getDeclaredField("mask"));
+      OVERFLOW_OFFSET = UNSAFE.objectFieldOffset(TagsMap.class.getDeclaredField("overflow"));
+      VALUES_OFFSET = UNSAFE.objectFieldOffset(TagsMap.class.getDeclaredField("values"));
+      STRING_TABLE_OFFSET = UNSAFE.objectFieldOffset(TagsMap.class.getDeclaredField("stringTable"));
+      POOLED_OFFSET = UNSAFE.objectFieldOffset(TagsMap.class.getDeclaredField("pooled"));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private TagsMapAccess() {
+  }
+
+  static Object getAcquire(Object[] values, int index) {
+    return UNSAFE.getObjectVolatile(values, arrayIndex(index));
+  }
+
+  static void setRelease(Object[] values, int index, Object value) {
+    UNSAFE.putOrderedObject(values, arrayIndex(index), value);
+  }
+
+  static boolean compareAndSet(Object[] values, int index, Object expect, Object update) {
+    return UNSAFE.compareAndSwapObject(values, arrayIndex(index), expect, update);
+  }
+
+  static Object getAndSet(Object[] values, int index, Object value) {
+    return UNSAFE.getAndSetObject(values, arrayIndex(index), value);
+  }
+
+  static long getMaskAcquire(TagsMap<?> map) {
+    return UNSAFE.getLongVolatile(map, MASK_OFFSET);
+  }
+
+  /**
+   * May fail spuriously, so only for use in retry loops.
+   */
+  static boolean weakCompareAndSetMask(TagsMap<?> map, long expect, long update) {
+    return UNSAFE.compareAndSwapLong(map, MASK_OFFSET, expect, update);
+  }
+
+  static long getAndSetMask(TagsMap<?> map, long mask) {
+    return UNSAFE.getAndSetLong(map, MASK_OFFSET, mask);
+  }
+
+  static Object[] getValuesAcquire(TagsMap<?> map) {
+    return (Object[]) UNSAFE.getObjectVolatile(map, VALUES_OFFSET);
+  }
+
+  static boolean compareAndSetValues(TagsMap<?> map, Object[] expect, Object[] update) {
+    return UNSAFE.compareAndSwapObject(map, VALUES_OFFSET, expect, update);
+  }
+
+  static boolean compareAndSetOverflow(TagsMap<?> map, Object[] expect, Object[] update) {
+    return UNSAFE.compareAndSwapObject(map, OVERFLOW_OFFSET, expect, update);
+  }
+
+  static StringTable getStringTableAcquire(TagsMap<?> map) {
+    return (StringTable) UNSAFE.getObjectVolatile(map, STRING_TABLE_OFFSET);
+  }
+
+  static void setStringTableRelease(TagsMap<?> map, StringTable stringTable) {
+    UNSAFE.putOrderedObject(map, STRING_TABLE_OFFSET, stringTable);
+  }
+
+  static boolean compareAndSetPooled(TagsMap<?> map, int expect, int update) {
+    return UNSAFE.compareAndSwapInt(map, POOLED_OFFSET, expect, update);
+  }
+
+  private static long arrayIndex(int index) {
+    return ARRAY_BASE_OFFSET + ((long)index << ARRAY_ELEMENT_SHIFT);
+  }
+}
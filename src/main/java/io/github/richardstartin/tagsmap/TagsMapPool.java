@@ -0,0 +1,113 @@
+package io.github.richardstartin.tagsmap;
+
+/**
+ * Per-thread free lists of cleared maps, keyed by {@link StringTable}.
+ * Maps are returned to the pool of the thread which calls
+ * {@link TagsMap#recycle()}, and each thread keeps at most
+ * {@link #MAX_POOLED_PER_TABLE} maps of each kind per table, for the
+ * {@link #MAX_POOLED_TABLES} tables it used most recently. The pooled maps
+ * reference their table, so a weakly keyed pool would never drop a table,
+ * and the bound keeps tables which are no longer used from being reachable
+ * for the life of the thread.
+ */
+public final class TagsMapPool {
+
+  static final int MAX_POOLED_PER_TABLE = 64;
+  static final int MAX_POOLED_TABLES = 8;
+
+  private static final ThreadLocal<Pools> POOLS = ThreadLocal.withInitial(Pools::new);
+
+  private TagsMapPool() {
+  }
+
+  /**
+   * @return an empty map, reused if the calling thread has one for the table
+   */
+  public static <T> TagsMap<T> acquire(StringTable table) {
+    TagsMap<T> map = freeLists(table).dense.pop();
+    if (null == map) {
+      return TagsMap.create(table);
+    }
+    map.reuse();
+    return map;
+  }
+
+  /**
+   * @return an empty hybrid map, reused if the calling thread has one for the table
+   */
+  public static <T> TagsMap<T> acquireHybrid(StringTable table) {
+    TagsMap<T> map = freeLists(table).hybrid.pop();
+    if (null == map) {
+      return TagsMap.createHybrid(table);
+    }
+    map.reuse();
+    return map;
+  }
+
+  static void release(TagsMap<?> map) {
+    if (null != map.interner()) {
+      // acquire only hands out maps without an interner
+      return;
+    }
+    FreeLists freeLists = freeLists(map.stringTable());
+    (map.isHybrid() ? freeLists.hybrid : freeLists.dense).push(map);
+  }
+
+  private static FreeLists freeLists(StringTable table) {
+    return POOLS.get().freeLists(table);
+  }
+
+  /**
+   * The free lists of a thread's most recently used tables, most recent first,
+   * so the table in use is usually found by the first comparison.
+   */
+  private static final class Pools {
+    private final StringTable[] tables = new StringTable[MAX_POOLED_TABLES];
+    private final FreeLists[] freeLists = new FreeLists[MAX_POOLED_TABLES];
+
+    FreeLists freeLists(StringTable table) {
+      int i = 0;
+      while (i < tables.length - 1 && null != tables[i] && tables[i] != table) {
+        ++i;
+      }
+      FreeLists found = tables[i] == table ? freeLists[i] : new FreeLists();
+      if (i > 0) {
+        // move to the front, which drops the least recently used table from a full pool
+        System.arraycopy(tables, 0, tables, 1, i);
+        System.arraycopy(freeLists, 0, freeLists, 1, i);
+        tables[0] = table;
+        freeLists[0] = found;
+      } else if (tables[0] != table) {
+        tables[0] = table;
+        freeLists[0] = found;
+      }
+      return found;
+    }
+  }
+
+  private static final class FreeLists {
+    final FreeList dense = new FreeList();
+    final FreeList hybrid = new FreeList();
+  }
+
+  private static final class FreeList {
+    private final TagsMap<?>[] maps = new TagsMap<?>[MAX_POOLED_PER_TABLE];
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    <T> TagsMap<T> pop() {
+      if (size == 0) {
+        return null;
+      }
+      TagsMap<?> map = maps[--size];
+      maps[size] = null;
+      return (TagsMap<T>) map;
+    }
+
+    void push(TagsMap<?> map) {
+      if (size < maps.length) {
+        maps[size++] = map;
+      }
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package io.github.richardstartin.tagsmap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by all the {@link TagsMap}s over a string table created by
+ * {@link StringTables#createInstrumented(String...)}. Maps over other tables
+ * don't record anything. The counters are striped, so maps on different
+ * threads don't contend on them, and are only summed by {@link #snapshot()}
+ * or the MBean registered by {@link #registerMBean(String)}.
+ * <p>
+ * Hits and misses count lookups by key, where a miss is either an absent or
+ * an unregistered key. Unregistered puts count puts for keys outside the
+ * table, whether they were rejected or went to a hybrid map's overflow.
+ * CAS retries count failed attempts to update a map's mask, and fills count
+ * the maps each key has been present in, only the first time it becomes
+ * present in each map, so the fill rate of a key is the share of maps that
+ * have held it.
+ */
+public final class TagsStatistics implements TagsStatisticsMXBean {
+
+  private final StringTable stringTable;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder unregisteredPuts = new LongAdder();
+  private final LongAdder casRetries = new LongAdder();
+  private final LongAdder maps = new LongAdder();
+  private final LongAdder[] fills;
+
+  TagsStatistics(StringTable stringTable) {
+    this.stringTable = stringTable;
+    this.fills = new LongAdder[stringTable.size()];
+    for (int i = 0; i < fills.length; ++i) {
+      fills[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * An immutable sum of the counters, which may be slightly inconsistent
+   * with each other if the maps are in use while it is taken.
+   */
+  public static final class Snapshot {
+    private final StringTable stringTable;
+    private final long hits;
+    private final long misses;
+    private final long unregisteredPuts;
+    private final long casRetries;
+    private final long maps;
+    private final long[] fills;
+
+    private Snapshot(StringTable stringTable, long hits, long misses, long unregisteredPuts,
+                     long casRetries, long maps, long[] fills) {
+      this.stringTable = stringTable;
+      this.hits = hits;
+      this.misses = misses;
+      this.unregisteredPuts = unregisteredPuts;
+      this.casRetries = casRetries;
+      this.maps = maps;
+      this.fills = fills;
+    }
+
+    public long hits() {
+      return hits;
+    }
+
+    public long misses() {
+      return misses;
+    }
+
+    public long unregisteredPuts() {
+      return unregisteredPuts;
+    }
+
+    public long casRetries() {
+      return casRetries;
+    }
+
+    public long maps() {
+      return maps;
+    }
+
+    public long fills(int code) {
+      return fills[code];
+    }
+
+    public double fillRate(int code) {
+      return 0 == maps ? 0D : (double) fills[code] / maps;
+    }
+
+    public double fillRate(String key) {
+      int code = stringTable.code(key);
+      if (code < 0 || !stringTable.get(code).equals(key)) {
+        throw new IllegalStateException("unregistered: " + key);
+      }
+      return fillRate(code);
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + hits + ", misses=" + misses + ", unregisteredPuts=" + unregisteredPuts
+              + ", casRetries=" + casRetries + ", maps=" + maps;
+    }
+  }
+
+  public Snapshot snapshot() {
+    long[] fills = new long[this.fills.length];
+    for (int i = 0; i < fills.length; ++i) {
+      fills[i] = this.fills[i].sum();
+    }
+    return new Snapshot(stringTable, hits.sum(), misses.sum(), unregisteredPuts.sum(),
+            casRetries.sum(), maps.sum(), fills);
+  }
+
+  /**
+   * Registers these statistics with the platform MBean server as
+   * {@code io.github.richardstartin.tagsmap:type=TagsStatistics,name=<name>}.
+   * @throws IllegalStateException if the name is invalid or already registered
+   */
+  public ObjectName registerMBean(String name) {
+    try {
+      ObjectName objectName = objectName(name);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      return objectName;
+    } catch (JMException e) {
+      throw new IllegalStateException("failed to register statistics as " + name, e);
+    }
+  }
+
+  public void unregisterMBean(String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    } catch (JMException e) {
+      throw new IllegalStateException("failed to unregister statistics " + name, e);
+    }
+  }
+
+  @Override
+  public long getHits() {
+    return hits.sum();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public long getUnregisteredPuts() {
+    return unregisteredPuts.sum();
+  }
+
+  @Override
+  public long getCasRetries() {
+    return casRetries.sum();
+  }
+
+  @Override
+  public long getMaps() {
+    return maps.sum();
+  }
+
+  @Override
+  public Map<String, Double> getFillRates() {
+    Snapshot snapshot = snapshot();
+    Map<String, Double> fillRates = new LinkedHashMap<>();
+    for (int code = 0; code < fills.length; ++code) {
+      fillRates.put(stringTable.get(code), snapshot.fillRate(code));
+    }
+    return fillRates;
+  }
+
+  /**
+   * @return the statistics of a new map, whose keys are counted as filled
+   */
+  MapStatistics recordMap(long filled) {
+    maps.increment();
+    MapStatistics map = new MapStatistics(this);
+    map.recordFills(filled);
+    return map;
+  }
+
+  private void recordFills(long bits) {
+    while (bits != 0) {
+      fills[Long.numberOfTrailingZeros(bits)].increment();
+      bits &= (bits - 1);
+    }
+  }
+
+  /**
+   * Records the statistics of one map, remembering which keys have been
+   * present in it so each key is counted as filled at most once per map.
+   */
+  static final class MapStatistics {
+
+    private static final AtomicLongFieldUpdater<MapStatistics> FILLED =
+            AtomicLongFieldUpdater.newUpdater(MapStatistics.class, "filled");
+
+    private final TagsStatistics statistics;
+    private volatile long filled;
+
+    private MapStatistics(TagsStatistics statistics) {
+      this.statistics = statistics;
+    }
+
+    void recordLookup(boolean hit) {
+      (hit ? statistics.hits : statistics.misses).increment();
+    }
+
+    void recordUnregisteredPut() {
+      statistics.unregisteredPuts.increment();
+    }
+
+    void recordCasRetries(int retries) {
+      statistics.casRetries.add(retries);
+    }
+
+    void recordFills(long bits) {
+      long filled;
+      do {
+        filled = this.filled;
+        if ((bits & ~filled) == 0) {
+          return;
+        }
+      } while (!FILLED.compareAndSet(this, filled, filled | bits));
+      statistics.recordFills(bits & ~filled);
+    }
+  }
+
+  private static ObjectName objectName(String name) throws JMException {
+    return new ObjectName("io.github.richardstartin.tagsmap:type=TagsStatistics,name=" + ObjectName.quote(name));
+  }
+}
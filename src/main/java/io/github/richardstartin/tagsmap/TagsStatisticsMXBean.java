@@ -0,0 +1,24 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link TagsStatistics} of a string table.
+ */
+public interface TagsStatisticsMXBean {
+
+  long getHits();
+
+  long getMisses();
+
+  long getUnregisteredPuts();
+
+  long getCasRetries();
+
+  long getMaps();
+
+  /**
+   * @return the fraction of maps which have had a value put for each key
+   */
+  Map<String, Double> getFillRates();
+}
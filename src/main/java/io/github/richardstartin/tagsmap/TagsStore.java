@@ -0,0 +1,377 @@
+package io.github.richardstartin.tagsmap;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A fixed number of tag records in a memory-mapped file, for snapshots of
+ * tags which need to survive a restart. The header holds the UTF-8 keys of
+ * the string table, and each record is a presence mask followed by a slot
+ * per key of a length, a checksum and up to maxValueLength bytes of UTF-8,
+ * so records and their slots are at fixed offsets. Opening a store only
+ * reads the header, values are decoded when they are read.
+ * <p>
+ * Until {@link #flush()}, the writes to the mapped file can reach the disk
+ * in any order, so the mask can't be relied on to publish a value which is
+ * completely written. Instead, each slot holds a CRC32 of its length and
+ * bytes, and a value which doesn't match its checksum is treated as absent.
+ * A crash part way through a write can lose the entries being written, or
+ * leave their previous values, but never exposes a torn value. The writes
+ * are only durable against a crash of the machine after {@link #flush()}.
+ * A store should only be written by one thread at a time.
+ */
+public final class TagsStore {
+
+  private static final int MAGIC = 0x54414753;
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 24;
+
+  /**
+   * Creates a new store, replacing the file if it exists.
+   * @param maxValueLength the maximum length of a value encoded as UTF-8
+   */
+  public static TagsStore create(Path path, StringTable table, int records, int maxValueLength) throws IOException {
+    if (table.size() > Long.SIZE) {
+      throw new IllegalStateException("too many keys for TagsStore: " + table.size());
+    }
+    if (records <= 0 || maxValueLength <= 0) {
+      throw new IllegalStateException("invalid dimensions: " + records + " records of " + maxValueLength + " bytes");
+    }
+    int keysBytes = 0;
+    for (int code = 0; code < table.size(); ++code) {
+      keysBytes += Integer.BYTES + table.getEncoded(code).length;
+    }
+    int recordsOffset = align(HEADER_BYTES + keysBytes);
+    long recordBytes = recordBytes(table.size(), maxValueLength);
+    long length = recordsOffset + records * recordBytes;
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalStateException("store too large: " + length + " bytes");
+    }
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+    buffer.putInt(4, VERSION);
+    buffer.putInt(8, table.size());
+    buffer.putInt(12, records);
+    buffer.putInt(16, maxValueLength);
+    buffer.putInt(20, recordsOffset);
+    int offset = HEADER_BYTES;
+    for (int code = 0; code < table.size(); ++code) {
+      byte[] key = table.getEncoded(code);
+      buffer.putInt(offset, key.length);
+      offset += Integer.BYTES;
+      for (byte b : key) {
+        buffer.put(offset++, b);
+      }
+    }
+    // the magic goes last, so a store whose header wasn't completely written can't be opened
+    buffer.putInt(0, MAGIC);
+    int[] positions = new int[table.size()];
+    for (int code = 0; code < positions.length; ++code) {
+      positions[code] = code;
+    }
+    return new TagsStore(buffer, table, positions, keys(table), records, maxValueLength, recordsOffset);
+  }
+
+  /**
+   * Opens an existing store with a string table of the keys in its header.
+   */
+  public static TagsStore open(Path path) throws IOException {
+    MappedByteBuffer buffer = map(path);
+    return open(buffer, StringTables.create(readKeys(buffer)));
+  }
+
+  /**
+   * Opens an existing store so that the maps it loads share the table,
+   * which must contain every key in the store's header.
+   */
+  public static TagsStore open(Path path, StringTable table) throws IOException {
+    return open(map(path), table);
+  }
+
+  private static TagsStore open(MappedByteBuffer buffer, StringTable table) {
+    String[] keys = readKeys(buffer);
+    int[] positions = new int[table.size()];
+    Arrays.fill(positions, -1);
+    for (int position = 0; position < keys.length; ++position) {
+      int code = table.code(keys[position]);
+      if (code < 0 || !table.get(code).equals(keys[position])) {
+        throw new IllegalStateException("store key not in string table: " + keys[position]);
+      }
+      positions[code] = position;
+    }
+    return new TagsStore(buffer, table, positions, keys, buffer.getInt(12), buffer.getInt(16), buffer.getInt(20));
+  }
+
+  private final MappedByteBuffer buffer;
+  private final StringTable stringTable;
+  // the position of each code's slot in a record, or -1 if the code has no slot
+  private final int[] positions;
+  private final String[] keys;
+  private final int records;
+  private final int maxValueLength;
+  private final int recordsOffset;
+  private final int recordBytes;
+
+  private TagsStore(MappedByteBuffer buffer, StringTable stringTable, int[] positions, String[] keys,
+                    int records, int maxValueLength, int recordsOffset) {
+    this.buffer = buffer;
+    this.stringTable = stringTable;
+    this.positions = positions;
+    this.keys = keys;
+    this.records = records;
+    this.maxValueLength = maxValueLength;
+    this.recordsOffset = recordsOffset;
+    this.recordBytes = (int) recordBytes(keys.length, maxValueLength);
+  }
+
+  public StringTable stringTable() {
+    return stringTable;
+  }
+
+  public int records() {
+    return records;
+  }
+
+  public boolean isEmpty(int record) {
+    return 0L == buffer.getLong(recordOffset(record));
+  }
+
+  /**
+   * Like {@link #get(int, String)}, verifies the value against its checksum.
+   */
+  public boolean contains(int record, String key) {
+    return null != get(record, key);
+  }
+
+  /**
+   * @return the value of the key in the record, decoded from the mapped file,
+   * or null if it doesn't match its checksum
+   */
+  public String get(int record, String key) {
+    int position = positionOf(key);
+    if (position < 0) {
+      return null;
+    }
+    int offset = recordOffset(record);
+    return (buffer.getLong(offset) & (1L << position)) != 0 ? readValue(offset, position) : null;
+  }
+
+  /**
+   * Writes the value to its slot and sets its bit in the record's mask, without touching the other slots.
+   * @throws IllegalStateException if the key has no slot or the value is longer than maxValueLength as UTF-8
+   */
+  public void put(int record, String key, CharSequence value) {
+    int position = positionOf(key);
+    if (position < 0) {
+      throw new IllegalStateException("unregistered: " + key);
+    }
+    byte[] utf8 = encode(key, value);
+    int offset = recordOffset(record);
+    long bit = 1L << position;
+    long mask = buffer.getLong(offset);
+    if ((mask & bit) != 0) {
+      buffer.putLong(offset, mask & ~bit);
+    }
+    writeValue(offset, position, utf8);
+    buffer.putLong(offset, mask | bit);
+  }
+
+  public void remove(int record, String key) {
+    int position = positionOf(key);
+    if (position >= 0) {
+      int offset = recordOffset(record);
+      buffer.putLong(offset, buffer.getLong(offset) & ~(1L << position));
+    }
+  }
+
+  public void clear(int record) {
+    buffer.putLong(recordOffset(record), 0L);
+  }
+
+  /**
+   * @return a new map over the store's string table with the entries of the record
+   */
+  public TagsMap<String> load(int record) {
+    TagsMap<String> map = TagsMap.create(stringTable);
+    int offset = recordOffset(record);
+    long mask = buffer.getLong(offset);
+    while (mask != 0) {
+      int position = Long.numberOfTrailingZeros(mask);
+      String value = readValue(offset, position);
+      if (null != value) {
+        map.put(keys[position], value);
+      }
+      mask &= (mask - 1);
+    }
+    return map;
+  }
+
+  /**
+   * Replaces the record with the entries of the map for the keys in the store.
+   * Entries are only rewritten if their value changed, and the record's mask
+   * is written once all the new values are in place.
+   */
+  public void store(int record, TagsMap<? extends CharSequence> map) {
+    int offset = recordOffset(record);
+    long mask = buffer.getLong(offset);
+    byte[][] changed = new byte[keys.length][];
+    long changedMask = 0L;
+    long newMask = 0L;
+    for (int position = 0; position < keys.length; ++position) {
+      CharSequence value = map.get(keys[position]);
+      if (null != value) {
+        long bit = 1L << position;
+        newMask |= bit;
+        String stored = (mask & bit) == 0 ? null : readValue(offset, position);
+        if (null == stored || !stored.contentEquals(value)) {
+          changed[position] = encode(keys[position], value);
+          changedMask |= bit;
+        }
+      }
+    }
+    if ((mask & changedMask) != 0) {
+      buffer.putLong(offset, mask & ~changedMask);
+    }
+    while (changedMask != 0) {
+      int position = Long.numberOfTrailingZeros(changedMask);
+      writeValue(offset, position, changed[position]);
+      changedMask &= (changedMask - 1);
+    }
+    buffer.putLong(offset, newMask);
+  }
+
+  /**
+   * Forces all writes to the file, see {@link MappedByteBuffer#force()}.
+   */
+  public void flush() {
+    buffer.force();
+  }
+
+  private int positionOf(String key) {
+    int code = stringTable.code(key);
+    return code >= 0 && stringTable.get(code).equals(key) ? positions[code] : -1;
+  }
+
+  private int recordOffset(int record) {
+    if (record < 0 || record >= records) {
+      throw new IllegalStateException("no record " + record + " in store of " + records);
+    }
+    return recordsOffset + record * recordBytes;
+  }
+
+  private int slotOffset(int recordOffset, int position) {
+    return recordOffset + Long.BYTES + position * (2 * Integer.BYTES + maxValueLength);
+  }
+
+  private String readValue(int recordOffset, int position) {
+    int offset = slotOffset(recordOffset, position);
+    int length = buffer.getInt(offset);
+    if (length < 0 || length > maxValueLength) {
+      return null;
+    }
+    byte[] utf8 = new byte[length];
+    for (int i = 0; i < utf8.length; ++i) {
+      utf8[i] = buffer.get(offset + 2 * Integer.BYTES + i);
+    }
+    return buffer.getInt(offset + Integer.BYTES) == checksum(utf8) ? new String(utf8, UTF_8) : null;
+  }
+
+  private void writeValue(int recordOffset, int position, byte[] utf8) {
+    int offset = slotOffset(recordOffset, position);
+    for (int i = 0; i < utf8.length; ++i) {
+      buffer.put(offset + 2 * Integer.BYTES + i, utf8[i]);
+    }
+    buffer.putInt(offset, utf8.length);
+    buffer.putInt(offset + Integer.BYTES, checksum(utf8));
+  }
+
+  // covers the length too, so a torn length can't select a prefix of the bytes
+  private static int checksum(byte[] utf8) {
+    CRC32 crc = new CRC32();
+    crc.update(utf8.length >>> 24);
+    crc.update(utf8.length >>> 16);
+    crc.update(utf8.length >>> 8);
+    crc.update(utf8.length);
+    crc.update(utf8, 0, utf8.length);
+    return (int) crc.getValue();
+  }
+
+  private byte[] encode(String key, CharSequence value) {
+    byte[] utf8 = value.toString().getBytes(UTF_8);
+    if (utf8.length > maxValueLength) {
+      throw new IllegalStateException("value of " + key + " is " + utf8.length
+              + " bytes, the store only has room for " + maxValueLength);
+    }
+    return utf8;
+  }
+
+  private static MappedByteBuffer map(Path path) throws IOException {
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, READ, WRITE)) {
+      if (channel.size() < HEADER_BYTES) {
+        throw new IllegalStateException("not a tags store: " + path);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IllegalStateException("not a tags store: " + path);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IllegalStateException("unsupported tags store version: " + buffer.getInt(4));
+    }
+    if (buffer.getInt(8) > Long.SIZE) {
+      throw new IllegalStateException("too many keys for TagsStore: " + buffer.getInt(8));
+    }
+    long expected = buffer.getInt(20) + buffer.getInt(12) * recordBytes(buffer.getInt(8), buffer.getInt(16));
+    if (buffer.capacity() < expected) {
+      throw new IllegalStateException("truncated tags store: " + path);
+    }
+    return buffer;
+  }
+
+  private static String[] readKeys(MappedByteBuffer buffer) {
+    String[] keys = new String[buffer.getInt(8)];
+    int offset = HEADER_BYTES;
+    for (int i = 0; i < keys.length; ++i) {
+      byte[] utf8 = new byte[buffer.getInt(offset)];
+      offset += Integer.BYTES;
+      for (int j = 0; j < utf8.length; ++j) {
+        utf8[j] = buffer.get(offset++);
+      }
+      keys[i] = new String(utf8, UTF_8);
+    }
+    return keys;
+  }
+
+  private static String[] keys(StringTable table) {
+    String[] keys = new String[table.size()];
+    for (int code = 0; code < keys.length; ++code) {
+      keys[code] = table.get(code);
+    }
+    return keys;
+  }
+
+  private static long recordBytes(int keyCount, int maxValueLength) {
+    return align(Long.BYTES + (long) keyCount * (2 * Integer.BYTES + maxValueLength));
+  }
+
+  private static int align(int bytes) {
+    return (bytes + 7) & -8;
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & -8L;
+  }
+}
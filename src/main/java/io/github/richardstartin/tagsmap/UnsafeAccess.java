@@ -0,0 +1,31 @@
+package io.github.richardstartin.tagsmap;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * The Unsafe instance and Object[] layout shared by the maps which still
+ * use Unsafe directly, see {@link TagsMapAccess} for TagsMap.
+ */
+final class UnsafeAccess {
+
+  static final Unsafe UNSAFE;
+  static final int ARRAY_BASE_OFFSET;
+  static final int ARRAY_ELEMENT_SHIFT;
+
+  static {
+    try {
+      Field f = Unsafe.class.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      UNSAFE = (Unsafe) f.get(null);
+      ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(Object[].class);
+      ARRAY_ELEMENT_SHIFT = Integer.numberOfTrailingZeros(UNSAFE.arrayIndexScale(Object[].class));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private UnsafeAccess() {
+  }
+}
@@ -0,0 +1,124 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_BASE_OFFSET;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_ELEMENT_SHIFT;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * Assigns small int codes to the values of each key of a {@link StringTable},
+ * for {@link EncodedTagsMap}s to store instead of references. Codes start at
+ * one and are never reassigned, so equal values of a key always have the same
+ * code, and a key can have at most maxCardinality distinct values. The width
+ * of the codes, and so the size of the maps, depends on maxCardinality.
+ */
+public final class ValueDictionary {
+
+  /**
+   * @param maxCardinality the maximum number of distinct values of each key
+   */
+  public static ValueDictionary create(StringTable table, int maxCardinality) {
+    return new ValueDictionary(table, maxCardinality);
+  }
+
+  private final StringTable stringTable;
+  private final int maxCardinality;
+  private final int codeBitsShift;
+  private final ConcurrentHashMap<Object, Integer>[] codes;
+  // the values of each key by code - 1, replaced by a larger copy under the key's lock
+  private final Object[][] values;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private ValueDictionary(StringTable stringTable, int maxCardinality) {
+    if (maxCardinality <= 0 || maxCardinality > 1 << 30) {
+      throw new IllegalStateException("invalid cardinality: " + maxCardinality);
+    }
+    this.stringTable = stringTable;
+    this.maxCardinality = maxCardinality;
+    // 8, 16 or 32 bits, keeping zero for absent keys
+    this.codeBitsShift = maxCardinality < 1 << 8 ? 3 : maxCardinality < 1 << 16 ? 4 : 5;
+    this.codes = new ConcurrentHashMap[stringTable.size()];
+    this.values = new Object[stringTable.size()][];
+    for (int i = 0; i < codes.length; ++i) {
+      codes[i] = new ConcurrentHashMap<>();
+    }
+  }
+
+  /**
+   * @return the code of the value for the key, assigning the next code to a new value
+   * @throws IllegalStateException if the key already has maxCardinality values
+   */
+  public int encode(int keyCode, Object value) {
+    Integer code = codes[keyCode].get(value);
+    return null != code ? code : assign(keyCode, value);
+  }
+
+  /**
+   * @return the code of the value for the key, or zero if it has never been encoded
+   */
+  public int codeOf(int keyCode, Object value) {
+    Integer code = codes[keyCode].get(value);
+    return null == code ? 0 : code;
+  }
+
+  /**
+   * @return the value with the code, or null for zero
+   * @throws IllegalStateException if the key code isn't in the string table
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T decode(int keyCode, int valueCode) {
+    if (keyCode < 0 || keyCode >= values.length) {
+      throw new IllegalStateException("invalid code: " + keyCode);
+    }
+    return 0 == valueCode ? null : (T) valuesOf(keyCode)[valueCode - 1];
+  }
+
+  public int cardinality(int keyCode) {
+    return codes[keyCode].size();
+  }
+
+  public StringTable stringTable() {
+    return stringTable;
+  }
+
+  int codeBitsShift() {
+    return codeBitsShift;
+  }
+
+  private int assign(int keyCode, Object value) {
+    ConcurrentHashMap<Object, Integer> codes = this.codes[keyCode];
+    synchronized (codes) {
+      Integer existing = codes.get(value);
+      if (null != existing) {
+        return existing;
+      }
+      int code = codes.size() + 1;
+      if (code > maxCardinality) {
+        throw new IllegalStateException("more than " + maxCardinality + " values for "
+                + stringTable.get(keyCode));
+      }
+      Object[] values = valuesOf(keyCode);
+      if (null == values || values.length < code) {
+        Object[] grown = new Object[Math.min(maxCardinality, null == values ? 8 : values.length * 2)];
+        if (null != values) {
+          System.arraycopy(values, 0, grown, 0, values.length);
+        }
+        values = grown;
+      }
+      values[code - 1] = value;
+      // publish the array before the code, so anything holding the code can decode it
+      UNSAFE.putObjectVolatile(this.values, arrayIndex(keyCode), values);
+      codes.put(value, code);
+      return code;
+    }
+  }
+
+  private Object[] valuesOf(int keyCode) {
+    return (Object[]) UNSAFE.getObjectVolatile(values, arrayIndex(keyCode));
+  }
+
+  private static long arrayIndex(int index) {
+    return ARRAY_BASE_OFFSET + ((long) index << ARRAY_ELEMENT_SHIFT);
+  }
+}
@@ -0,0 +1,110 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_BASE_OFFSET;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_ELEMENT_SHIFT;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * A bounded cache of canonical values for each key of a {@link StringTable},
+ * used by {@link TagsMap#create(StringTable, ValueInterner)} to deduplicate
+ * values as they are put. Each key has its own fixed-size region, so a key with
+ * many distinct values can't evict the values of other keys. A value is looked
+ * for in {@link #WAYS} consecutive slots of its key's region, and on a miss it
+ * takes an empty slot or replaces one of those at random. Racing writers may
+ * both miss and both keep their own instance, which only costs a duplicate.
+ */
+public final class ValueInterner {
+
+  static final int WAYS = 4;
+
+  /**
+   * @param capacityPerKey the number of values cached for each key, rounded up to a power of two
+   */
+  public static ValueInterner create(StringTable table, int capacityPerKey) {
+    return new ValueInterner(table, capacityPerKey);
+  }
+
+  private final StringTable stringTable;
+  private final Object[] cache;
+  private final int shift;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  private ValueInterner(StringTable stringTable, int capacityPerKey) {
+    if (capacityPerKey <= 0 || capacityPerKey > 1 << 20) {
+      throw new IllegalStateException("invalid capacity: " + capacityPerKey);
+    }
+    this.stringTable = stringTable;
+    this.shift = Math.max(Integer.numberOfTrailingZeros(WAYS), 32 - Integer.numberOfLeadingZeros(capacityPerKey - 1));
+    // room for the keys later versions of a VersionedStringTable may add
+    long length = (long) stringTable.capacity() << shift;
+    if (length > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("capacity " + capacityPerKey + " for " + stringTable.capacity()
+              + " keys needs " + length + " slots");
+    }
+    this.cache = new Object[(int) length];
+  }
+
+  /**
+   * @return a value equal to the value and of the same class, which is the
+   * value itself unless an equal value was interned for the key before
+   * @throws IllegalStateException if the code has no region in the cache
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T intern(int code, T value) {
+    // codes of keys later versions of the table may add have regions too
+    if (code < 0 || code >= stringTable.capacity()) {
+      throw new IllegalStateException("invalid code: " + code);
+    }
+    if (null == value) {
+      return null;
+    }
+    int base = code << shift;
+    int capacityMask = (1 << shift) - 1;
+    int hash = value.hashCode();
+    hash ^= hash >>> 16;
+    for (int way = 0; way < WAYS; ++way) {
+      long offset = arrayIndex(base + ((hash + way) & capacityMask));
+      Object cached = UNSAFE.getObjectVolatile(cache, offset);
+      if (null == cached) {
+        if (UNSAFE.compareAndSwapObject(cache, offset, null, value)) {
+          misses.increment();
+          return value;
+        }
+        cached = UNSAFE.getObjectVolatile(cache, offset);
+      }
+      if (cached.getClass() == value.getClass() && cached.equals(value)) {
+        hits.increment();
+        return (T) cached;
+      }
+    }
+    int victim = base + ((hash + ThreadLocalRandom.current().nextInt(WAYS)) & capacityMask);
+    UNSAFE.putOrderedObject(cache, arrayIndex(victim), value);
+    misses.increment();
+    return value;
+  }
+
+  public <T> T intern(String key, T value) {
+    int code = stringTable.code(key);
+    return code >= 0 && stringTable.get(code).equals(key) ? intern(code, value) : value;
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  StringTable stringTable() {
+    return stringTable;
+  }
+
+  private static long arrayIndex(int index) {
+    return ARRAY_BASE_OFFSET + ((long)index << ARRAY_ELEMENT_SHIFT);
+  }
+}
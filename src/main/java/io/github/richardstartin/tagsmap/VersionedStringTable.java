@@ -0,0 +1,87 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Holds the current version of a {@link StringTable} which keys can be added
+ * to at runtime, e.g. from dynamic configuration. Adding keys builds the next
+ * version on the calling thread and then publishes it, so nothing using the
+ * current version waits for the hash to be rebuilt. Keys keep their codes in
+ * every version, and maps over any version make room for capacity keys, so
+ * a {@link TagsMap} over an old version keeps working, and moves to the
+ * latest version without copying the first time it is written a key its
+ * version doesn't have. Lookups in maps over a version cost the same as in
+ * maps over any other table.
+ */
+public final class VersionedStringTable {
+
+  /**
+   * @param capacity the maximum number of keys in any version
+   */
+  public static VersionedStringTable create(int capacity, String... keys) {
+    return new VersionedStringTable(capacity, keys);
+  }
+
+  private final int capacity;
+  private volatile StringTable current;
+
+  private VersionedStringTable(int capacity, String[] keys) {
+    // codes are only stable in tables small enough to use displacements
+    if (capacity <= 0 || capacity > StringTable.MPHF_THRESHOLD) {
+      throw new IllegalStateException("invalid capacity: " + capacity);
+    }
+    if (keys.length > capacity) {
+      throw new IllegalStateException(keys.length + " keys exceed capacity " + capacity);
+    }
+    this.capacity = capacity;
+    this.current = new StringTable(keys.clone(), false, capacity, 0);
+  }
+
+  public StringTable current() {
+    return current;
+  }
+
+  public int version() {
+    return current.version();
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Publishes a new version with the keys which aren't already in the
+   * current version, which get the codes after the existing keys.
+   * @return the latest version, which is the current version if every key was already in it
+   * @throws IllegalStateException if the new version would exceed the capacity
+   */
+  public synchronized StringTable addKeys(String... keys) {
+    StringTable current = this.current;
+    Set<String> added = new LinkedHashSet<>();
+    for (String key : keys) {
+      int code = current.code(key);
+      if (code < 0 || !current.get(code).equals(key)) {
+        added.add(key);
+      }
+    }
+    if (added.isEmpty()) {
+      return current;
+    }
+    if (current.size() + added.size() > capacity) {
+      throw new IllegalStateException("adding " + added + " would exceed capacity " + capacity);
+    }
+    String[] next = new String[current.size() + added.size()];
+    for (int code = 0; code < current.size(); ++code) {
+      next[code] = current.get(code);
+    }
+    int code = current.size();
+    for (String key : added) {
+      next[code++] = key;
+    }
+    StringTable latest = new StringTable(next, false, capacity, current.version() + 1);
+    this.current = latest;
+    current.publishSuccessor(latest);
+    return latest;
+  }
+}
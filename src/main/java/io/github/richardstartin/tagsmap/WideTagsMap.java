@@ -0,0 +1,633 @@
+package io.github.richardstartin.tagsmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_BASE_OFFSET;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.ARRAY_ELEMENT_SHIFT;
+import static io.github.richardstartin.tagsmap.UnsafeAccess.UNSAFE;
+
+/**
+ * A dense concurrent hashmap over an arbitrary number of predefined keys.
+ * Presence is tracked in a bitmap of one long per 64 keys, and each word
+ * is updated independently, so writers to keys in different words don't
+ * contend on the same CAS.
+ * @param <T>
+ */
+public class WideTagsMap<T> implements ConcurrentMap<String, T> {
+
+  static final int LONG_ARRAY_BASE_OFFSET;
+  static final int LONG_ARRAY_ELEMENT_SHIFT;
+
+  static {
+    LONG_ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(long[].class);
+    LONG_ARRAY_ELEMENT_SHIFT = Integer.numberOfTrailingZeros(UNSAFE.arrayIndexScale(long[].class));
+  }
+
+  public static <T> WideTagsMap<T> create(StringTable table) {
+    return new WideTagsMap<>(table);
+  }
+
+  private final StringTable stringTable;
+  private final Object[] values;
+  private final long[] mask;
+
+  private WideTagsMap(StringTable stringTable) {
+    this.stringTable = stringTable;
+    this.values = new Object[stringTable.size()];
+    this.mask = new long[(stringTable.size() + 63) >>> 6];
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (int word = 0; word < mask.length; ++word) {
+      size += Long.bitCount(getMaskWordVolatile(word));
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (int word = 0; word < mask.length; ++word) {
+      if (getMaskWordVolatile(word) != 0L) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    int index = indexFor((String) key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      return (getMaskWordVolatile(index >>> 6) & (1L << index)) != 0;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    if (null != value) {
+      for (int word = 0; word < mask.length; ++word) {
+        long bits = getMaskWordVolatile(word);
+        while (bits != 0) {
+          int pos = (word << 6) + Long.numberOfTrailingZeros(bits);
+          if (value.equals(readValueAtIndex(pos))) {
+            return true;
+          }
+          bits &= (bits - 1);
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public T get(Object key) {
+    int index = indexFor((String) key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      return readValueAtIndex(index);
+    }
+    return null;
+  }
+
+  public T getExclusive(Object key) {
+    int index = indexFor((String) key);
+    if (index >= 0 && (mask[index >>> 6] & 1L << index) != 0
+            && stringTable.get(index).equals(key)) {
+      return getRaw(index);
+    }
+    return null;
+  }
+
+  public T getRaw(Object key) {
+    return getRaw(indexFor((String) key));
+  }
+
+  @SuppressWarnings("unchecked")
+  public T getRaw(int code) {
+    return (T) values[code];
+  }
+
+  public void putRaw(int code, T value) {
+    values[code] = value;
+  }
+
+  public void putRaw(String key, T value) {
+    values[indexFor(key)] = value;
+  }
+
+  public void removeRaw(String key) {
+    values[indexFor(key)] = null;
+  }
+
+  public void removeRaw(int code) {
+    values[code] = null;
+  }
+
+  @Override
+  public T put(String key, T value) {
+    int index = stringTable.code(key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      return setValueAtIndex(index, value);
+    }
+    throw new IllegalStateException("unregistered: " + key);
+  }
+
+  @Override
+  public T remove(Object key) {
+    int index = stringTable.code((String) key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      return removeValueAtIndex(index);
+    }
+    return null;
+  }
+
+  /**
+   * Writes all the values before publishing them with a single update of
+   * each word of the mask. When the source is a WideTagsMap over the same
+   * string table, the values are copied slot by slot without any key lookups.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void putAll(Map<? extends String, ? extends T> m) {
+    if (m instanceof WideTagsMap && ((WideTagsMap<?>) m).stringTable == stringTable) {
+      putAllCodes((WideTagsMap<? extends T>) m);
+      return;
+    }
+    long[] bits = new long[mask.length];
+    try {
+      for (Entry<? extends String, ? extends T> entry : m.entrySet()) {
+        String key = entry.getKey();
+        int index = stringTable.code(key);
+        if (!(index >= 0 && stringTable.get(index).equals(key))) {
+          throw new IllegalStateException("unregistered: " + key);
+        }
+        UNSAFE.putOrderedObject(values, arrayIndex(index), entry.getValue());
+        bits[index >>> 6] |= 1L << index;
+      }
+    } finally {
+      for (int word = 0; word < bits.length; ++word) {
+        if (bits[word] != 0L) {
+          casOr(word, bits[word]);
+        }
+      }
+    }
+  }
+
+  private void putAllCodes(WideTagsMap<? extends T> source) {
+    for (int word = 0; word < mask.length; ++word) {
+      long set = 0L;
+      for (long bits = source.getMaskWordVolatile(word); bits != 0; bits &= (bits - 1)) {
+        int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+        T value = source.readValueAtIndex(index);
+        if (null != value) {
+          UNSAFE.putOrderedObject(values, arrayIndex(index), value);
+          set |= 1L << index;
+        }
+      }
+      if (set != 0L) {
+        casOr(word, set);
+      }
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (int word = 0; word < mask.length; ++word) {
+      UNSAFE.putLongVolatile(mask, maskWordIndex(word), 0L);
+    }
+    Arrays.fill(values, null);
+  }
+
+  /**
+   * @return a live view of the present keys
+   */
+  @Override
+  public Set<String> keySet() {
+    return new KeySet();
+  }
+
+  /**
+   * @return a live view of the present values
+   */
+  @Override
+  public Collection<T> values() {
+    return new Values();
+  }
+
+  /**
+   * @return a live view of the present entries. Its iterators reuse a single
+   * entry, which is only valid until the next call to next(), so entries
+   * which need to be kept must be copied, as toArray() does.
+   */
+  @Override
+  public Set<Entry<String, T>> entrySet() {
+    return new EntrySet();
+  }
+
+  /**
+   * Calls the action with each present entry, without allocating.
+   */
+  @Override
+  public void forEach(BiConsumer<? super String, ? super T> action) {
+    for (int word = 0; word < mask.length; ++word) {
+      for (long bits = getMaskWordVolatile(word); bits != 0; bits &= (bits - 1)) {
+        int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+        T value = readValueAtIndex(index);
+        // the value may have been removed concurrently
+        if (null != value) {
+          action.accept(stringTable.get(index), value);
+        }
+      }
+    }
+  }
+
+  @Override
+  public T putIfAbsent(String key, T value) {
+    int index = stringTable.code(key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      return setValueAtIndexIfUnset(index, value);
+    }
+    return null;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (null == value) {
+      return false;
+    }
+    int index = stringTable.code((String) key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      long arrayIndex = arrayIndex(index);
+      while (true) {
+        T existing = readValueAtIndex(arrayIndex);
+        if (null == existing || !existing.equals(value)) {
+          return false;
+        }
+        if (UNSAFE.compareAndSwapObject(values, arrayIndex, existing, null)) {
+          clearPresence(index);
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean replace(String key, T oldValue, T newValue) {
+    Objects.requireNonNull(oldValue);
+    Objects.requireNonNull(newValue);
+    int index = stringTable.code(key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      long arrayIndex = arrayIndex(index);
+      while (true) {
+        T existing = readValueAtIndex(arrayIndex);
+        if (null == existing || !existing.equals(oldValue)) {
+          return false;
+        }
+        if (UNSAFE.compareAndSwapObject(values, arrayIndex, existing, newValue)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public T replace(String key, T value) {
+    Objects.requireNonNull(value);
+    int index = stringTable.code(key);
+    if (index >= 0 && stringTable.get(index).equals(key)) {
+      long arrayIndex = arrayIndex(index);
+      while (true) {
+        T existing = readValueAtIndex(arrayIndex);
+        if (null == existing || UNSAFE.compareAndSwapObject(values, arrayIndex, existing, value)) {
+          return existing;
+        }
+      }
+    }
+    return null;
+  }
+
+  public int indexFor(String key) {
+    return stringTable.code(key);
+  }
+
+  /**
+   * @see TagsMap#makeImmutable()
+   */
+  public void makeImmutable() {
+    for (int word = 0; word < mask.length; ++word) {
+      long bits = getMaskWordVolatile(word);
+      mask[word] = bits;
+      while (bits != 0L) { // wait for any pending updates
+        int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+        values[index] = readValueAtIndex(index);
+        bits &= (bits - 1);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private T readValueAtIndex(int index) {
+    return (T) UNSAFE.getObjectVolatile(values, arrayIndex(index));
+  }
+
+  @SuppressWarnings("unchecked")
+  private T readValueAtIndex(long index) {
+    return (T) UNSAFE.getObjectVolatile(values, index);
+  }
+
+  private T setValueAtIndexIfUnset(int index, T value) {
+    long arrayIndex = arrayIndex(index);
+    if (UNSAFE.compareAndSwapObject(values, arrayIndex, null, value)) {
+      casOr(index >>> 6, 1L << index);
+      return null;
+    }
+    return readValueAtIndex(arrayIndex);
+  }
+
+  private T setValueAtIndex(int index, T value) {
+    long arrayIndex = arrayIndex(index);
+    T old = readValueAtIndex(arrayIndex);
+    UNSAFE.putOrderedObject(values, arrayIndex, value);
+    casOr(index >>> 6, 1L << index);
+    return old;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T removeValueAtIndex(int index) {
+    long arrayIndex = arrayIndex(index);
+    casAnd(index >>> 6, ~(1L << index));
+    return (T) UNSAFE.getAndSetObject(values, arrayIndex, null);
+  }
+
+  /**
+   * Clears the key's bit after its slot was nulled, restoring it if a
+   * racing put filled the slot again before the bit was cleared.
+   */
+  private void clearPresence(int index) {
+    casAnd(index >>> 6, ~(1L << index));
+    if (null != readValueAtIndex(index)) {
+      casOr(index >>> 6, 1L << index);
+    }
+  }
+
+  private long getMaskWordVolatile(int word) {
+    return UNSAFE.getLongVolatile(mask, maskWordIndex(word));
+  }
+
+  private void casOr(int word, long bit) {
+    long offset = maskWordIndex(word);
+    long oldMask;
+    long newMask;
+    do {
+      oldMask = UNSAFE.getLongVolatile(mask, offset);
+      newMask = oldMask | bit;
+    } while (oldMask != newMask
+            && !UNSAFE.compareAndSwapLong(mask, offset, oldMask, newMask));
+  }
+
+  private void casAnd(int word, long bit) {
+    long offset = maskWordIndex(word);
+    long oldMask;
+    long newMask;
+    do {
+      oldMask = UNSAFE.getLongVolatile(mask, offset);
+      newMask = oldMask & bit;
+    } while (oldMask != newMask
+            && !UNSAFE.compareAndSwapLong(mask, offset, oldMask, newMask));
+  }
+
+  private static long arrayIndex(int index) {
+    return ARRAY_BASE_OFFSET + ((long)index << ARRAY_ELEMENT_SHIFT);
+  }
+
+  private static long maskWordIndex(int word) {
+    return LONG_ARRAY_BASE_OFFSET + ((long)word << LONG_ARRAY_ELEMENT_SHIFT);
+  }
+
+  /**
+   * Iterates over the keys present in each word of the mask when the
+   * iterator reaches it, reading each value as it goes and skipping values
+   * removed since.
+   */
+  private abstract class PresentIterator<E> implements Iterator<E> {
+    private int word = -1;
+    private long remaining;
+    private int nextIndex = -1;
+    private T nextValue;
+    private int lastIndex = -1;
+
+    @Override
+    public boolean hasNext() {
+      if (nextIndex >= 0) {
+        return true;
+      }
+      while (true) {
+        while (remaining != 0) {
+          int index = (word << 6) + Long.numberOfTrailingZeros(remaining);
+          remaining &= (remaining - 1);
+          T value = readValueAtIndex(index);
+          if (null != value) {
+            nextIndex = index;
+            nextValue = value;
+            return true;
+          }
+        }
+        if (word + 1 >= mask.length) {
+          return false;
+        }
+        remaining = getMaskWordVolatile(++word);
+      }
+    }
+
+    @Override
+    public E next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastIndex = nextIndex;
+      nextIndex = -1;
+      return element(stringTable.get(lastIndex), nextValue);
+    }
+
+    @Override
+    public void remove() {
+      if (lastIndex < 0) {
+        throw new IllegalStateException();
+      }
+      removeValueAtIndex(lastIndex);
+      lastIndex = -1;
+    }
+
+    abstract E element(String key, T value);
+  }
+
+  private final class KeySet extends AbstractSet<String> {
+
+    @Override
+    public Iterator<String> iterator() {
+      return new PresentIterator<String>() {
+        @Override
+        String element(String key, T value) {
+          return key;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return WideTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return o instanceof String && containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      return o instanceof String && null != WideTagsMap.this.remove(o);
+    }
+
+    @Override
+    public void clear() {
+      WideTagsMap.this.clear();
+    }
+  }
+
+  private final class Values extends AbstractCollection<T> {
+
+    @Override
+    public Iterator<T> iterator() {
+      return new PresentIterator<T>() {
+        @Override
+        T element(String key, T value) {
+          return value;
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return WideTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      WideTagsMap.this.clear();
+    }
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<String, T>> {
+
+    @Override
+    public Iterator<Entry<String, T>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return WideTagsMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      Object value = entry.getKey() instanceof String ? get(entry.getKey()) : null;
+      return null != value && value.equals(entry.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return entry.getKey() instanceof String && WideTagsMap.this.remove(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void clear() {
+      WideTagsMap.this.clear();
+    }
+
+    @Override
+    public Object[] toArray() {
+      return copyEntries().toArray();
+    }
+
+    @Override
+    public <A> A[] toArray(A[] a) {
+      return copyEntries().toArray(a);
+    }
+
+    private List<Entry<String, T>> copyEntries() {
+      List<Entry<String, T>> entries = new ArrayList<>(size());
+      WideTagsMap.this.forEach((key, value) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(key, value)));
+      return entries;
+    }
+  }
+
+  /**
+   * Is its own entry, so iterating the entries allocates a single object.
+   */
+  private final class EntryIterator extends PresentIterator<Entry<String, T>> implements Entry<String, T> {
+    private String key;
+    private T value;
+
+    @Override
+    Entry<String, T> element(String key, T value) {
+      this.key = key;
+      this.value = value;
+      return this;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public T getValue() {
+      return value;
+    }
+
+    @Override
+    public T setValue(T value) {
+      this.value = value;
+      return put(key, value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> entry = (Entry<?, ?>) o;
+      return key.equals(entry.getKey()) && value.equals(entry.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package io.github.richardstartin.tagsmap;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The memory accesses made by {@link TagsMap}, using VarHandles so reads
+ * can be acquires and publication can be a release, which are cheaper
+ * than volatile accesses on weakly ordered CPUs, and compile to the same
+ * instructions on x86.
+ */
+final class TagsMapAccess {
+
+  private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+  private static final VarHandle MASK;
+  private static final VarHandle OVERFLOW;
+  private static final VarHandle VALUES_FIELD;
+  private static final VarHandle STRING_TABLE;
+  private static final VarHandle POOLED;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(TagsMap.class, MethodHandles.lookup());
+      MASK = lookup.findVarHandle(TagsMap.class, "mask", long.class);
+      OVERFLOW = lookup.findVarHandle(TagsMap.class, "overflow", Object[].class);
+      VALUES_FIELD = lookup.findVarHandle(TagsMap.class, "values", Object[].class);
+      STRING_TABLE = lookup.findVarHandle(TagsMap.class, "stringTable", StringTable.class);
+      POOLED = lookup.findVarHandle(TagsMap.class, "pooled", int.class);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private TagsMapAccess() {
+  }
+
+  static Object getAcquire(Object[] values, int index) {
+    return VALUES.getAcquire(values, index);
+  }
+
+  static void setRelease(Object[] values, int index, Object value) {
+    VALUES.setRelease(values, index, value);
+  }
+
+  static boolean compareAndSet(Object[] values, int index, Object expect, Object update) {
+    return VALUES.compareAndSet(values, index, expect, update);
+  }
+
+  static Object getAndSet(Object[] values, int index, Object value) {
+    return VALUES.getAndSet(values, index, value);
+  }
+
+  static long getMaskAcquire(TagsMap<?> map) {
+    return (long) MASK.getAcquire(map);
+  }
+
+  /**
+   * May fail spuriously, so only for use in retry loops.
+   */
+  static boolean weakCompareAndSetMask(TagsMap<?> map, long expect, long update) {
+    return MASK.weakCompareAndSet(map, expect, update);
+  }
+
+  static long getAndSetMask(TagsMap<?> map, long mask) {
+    return (long) MASK.getAndSet(map, mask);
+  }
+
+  static Object[] getValuesAcquire(TagsMap<?> map) {
+    return (Object[]) VALUES_FIELD.getAcquire(map);
+  }
+
+  static boolean compareAndSetValues(TagsMap<?> map, Object[] expect, Object[] update) {
+    return VALUES_FIELD.compareAndSet(map, expect, update);
+  }
+
+  static boolean compareAndSetOverflow(TagsMap<?> map, Object[] expect, Object[] update) {
+    return OVERFLOW.compareAndSet(map, expect, update);
+  }
+
+  static StringTable getStringTableAcquire(TagsMap<?> map) {
+    return (StringTable) STRING_TABLE.getAcquire(map);
+  }
+
+  static void setStringTableRelease(TagsMap<?> map, StringTable stringTable) {
+    STRING_TABLE.setRelease(map, stringTable);
+  }
+
+  static boolean compareAndSetPooled(TagsMap<?> map, int expect, int update) {
+    return POOLED.compareAndSet(map, expect, update);
+  }
+}
@@ -0,0 +1,98 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContendedTagsMapTest {
+
+  @Test
+  public void getAndSet() {
+    ContendedTagsMap<Object> map = ContendedTagsMap.create(StringTables.create("x1", "x2", "x3"));
+    assertTrue(map.isEmpty());
+    assertNull(map.put("x1", 1));
+    assertEquals(1, map.put("x1", 2));
+    assertNull(map.putIfAbsent("x2", 3));
+    assertEquals(3, map.putIfAbsent("x2", 4));
+    assertEquals(2, map.get("x1"));
+    assertEquals(3, map.getRaw(map.indexFor("x2")));
+    assertNull(map.get("x3"));
+    assertNull(map.get("y1"));
+    assertThrows(IllegalStateException.class, () -> map.put("y1", 1));
+    assertEquals(2, map.size());
+    assertTrue(map.containsKey("x1"));
+    assertFalse(map.containsKey("x3"));
+    assertTrue(map.containsValue(3));
+    assertEquals(new HashSet<>(Arrays.asList(2, 3)), new HashSet<>(map.values()));
+    assertEquals(2, map.remove("x1"));
+    assertFalse(map.containsKey("x1"));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void nonStringKeys() {
+    ContendedTagsMap<Object> map = ContendedTagsMap.create(StringTables.create("x1"));
+    map.put("x1", 1);
+    assertNull(map.get(1));
+    assertFalse(map.containsKey(new StringBuilder("x1")));
+    assertNull(map.remove(1));
+    assertFalse(map.remove(1, 1));
+    assertEquals(1, map.get("x1"));
+  }
+
+  @Test
+  public void conditionalWritesAndViews() {
+    ContendedTagsMap<Object> map = ContendedTagsMap.create(StringTables.create("x1", "x2", "x3"));
+    assertNull(map.replace("x1", 1));
+    assertFalse(map.containsKey("x1"));
+    map.put("x1", 1);
+    assertEquals(1, map.replace("x1", 2));
+    assertFalse(map.replace("x1", 1, 3));
+    assertTrue(map.replace("x1", 2, 3));
+    assertFalse(map.remove("x1", 2));
+    assertTrue(map.remove("x1", 3));
+    assertTrue(map.isEmpty());
+    assertFalse(map.replace("y1", 1, 2));
+    map.put("x1", 1);
+    map.put("x3", 3);
+    Map<String, Object> copy = new HashMap<>(map);
+    assertEquals(2, copy.size());
+    assertEquals(copy.entrySet(), map.entrySet());
+    assertEquals(new HashSet<>(Arrays.asList("x1", "x3")), map.keySet());
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      entry.setValue(4);
+    }
+    assertEquals(4, map.get("x3"));
+    map.keySet().remove("x1");
+    assertEquals(Collections.singleton("x3"), map.keySet());
+    assertTrue(map.entrySet().remove(new AbstractMap.SimpleEntry<>("x3", 4)));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void concurrentWritersToDistinctKeys() throws InterruptedException {
+    String[] keys = {"x1", "x2", "x3", "x4"};
+    ContendedTagsMap<Integer> map = ContendedTagsMap.create(StringTables.create(keys));
+    Thread[] threads = new Thread[keys.length];
+    for (int t = 0; t < threads.length; ++t) {
+      String key = keys[t];
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i <= 10_000; ++i) {
+          map.put(key, i);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (String key : keys) {
+      assertEquals(10_000, map.get(key));
+    }
+    assertEquals(keys.length, map.size());
+  }
+}
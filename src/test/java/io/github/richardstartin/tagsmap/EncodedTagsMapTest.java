@@ -0,0 +1,205 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncodedTagsMapTest {
+
+  @ParameterizedTest
+  @ValueSource(ints = {4, 255, 256, 70_000})
+  public void getAndSet(int maxCardinality) {
+    String[] keys = new String[20];
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = "key" + i;
+    }
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create(keys), maxCardinality);
+    EncodedTagsMap<String> map = EncodedTagsMap.create(dictionary);
+    assertTrue(map.isEmpty());
+    for (int i = 0; i < keys.length; ++i) {
+      assertNull(map.put(keys[i], "v" + (i % 3)));
+    }
+    assertEquals(keys.length, map.size());
+    for (int i = 0; i < keys.length; ++i) {
+      assertEquals("v" + (i % 3), map.get(keys[i]));
+      assertEquals(1, dictionary.cardinality(map.indexFor(keys[i])));
+    }
+    assertEquals("v0", map.put("key0", "w"));
+    assertEquals("w", map.get("key0"));
+    assertEquals("v1", map.get("key1"));
+    assertEquals(2, map.valueCode("key0"));
+    assertEquals(0, map.valueCode("unknown"));
+    assertNull(map.get("unknown"));
+    assertThrows(IllegalStateException.class, () -> map.put("unknown", "x"));
+    assertEquals("w", map.putIfAbsent("key0", "v0"));
+    assertTrue(map.containsValue("w"));
+    assertFalse(map.containsValue("never"));
+    assertFalse(map.remove("key0", "v0"));
+    assertTrue(map.remove("key0", "w"));
+    assertFalse(map.containsKey("key0"));
+    assertNull(map.replace("key0", "v0"));
+    assertNull(map.putIfAbsent("key0", "v0"));
+    assertTrue(map.replace("key0", "v0", "w"));
+    assertFalse(map.replace("key0", "v0", "w"));
+    assertEquals("w", map.replace("key0", "v0"));
+    assertEquals(keys.length, map.size());
+    assertEquals(new HashSet<>(Arrays.asList("v0", "v1", "v2")), new HashSet<>(map.values()));
+    assertEquals("v1", map.remove("key1"));
+    assertEquals(keys.length - 1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void equalityOnCodes() {
+    StringTable table = StringTables.create("method", "status", "region");
+    ValueDictionary dictionary = ValueDictionary.create(table, 16);
+    EncodedTagsMap<String> a = EncodedTagsMap.create(dictionary);
+    EncodedTagsMap<String> b = EncodedTagsMap.create(dictionary);
+    a.put("method", "GET");
+    a.put("status", "2xx");
+    b.put("status", new String("2xx"));
+    assertNotEquals(a, b);
+    assertFalse(a.sameCodes(b));
+    b.put("method", new StringBuilder("GE").append('T').toString());
+    assertTrue(a.sameCodes(b));
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    b.put("region", "eu");
+    assertNotEquals(a, b);
+    EncodedTagsMap<String> other = EncodedTagsMap.create(ValueDictionary.create(table, 16));
+    other.put("method", "GET");
+    other.put("status", "2xx");
+    assertFalse(a.sameCodes(other));
+    assertEquals(a, other);
+  }
+
+  @Test
+  public void equalityFollowsMapContract() {
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create("method", "status"), 16);
+    EncodedTagsMap<String> encoded = EncodedTagsMap.create(dictionary);
+    Map<String, String> hashMap = new HashMap<>();
+    assertEquals(hashMap, encoded);
+    assertEquals(encoded, hashMap);
+    encoded.put("method", "GET");
+    hashMap.put("method", "GET");
+    assertEquals(hashMap, encoded);
+    assertEquals(encoded, hashMap);
+    assertEquals(hashMap.hashCode(), encoded.hashCode());
+    hashMap.put("status", "200");
+    assertNotEquals(hashMap, encoded);
+    assertNotEquals(encoded, hashMap);
+    encoded.put("status", "500");
+    assertNotEquals(encoded, hashMap);
+    assertNotEquals(encoded, Collections.singletonMap(1, "GET"));
+  }
+
+  @Test
+  public void liveViews() {
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create("a", "b", "c"), 16);
+    EncodedTagsMap<String> map = EncodedTagsMap.create(dictionary);
+    map.put("a", "x");
+    assertEquals(Collections.singleton("a"), map.keySet());
+    assertEquals(Collections.singletonList("x"), Arrays.asList(map.values().toArray()));
+    Map<String, String> copy = new HashMap<>(map);
+    assertEquals(Collections.singletonMap("a", "x"), copy);
+    map.put("c", "y");
+    assertEquals(new HashSet<>(Arrays.asList("a", "c")), map.keySet());
+    Map<String, String> visited = new HashMap<>();
+    map.forEach(visited::put);
+    assertEquals(visited, map);
+    assertEquals(2, map.entrySet().size());
+    Iterator<Map.Entry<String, String>> it = map.entrySet().iterator();
+    assertEquals("a", it.next().getKey());
+    it.remove();
+    assertFalse(map.containsKey("a"));
+    assertTrue(map.keySet().remove("c"));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void putAllCopiesCodes() {
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create("a", "b", "c"), 16);
+    EncodedTagsMap<String> source = EncodedTagsMap.create(dictionary);
+    source.put("a", "x");
+    source.put("c", "y");
+    EncodedTagsMap<String> target = EncodedTagsMap.create(dictionary);
+    target.put("b", "z");
+    target.putAll(source);
+    assertEquals(3, target.size());
+    assertEquals("x", target.get("a"));
+    assertEquals("y", target.get("c"));
+    EncodedTagsMap<String> other = EncodedTagsMap.create(ValueDictionary.create(dictionary.stringTable(), 16));
+    other.putAll(source);
+    assertEquals(source, other);
+  }
+
+  @Test
+  public void rejectInvalidCodes() {
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create("a", "b", "c"), 16);
+    EncodedTagsMap<String> map = EncodedTagsMap.create(dictionary);
+    assertEquals(0, map.valueCode(2));
+    assertThrows(IllegalStateException.class, () -> map.valueCode(-1));
+    assertThrows(IllegalStateException.class, () -> map.valueCode(100_000));
+    assertThrows(IllegalStateException.class, () -> dictionary.decode(-1, 1));
+    assertThrows(IllegalStateException.class, () -> dictionary.decode(3, 1));
+  }
+
+  @Test
+  public void cardinalityLimit() {
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create("method"), 3);
+    EncodedTagsMap<String> map = EncodedTagsMap.create(dictionary);
+    map.put("method", "GET");
+    map.put("method", "PUT");
+    map.put("method", "POST");
+    map.put("method", "GET");
+    assertThrows(IllegalStateException.class, () -> map.put("method", "DELETE"));
+    assertEquals("GET", map.get("method"));
+  }
+
+  @Test
+  public void rejectedWritesDontUseCodes() {
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create("k", "j"), 2);
+    EncodedTagsMap<String> map = EncodedTagsMap.create(dictionary);
+    map.put("k", "a");
+    assertEquals("a", map.putIfAbsent("k", "b"));
+    assertNull(map.replace("j", "b"));
+    assertFalse(map.replace("k", "x", "b"));
+    assertEquals(1, dictionary.cardinality(map.indexFor("k")));
+    assertEquals(0, dictionary.cardinality(map.indexFor("j")));
+    assertEquals("a", map.put("k", "c"));
+    assertEquals("c", map.get("k"));
+  }
+
+  @Test
+  public void concurrentWritersToAdjacentKeys() throws InterruptedException {
+    String[] keys = {"k0", "k1", "k2", "k3", "k4", "k5", "k6", "k7"};
+    ValueDictionary dictionary = ValueDictionary.create(StringTables.create(keys), 100);
+    EncodedTagsMap<Integer> map = EncodedTagsMap.create(dictionary);
+    Thread[] threads = new Thread[keys.length];
+    for (int t = 0; t < threads.length; ++t) {
+      String key = keys[t];
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 10_000; ++i) {
+          map.put(key, i % 100);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (String key : keys) {
+      assertEquals(99, map.get(key));
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeneratedTagsMapTest {
+
+  // "Aa" and "BB" have the same hash code
+  @TagKeys({"http.method", "http.status_code", "db.type", "Aa", "BB", "class"})
+  interface TestTags {
+  }
+
+  @Test
+  public void getAndPut() {
+    TestTagsTagsMap<Object> map = TestTagsTagsMap.create();
+    assertTrue(map.isEmpty());
+    assertNull(map.put("http.method", "GET"));
+    assertEquals("GET", map.put(TestTagsTagsMap.HTTP_METHOD, "POST"));
+    assertEquals("POST", map.get("http.method"));
+    assertNull(map.put("Aa", 1));
+    assertNull(map.putIfAbsent("BB", 2));
+    assertEquals(2, map.putIfAbsent("BB", 3));
+    assertEquals(1, map.get("Aa"));
+    assertEquals(2, map.get("BB"));
+    assertEquals(3, map.size());
+    assertTrue(map.containsKey("BB"));
+    assertFalse(map.containsKey("db.type"));
+    assertTrue(map.containsValue("POST"));
+    assertEquals(new HashSet<>(Arrays.asList("POST", 1, 2)), new HashSet<>(map.values()));
+    assertNull(map.get("unknown"));
+    assertNull(map.get(1));
+    assertThrows(IllegalStateException.class, () -> map.put("unknown", 1));
+    assertEquals(1, map.remove("Aa"));
+    assertNull(map.get("Aa"));
+    assertEquals(2, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get("BB"));
+  }
+
+  @Test
+  public void keys() {
+    TestTagsTagsMap<Object> map = TestTagsTagsMap.create();
+    assertEquals(new HashSet<>(Arrays.asList("http.method", "http.status_code", "db.type", "Aa", "BB", "class")),
+            map.registeredKeys());
+    assertTrue(map.keySet().isEmpty());
+    map.put("BB", 1);
+    map.put("class", 2);
+    assertEquals(new HashSet<>(Arrays.asList("BB", "class")), map.keySet());
+    assertEquals("class", TestTagsTagsMap.CLASS);
+    assertEquals(map.indexFor("db.type"), map.indexFor(new String("db.type")));
+    assertEquals(-1, map.indexFor("db.typ"));
+  }
+
+  @Test
+  public void conditionalWrites() {
+    TestTagsTagsMap<Object> map = TestTagsTagsMap.create();
+    assertNull(map.replace("Aa", 1));
+    assertFalse(map.containsKey("Aa"));
+    map.put("Aa", 1);
+    assertEquals(1, map.replace("Aa", 2));
+    assertFalse(map.replace("Aa", 1, 3));
+    assertTrue(map.replace("Aa", 2, 3));
+    assertFalse(map.remove("Aa", 2));
+    assertTrue(map.remove("Aa", 3));
+    assertFalse(map.containsKey("Aa"));
+    assertTrue(map.isEmpty());
+    assertNull(map.replace("unknown", 1));
+    assertFalse(map.remove("unknown", 1));
+    assertEquals(4, map.merge("BB", 4, (x, y) -> x));
+    assertEquals(4, map.merge("BB", 5, (x, y) -> x));
+  }
+
+  @Test
+  public void views() {
+    TestTagsTagsMap<Object> map = TestTagsTagsMap.create();
+    map.put("http.method", "GET");
+    map.put("db.type", "sql");
+    map.put("BB", 1);
+    Map<String, Object> copy = new HashMap<>(map);
+    assertEquals(3, copy.size());
+    assertEquals(copy, new HashMap<>(map));
+    assertEquals(copy.entrySet(), map.entrySet());
+    assertTrue(map.entrySet().contains(new AbstractMap.SimpleEntry<>("BB", 1)));
+    assertTrue(map.values().contains("sql"));
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      if (entry.getKey().equals("BB")) {
+        entry.setValue(2);
+      }
+    }
+    assertEquals(2, map.get("BB"));
+    map.keySet().removeIf(key -> key.startsWith("http"));
+    assertEquals(new HashSet<>(Arrays.asList("db.type", "BB")), map.keySet());
+    map.values().remove("sql");
+    assertEquals(Collections.singleton("BB"), map.keySet());
+    map.entrySet().clear();
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void bulkWrites() {
+    TestTagsTagsMap<Object> map = TestTagsTagsMap.create();
+    Map<String, Object> source = new LinkedHashMap<>();
+    source.put("Aa", 1);
+    source.put("class", "C");
+    map.putAll(source);
+    assertEquals(source, new HashMap<>(map));
+    source.put("unknown", 2);
+    assertThrows(IllegalStateException.class, () -> map.putAll(source));
+    TestTagsTagsMap<Object> other = TestTagsTagsMap.create();
+    other.put("Aa", 10);
+    other.put("db.type", "sql");
+    map.mergeAll(other, (x, y) -> null);
+    assertNull(map.get("Aa"));
+    assertEquals("sql", map.get("db.type"));
+    assertEquals(new HashSet<>(Arrays.asList("class", "db.type")), map.keySet());
+    GeneratedTagsMap<Object> fork = map.fork();
+    map.put("class", "D");
+    assertEquals("C", fork.get("class"));
+    assertEquals(2, fork.size());
+    assertEquals("sql", fork.get(new StringBuilder("db.type")));
+    assertNull(fork.get(new StringBuilder("db.typ")));
+    fork.putAll(other);
+    assertEquals(10, fork.get("Aa"));
+    assertEquals(3, fork.size());
+  }
+
+  @Test
+  public void writeTo() throws Exception {
+    TestTagsTagsMap<Object> map = TestTagsTagsMap.create();
+    map.put("http.method", "GET");
+    map.put("BB", 1);
+    TagsMap<Object> tagsMap = TagsMap.create(StringTables.create("http.method", "BB"));
+    tagsMap.putAll(map);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    tagsMap.writeTo(expected, TagsEncoder.JSON);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    map.writeTo(actual, TagsEncoder.JSON);
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    ByteBuffer buffer = ByteBuffer.allocate(actual.size());
+    map.writeTo(buffer, TagsEncoder.JSON);
+    assertArrayEquals(actual.toByteArray(), buffer.array());
+  }
+}
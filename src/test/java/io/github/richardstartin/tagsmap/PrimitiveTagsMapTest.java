@@ -0,0 +1,118 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrimitiveTagsMapTest {
+
+  private final StringTable table = StringTables.create("x1", "x2", "x3", "x4");
+
+  @Test
+  public void longGetAndSet() {
+    LongTagsMap map = LongTagsMap.create(table);
+    assertFalse(map.containsKey("x1"));
+    assertEquals(-1L, map.getOrDefault("x1", -1L));
+    assertEquals(0L, map.put("x1", 0L));
+    assertTrue(map.containsKey("x1"));
+    assertEquals(0L, map.getOrDefault("x1", -1L));
+    assertEquals(1, map.size());
+    assertEquals(10L, map.addAndGet("x2", 10L));
+    assertEquals(15L, map.addAndGet(table.code("x2"), 5L));
+    assertTrue(map.compareAndSet("x2", 15L, 20L));
+    assertFalse(map.compareAndSet("x2", 15L, 25L));
+    assertEquals(20L, map.get("x2"));
+    assertEquals(20L, map.remove("x2"));
+    assertFalse(map.containsKey("x2"));
+    assertEquals(1, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertEquals(0L, map.get("x1"));
+  }
+
+  @Test
+  public void rejectInvalidCodes() {
+    LongTagsMap longs = LongTagsMap.create(table);
+    IntTagsMap ints = IntTagsMap.create(table);
+    DoubleTagsMap doubles = DoubleTagsMap.create(table);
+    for (int code : new int[] {-1, 4, 64, Integer.MAX_VALUE}) {
+      assertThrows(IllegalStateException.class, () -> longs.get(code));
+      assertThrows(IllegalStateException.class, () -> longs.put(code, 1L));
+      assertThrows(IllegalStateException.class, () -> longs.addAndGet(code, 1L));
+      assertThrows(IllegalStateException.class, () -> longs.compareAndSet(code, 0L, 1L));
+      assertThrows(IllegalStateException.class, () -> longs.remove(code));
+      assertThrows(IllegalStateException.class, () -> longs.containsKey(code));
+      assertThrows(IllegalStateException.class, () -> ints.put(code, 1));
+      assertThrows(IllegalStateException.class, () -> ints.remove(code));
+      assertThrows(IllegalStateException.class, () -> doubles.put(code, 1D));
+      assertThrows(IllegalStateException.class, () -> doubles.addAndGet(code, 1D));
+    }
+    assertTrue(longs.isEmpty());
+    assertTrue(ints.isEmpty());
+    assertTrue(doubles.isEmpty());
+  }
+
+  @Test
+  public void doubleGetAndSet() {
+    DoubleTagsMap map = DoubleTagsMap.create(table);
+    assertEquals(Double.NaN, map.getOrDefault("x3", Double.NaN));
+    assertEquals(0D, map.put("x3", 1.5D));
+    assertEquals(4D, map.addAndGet("x3", 2.5D));
+    assertTrue(map.compareAndSet("x3", 4D, -0D));
+    assertFalse(map.compareAndSet("x3", 0D, 1D));
+    assertEquals(-0D, map.get("x3"));
+    assertEquals(-0D, map.remove("x3"));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void intGetAndSet() {
+    IntTagsMap map = IntTagsMap.create(table);
+    assertEquals(0, map.put("x4", 200));
+    assertEquals(200, map.put("x4", 404));
+    assertEquals(405, map.addAndGet("x4", 1));
+    assertTrue(map.compareAndSet(table.code("x4"), 405, 500));
+    assertEquals(500, map.get("x4"));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void unregistered() {
+    LongTagsMap map = LongTagsMap.create(table);
+    assertFalse(map.containsKey("y"));
+    assertEquals(0L, map.get("y"));
+    assertEquals(0L, map.remove("y"));
+    assertThrows(IllegalStateException.class, () -> map.put("y", 1L));
+    assertThrows(IllegalStateException.class, () -> map.addAndGet("y", 1L));
+  }
+
+  @Test
+  public void concurrentAddAndGet() throws InterruptedException {
+    LongTagsMap map = LongTagsMap.create(table);
+    int threads = 4;
+    int increments = 100000;
+    CountDownLatch latch = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      workers[t] = new Thread(() -> {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 0; i < increments; ++i) {
+          map.addAndGet("x1", 1L);
+        }
+      });
+      workers[t].start();
+    }
+    latch.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals((long) threads * increments, map.get("x1"));
+  }
+}
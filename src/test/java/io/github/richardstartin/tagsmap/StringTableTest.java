@@ -1,9 +1,15 @@
 package io.github.richardstartin.tagsmap;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -59,4 +65,173 @@ public class StringTableTest {
     }
   }
 
-}
\ No newline at end of file
+  @ParameterizedTest
+  @MethodSource("randomStringSets")
+  public void lookupUtf8(Set<String> keys) {
+    StringTable table = new StringTable(keys.toArray(new String[0]));
+    for (String key : keys) {
+      byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+      byte[] padded = new byte[utf8.length + 7];
+      System.arraycopy(utf8, 0, padded, 3, utf8.length);
+      ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+      direct.put(padded);
+      int code = table.code(key);
+      assertEquals(code, table.code(utf8, 0, utf8.length));
+      assertEquals(code, table.code(padded, 3, utf8.length));
+      assertEquals(code, table.code(ByteBuffer.wrap(padded), 3, utf8.length));
+      assertEquals(code, table.code(direct, 3, utf8.length));
+      assertEquals(-1, table.code(padded, 3, utf8.length + 1));
+    }
+  }
+
+  @Test
+  public void lookupMultiByteUtf8() {
+    String[] keys = {"http.method", "caf\u00e9", "\u65e5\u672c", "emoji.\ud83d\ude00", "peer.service"};
+    StringTable table = new StringTable(keys);
+    for (String key : keys) {
+      byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+      assertEquals(table.code(key), table.code(utf8, 0, utf8.length));
+      assertEquals(table.code(key), table.code(ByteBuffer.allocateDirect(utf8.length).put(utf8), 0, utf8.length));
+    }
+    byte[] unknown = "http.status".getBytes(StandardCharsets.UTF_8);
+    assertEquals(-1, table.code(unknown, 0, unknown.length));
+    byte[] truncated = {(byte) 0xE6, (byte) 0x97};
+    assertEquals(-1, table.code(truncated, 0, truncated.length));
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomStringSets")
+  public void lookupCharSequence(Set<String> keys) {
+    StringTable table = new StringTable(keys.toArray(new String[0]));
+    StringBuilder sb = new StringBuilder();
+    for (String key : keys) {
+      sb.setLength(0);
+      sb.append(key);
+      assertEquals(table.code(key), table.code(sb));
+      assertEquals(table.code(key), table.code((CharSequence) key));
+      assertEquals(table.code(key), table.code(CharBuffer.wrap("__" + key + "__", 2, key.length() + 2)));
+      sb.append('A');
+      assertEquals(-1, table.code(sb));
+    }
+  }
+
+  @Test
+  public void hashesDifferingInHighBits() {
+    // lhwshcu, yddbmomrdxsybbzuxu and vjqckius share a bucket and their hashes
+    // only differ above bit 22, construction used to spin on this set forever
+    String[] keys = {
+            "heaoy", "gqqxmttqdtgfjjw", "okrrxgbjdjnbimitxz", "viqaxehqcgdcaiqyhsb", "smhr", "zrkhst",
+            "wnlmj", "pbcfshkyl", "arjftcqmnaarjabw", "lhwshcu", "zvbvcgicdtlf", "klmwcbgafthvzjksm",
+            "yddbmomrdxsybbzuxu", "vjqckius", "appysapdrszwswdnb", "htybwuavntobz", "mpnuvrniybsnqxqwoqt",
+            "gnjwta", "xllerumcsmvjd", "rpwtamhosmamunsusn", "mfeitsjktdnfsjisdn", "vhdoicmeixtw",
+            "qoggzbmnhobydht", "cjiox", "xlxbqueuzrqro", "jjxkefcwrikpcxp", "r", "kcktslamrsw",
+            "dodtltflytlvssb", "iiozmigpd", "oomhkdggtpvmbt", "osim", "szab"
+    };
+    StringTable table = new StringTable(keys);
+    BitSet used = new BitSet(table.size());
+    for (String key : keys) {
+      int code = table.code(key);
+      assertEquals(key, table.get(code));
+      assertFalse(used.get(code));
+      used.set(code);
+    }
+  }
+
+  @Test
+  public void hashesDifferingBySymmetricPattern() {
+    // the hashes differ by 0x75007500, which cancels out in the first fold of the mix
+    StringTable table = new StringTable("aznqmtpvclrxiecnew", "ymcllijtqgzpaxutit", "pmohxgjgwpmb");
+    assertEquals("aznqmtpvclrxiecnew", table.get(table.code("aznqmtpvclrxiecnew")));
+    assertEquals("ymcllijtqgzpaxutit", table.get(table.code("ymcllijtqgzpaxutit")));
+    assertEquals("pmohxgjgwpmb", table.get(table.code("pmohxgjgwpmb")));
+  }
+
+  @Test
+  public void identicalHashCodes() {
+    assertThrows(IllegalStateException.class, () -> new StringTable("Aa", "BB"));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {StringTable.MPHF_THRESHOLD + 1, 5000, 100_000})
+  public void minimalPerfectHash(int keyCount) {
+    Set<String> keys = new HashSet<>();
+    while (keys.size() < keyCount) {
+      keys.add(create(ThreadLocalRandom.current().nextInt(1, 20)));
+    }
+    StringTable table = new StringTable(keys.toArray(new String[0]));
+    assertEquals(keyCount, table.size());
+    BitSet used = new BitSet(keyCount);
+    for (String key : keys) {
+      int code = table.code(key);
+      assertTrue(code >= 0 && code < keyCount);
+      assertEquals(key, table.get(code));
+      assertFalse(used.get(code));
+      used.set(code);
+      byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+      assertEquals(code, table.code(utf8, 0, utf8.length));
+      String absent = key + "A";
+      int absentCode = table.code(absent);
+      assertTrue(absentCode >= 0 && absentCode < keyCount);
+      assertNotEquals(absent, table.get(absentCode));
+      byte[] absentUtf8 = absent.getBytes(StandardCharsets.UTF_8);
+      assertEquals(-1, table.code(absentUtf8, 0, absentUtf8.length));
+      assertEquals(code, table.code(new StringBuilder(key)));
+      assertEquals(-1, table.code(new StringBuilder(absent)));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, 37, StringTable.MPHF_THRESHOLD, StringTable.MPHF_THRESHOLD + 1, 5000})
+  public void serialization(int keyCount) throws IOException {
+    Set<String> keys = new HashSet<>();
+    while (keys.size() < keyCount) {
+      keys.add(create(ThreadLocalRandom.current().nextInt(1, 20)) + "\u00e9");
+    }
+    StringTable table = new StringTable(keys.toArray(new String[0]));
+    byte[] serialized = table.toBytes();
+    ByteBuffer direct = ByteBuffer.allocateDirect(serialized.length + 3);
+    direct.position(3);
+    direct.put(serialized);
+    direct.position(3);
+    StringTable[] loadedTables = {
+            StringTables.load(serialized),
+            StringTables.load(new ByteArrayInputStream(serialized)),
+            StringTables.load(direct)
+    };
+    assertEquals(3, direct.position());
+    for (StringTable loaded : loadedTables) {
+      assertEquals(table.size(), loaded.size());
+      for (String key : keys) {
+        int code = table.code(key);
+        assertEquals(code, loaded.code(key));
+        byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+        assertEquals(code, loaded.code(utf8, 0, utf8.length));
+        assertEquals(code, loaded.code(new StringBuilder(key)));
+        assertEquals(key, loaded.get(code));
+        assertEquals(-1, loaded.code(new StringBuilder(key).append('A')));
+      }
+      assertEquals(table.keySet(), loaded.keySet());
+    }
+    assertThrows(IllegalStateException.class, () -> StringTables.load(Arrays.copyOf(serialized, serialized.length - 1)));
+    byte[] corrupt = serialized.clone();
+    corrupt[0] ^= 1;
+    assertThrows(IllegalStateException.class, () -> StringTables.load(corrupt));
+    // lengths which don't fit in the remaining bytes are rejected before anything is allocated
+    assertThrows(IllegalStateException.class, () -> StringTables.load(withInt(serialized, 8, Integer.MAX_VALUE)));
+    if (serialized[12] == 0) {
+      assertThrows(IllegalStateException.class, () -> StringTables.load(withInt(serialized, 13, 1 << 30)));
+    }
+    if (keyCount > 0) {
+      int lastKeyLength = table.get(keyCount - 1).getBytes(StandardCharsets.UTF_8).length;
+      int offset = serialized.length - lastKeyLength - Integer.BYTES;
+      assertThrows(IllegalStateException.class, () -> StringTables.load(withInt(serialized, offset, Integer.MAX_VALUE)));
+      assertThrows(IllegalStateException.class, () -> StringTables.load(withInt(serialized, offset, -1)));
+    }
+  }
+
+  private static byte[] withInt(byte[] serialized, int offset, int value) {
+    byte[] copy = serialized.clone();
+    ByteBuffer.wrap(copy).putInt(offset, value);
+    return copy;
+  }
+}
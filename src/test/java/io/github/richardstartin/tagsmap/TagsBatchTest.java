@@ -0,0 +1,101 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagsBatchTest {
+
+  private final StringTable table = StringTables.create("service", "resource", "status");
+
+  @Test
+  public void appendAndRead() {
+    TagsBatch<String> batch = TagsBatch.create(table, 1);
+    for (int i = 0; i < 100; ++i) {
+      batch.append(map("s" + (i % 3), i % 2 == 0 ? "r" + i : null, "200"));
+    }
+    assertEquals(100, batch.size());
+    assertEquals("s1", batch.get(1, "service"));
+    assertNull(batch.get(1, "resource"));
+    assertEquals("r2", batch.get(2, "resource"));
+    assertNull(batch.get(2, "unknown"));
+    assertEquals(batch.maskOf("service", "status"), batch.mask(1));
+    assertEquals(Arrays.asList("r0", null, "r2"), batch.column("resource").subList(0, 3));
+    TagsMap<String> row = batch.row(2);
+    assertEquals(3, row.size());
+    assertEquals("r2", row.get("resource"));
+    assertThrows(IllegalStateException.class, () -> batch.get(100, "service"));
+    assertThrows(IllegalStateException.class, () -> batch.column("unknown"));
+    assertThrows(IllegalStateException.class, () -> batch.append(TagsMap.create(StringTables.create("service"))));
+    batch.clear();
+    assertTrue(batch.isEmpty());
+    batch.append(map("s0", null, null));
+    assertNull(batch.get(0, "resource"));
+    assertNull(batch.column("resource").get(0));
+  }
+
+  @Test
+  public void projectAndFilter() {
+    TagsBatch<String> batch = TagsBatch.create(table);
+    batch.append(map("a", "r0", "200"));
+    batch.append(map("b", null, "500"));
+    batch.append(map("c", "r2", null));
+    TagsBatch<String> projected = batch.project("service", "resource");
+    assertEquals(3, projected.size());
+    assertEquals("r0", projected.get(0, "resource"));
+    assertNull(projected.get(0, "status"));
+    assertEquals(projected.maskOf("service"), projected.mask(1));
+
+    long resource = batch.maskOf("resource");
+    TagsBatch<String> filtered = batch.filter(mask -> (mask & resource) != 0);
+    assertEquals(2, filtered.size());
+    assertEquals("a", filtered.get(0, "service"));
+    assertEquals("c", filtered.get(1, "service"));
+    assertEquals("r2", filtered.get(1, "resource"));
+    assertNull(filtered.get(1, "status"));
+  }
+
+  @Test
+  public void groupBy() {
+    TagsBatch<String> batch = TagsBatch.create(table);
+    for (int i = 0; i < 1000; ++i) {
+      batch.append(map(i % 10 == 9 ? null : "s" + (i % 3), "r" + i, i % 2 == 0 ? "200" : null));
+    }
+    Map<String, int[]> groups = batch.groupBy("service");
+    assertEquals(Arrays.asList("s0", "s1", "s2"), Arrays.asList(groups.keySet().toArray()));
+    int rows = 0;
+    for (Map.Entry<String, int[]> group : groups.entrySet()) {
+      for (int row : group.getValue()) {
+        assertEquals(group.getKey(), batch.get(row, "service"));
+      }
+      TagsBatch<String> rowsOfGroup = batch.select(group.getValue());
+      rows += rowsOfGroup.size();
+      for (int row = 0; row < rowsOfGroup.size(); ++row) {
+        assertEquals(group.getKey(), rowsOfGroup.get(row, "service"));
+        int i = Integer.parseInt(rowsOfGroup.get(row, "resource").substring(1));
+        assertEquals("s" + (i % 3), group.getKey());
+        assertEquals(i % 2 == 0 ? "200" : null, rowsOfGroup.get(row, "status"));
+      }
+    }
+    assertEquals(900, rows);
+    assertTrue(TagsBatch.<String>create(table).groupBy("service").isEmpty());
+    assertThrows(IllegalStateException.class, () -> batch.select(new int[] {1000}));
+  }
+
+  private TagsMap<String> map(String service, String resource, String status) {
+    TagsMap<String> map = TagsMap.create(table);
+    if (null != service) {
+      map.put("service", service);
+    }
+    if (null != resource) {
+      map.put("resource", resource);
+    }
+    if (null != status) {
+      map.put("status", status);
+    }
+    return map;
+  }
+}
@@ -0,0 +1,160 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagsEncoderTest {
+
+  private final StringTable table = StringTables.create("a", "b\"q", "c", "d");
+
+  @Test
+  public void json() throws IOException {
+    TagsMap<Object> map = TagsMap.create(table);
+    map.put("a", "x\ny\u00e9");
+    map.put("b\"q", -1234L);
+    map.put("d", true);
+    String[] expected = new String[table.size()];
+    expected[table.code("a")] = "\"a\":\"x\\u000ay\u00e9\"";
+    expected[table.code("b\"q")] = "\"b\\\"q\":-1234";
+    expected[table.code("d")] = "\"d\":true";
+    StringBuilder json = new StringBuilder("{");
+    for (String entry : expected) {
+      if (null != entry) {
+        json.append(json.length() > 1 ? "," : "").append(entry);
+      }
+    }
+    json.append('}');
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    map.writeTo(out, TagsEncoder.JSON);
+    assertEquals(json.toString(), new String(out.toByteArray(), UTF_8));
+  }
+
+  @Test
+  public void streamsAreWrittenInBlocks() throws IOException {
+    TagsMap<Object> map = TagsMap.create(table);
+    char[] chars = new char[2000];
+    Arrays.fill(chars, '\u00e9');
+    map.put("a", new String(chars));
+    map.put("c", "short");
+    map.put("d", 12345678L);
+    for (TagsEncoder encoder : new TagsEncoder[]{TagsEncoder.JSON, TagsEncoder.MSGPACK}) {
+      ByteBuffer buffer = ByteBuffer.allocate(8192);
+      map.writeTo(buffer, encoder);
+      int[] writes = new int[1];
+      ByteArrayOutputStream out = new ByteArrayOutputStream() {
+        @Override
+        public synchronized void write(int b) {
+          throw new AssertionError("single byte write");
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+          ++writes[0];
+          super.write(b, off, len);
+        }
+      };
+      map.writeTo(out, encoder);
+      assertArrayEquals(Arrays.copyOf(buffer.array(), buffer.position()), out.toByteArray());
+      // a value twice the size of the scratch array takes a handful of writes, not one per byte
+      assertTrue(writes[0] < 20, writes[0] + " writes");
+    }
+  }
+
+  @Test
+  public void emptyJson() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TagsMap.create(table).writeTo(out, TagsEncoder.JSON);
+    assertEquals("{}", new String(out.toByteArray(), UTF_8));
+  }
+
+  @Test
+  public void msgpack() {
+    TagsMap<Object> map = TagsMap.create(table);
+    map.put("a", "xy");
+    map.put("c", 300);
+    byte[][] expected = new byte[table.size()][];
+    expected[table.code("a")] = new byte[]{(byte) 0xA1, 'a', (byte) 0xA2, 'x', 'y'};
+    expected[table.code("c")] = new byte[]{(byte) 0xA1, 'c', (byte) 0xD1, 0x01, 0x2C};
+    ByteBuffer expectedBuffer = ByteBuffer.allocate(64);
+    expectedBuffer.put((byte) 0x82);
+    for (byte[] entry : expected) {
+      if (null != entry) {
+        expectedBuffer.put(entry);
+      }
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    map.writeTo(buffer, TagsEncoder.MSGPACK);
+    assertArrayEquals(Arrays.copyOf(expectedBuffer.array(), expectedBuffer.position()),
+            Arrays.copyOf(buffer.array(), buffer.position()));
+  }
+
+  @Test
+  public void msgpackValues() {
+    StringTable table = StringTables.create("k");
+    TagsMap<Object> map = TagsMap.create(table);
+    assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xA1, 'k', (byte) 0xC0}, write(map, null));
+    assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xA1, 'k', (byte) 0xFF}, write(map, -1));
+    assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xA1, 'k', (byte) 0xD0, (byte) 0x80}, write(map, (byte) -128));
+    assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xA1, 'k', (byte) 0xC3}, write(map, true));
+    assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xA1, 'k', (byte) 0xC4, 2, 7, 8}, write(map, new byte[]{7, 8}));
+    assertArrayEquals(new byte[]{(byte) 0x81, (byte) 0xA1, 'k', (byte) 0xA4, (byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80},
+            write(map, "\ud83d\ude00"));
+    byte[] longValue = write(map, Long.MAX_VALUE);
+    assertEquals((byte) 0xD3, longValue[3]);
+    assertEquals(Long.MAX_VALUE, ByteBuffer.wrap(longValue, 4, 8).getLong());
+    byte[] doubleValue = write(map, 1.5D);
+    assertEquals((byte) 0xCB, doubleValue[3]);
+    assertEquals(1.5D, ByteBuffer.wrap(doubleValue, 4, 8).getDouble());
+  }
+
+  @Test
+  public void keysAreCachedPerTable() {
+    assertSame(table.encodedKeys(TagsEncoder.JSON), table.encodedKeys(TagsEncoder.JSON));
+    assertSame(table.encodedKeys(TagsEncoder.MSGPACK), table.encodedKeys(TagsEncoder.MSGPACK));
+    assertNotSame(table.encodedKeys(TagsEncoder.JSON), table.encodedKeys(TagsEncoder.MSGPACK));
+  }
+
+  @Test
+  public void keysAreCachedPerEncoderClass() {
+    TagsEncoder json = new JsonTagsEncoder();
+    assertEquals(TagsEncoder.JSON.id, json.id);
+    assertSame(table.encodedKeys(TagsEncoder.JSON), table.encodedKeys(json));
+  }
+
+  @Test
+  public void failedWritesAreDiscarded() throws IOException {
+    TagsMap<Object> map = TagsMap.create(table);
+    map.put("a", "x");
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException();
+      }
+    };
+    assertThrows(IOException.class, () -> map.writeTo(failing, TagsEncoder.JSON));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    map.writeTo(out, TagsEncoder.JSON);
+    assertEquals("{\"a\":\"x\"}", new String(out.toByteArray(), UTF_8));
+  }
+
+  private static byte[] write(TagsMap<Object> map, Object value) {
+    map.clear();
+    if (null != value) {
+      map.put("k", value);
+    } else {
+      map.put("k", "");
+      map.removeRaw("k");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    map.writeTo(buffer, TagsEncoder.MSGPACK);
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+}
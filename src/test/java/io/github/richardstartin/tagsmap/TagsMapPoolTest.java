@@ -0,0 +1,95 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagsMapPoolTest {
+
+  private final StringTable table = StringTables.create("x1", "x2", "x3");
+
+  @Test
+  public void recycledMapsAreReusedEmpty() {
+    TagsMap<Object> map = TagsMapPool.acquire(table);
+    map.put("x1", 1);
+    map.put("x3", 3);
+    map.recycle();
+    TagsMap<Object> reused = TagsMapPool.acquire(table);
+    assertSame(map, reused);
+    assertTrue(reused.isEmpty());
+    assertNull(reused.get("x1"));
+    assertNull(reused.getRaw(table.code("x3")));
+    assertNotSame(reused, TagsMapPool.acquire(table));
+  }
+
+  @Test
+  public void mapsCanOnlyBeRecycledOnce() {
+    TagsMap<Object> map = TagsMapPool.acquire(table);
+    map.recycle();
+    assertThrows(IllegalStateException.class, map::recycle);
+    TagsMap<Object> reused = TagsMapPool.acquire(table);
+    assertSame(map, reused);
+    assertNotSame(reused, TagsMapPool.acquire(table));
+    reused.recycle();
+    assertSame(reused, TagsMapPool.acquire(table));
+  }
+
+  @Test
+  public void rawValuesAreCleared() {
+    TagsMap<Object> map = TagsMapPool.acquire(table);
+    map.putRaw(table.code("x2"), 2);
+    map.put("x3", 3);
+    map.removeRaw(table.code("x1"));
+    map.recycle();
+    TagsMap<Object> reused = TagsMapPool.acquire(table);
+    assertSame(map, reused);
+    assertNull(reused.getRaw(table.code("x2")));
+    assertNull(reused.get("x2"));
+    assertNull(reused.get("x3"));
+    reused.putRaw("x1", 1);
+    reused.clear();
+    assertNull(reused.getRaw(table.code("x1")));
+  }
+
+  @Test
+  public void poolsAreKeyedByTableAndKind() {
+    TagsMap<Object> hybrid = TagsMapPool.acquireHybrid(table);
+    hybrid.put("y", 1);
+    hybrid.recycle();
+    TagsMap<Object> dense = TagsMapPool.acquire(table);
+    assertNotSame(hybrid, dense);
+    assertNotSame(hybrid, TagsMapPool.acquireHybrid(StringTables.create("x1")));
+    TagsMap<Object> reused = TagsMapPool.acquireHybrid(table);
+    assertSame(hybrid, reused);
+    assertNull(reused.get("y"));
+  }
+
+  @Test
+  public void poolsArePerThread() throws InterruptedException {
+    TagsMap<Object> map = TagsMapPool.acquire(table);
+    map.recycle();
+    AtomicReference<TagsMap<Object>> other = new AtomicReference<>();
+    Thread thread = new Thread(() -> other.set(TagsMapPool.acquire(table)));
+    thread.start();
+    thread.join();
+    assertNotSame(map, other.get());
+    assertSame(map, TagsMapPool.acquire(table));
+  }
+
+  @Test
+  public void leastRecentlyUsedTablesAreDropped() {
+    TagsMap<Object> map = TagsMapPool.acquire(table);
+    map.recycle();
+    for (int i = 0; i < TagsMapPool.MAX_POOLED_TABLES - 1; ++i) {
+      TagsMapPool.acquire(StringTables.create("y" + i)).recycle();
+    }
+    assertSame(map, TagsMapPool.acquire(table));
+    map.recycle();
+    for (int i = 0; i < TagsMapPool.MAX_POOLED_TABLES; ++i) {
+      TagsMapPool.acquire(StringTables.create("z" + i)).recycle();
+    }
+    assertNotSame(map, TagsMapPool.acquire(table));
+  }
+}
@@ -2,9 +2,22 @@ package io.github.richardstartin.tagsmap;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.*;
 
 class TagsMapTest {
@@ -20,6 +33,146 @@ class TagsMapTest {
     assertEquals(10, map.get("x2"));
   }
 
+  @Test
+  public void unregisteredKey() {
+    TagsMap<Object> map = TagsMap.create(StringTables.create("x1", "x2"));
+    assertThrows(IllegalStateException.class, () -> map.put("y", 1));
+    assertNull(map.get("y"));
+    assertNull(map.remove("y"));
+  }
+
+  @Test
+  public void hybridOverflow() throws IOException {
+    TagsMap<Object> map = TagsMap.createHybrid(StringTables.create("x1", "x2"));
+    assertTrue(map.isEmpty());
+    assertNull(map.put("y1", "a"));
+    assertFalse(map.isEmpty());
+    assertNull(map.put("x1", "b"));
+    assertNull(map.put("y2", "c"));
+    assertEquals("a", map.put("y1", "d"));
+    assertEquals("d", map.putIfAbsent("y1", "e"));
+    assertNull(map.putIfAbsent("y3", "f"));
+    assertEquals(4, map.size());
+    assertEquals("d", map.get("y1"));
+    assertEquals("d", map.getExclusive("y1"));
+    assertEquals("b", map.get("x1"));
+    assertEquals("d", map.get(new StringBuilder("y1")));
+    assertEquals("b", map.get(new StringBuilder("x1")));
+    assertNull(map.get(new StringBuilder("x3")));
+    assertTrue(map.containsKey("y2"));
+    assertTrue(map.containsValue("f"));
+    assertEquals(new HashSet<>(Arrays.asList("b", "c", "d", "f")), new HashSet<>(map.values()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    map.writeTo(out, TagsEncoder.JSON);
+    assertEquals("{\"x1\":\"b\",\"y1\":\"d\",\"y2\":\"c\",\"y3\":\"f\"}", new String(out.toByteArray(), UTF_8));
+    assertEquals("c", map.remove("y2"));
+    assertNull(map.remove("y2"));
+    assertFalse(map.containsKey("y2"));
+    assertEquals(3, map.size());
+    assertEquals("d", map.remove("y1"));
+    assertEquals("f", map.remove("y3"));
+    assertEquals(1, map.size());
+    map.put("y4", "g");
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get("y4"));
+  }
+
+  @Test
+  public void forkSharesUntilWritten() {
+    TagsMap<Object> parent = TagsMap.createHybrid(StringTables.create("x1", "x2", "x3"));
+    parent.put("x1", 1);
+    parent.put("x2", 2);
+    parent.put("y", 3);
+    TagsMap<Object> child = parent.fork();
+    assertEquals(3, child.size());
+    assertEquals(1, child.get("x1"));
+    assertEquals(3, child.get("y"));
+
+    assertEquals(1, child.put("x1", 10));
+    assertNull(child.put("x3", 30));
+    assertEquals(2, child.remove("x2"));
+    assertNull(child.put("z", 40));
+    assertEquals(10, child.get("x1"));
+    assertNull(child.get("x2"));
+    assertEquals(30, child.get("x3"));
+    assertEquals(4, child.size());
+
+    assertEquals(1, parent.get("x1"));
+    assertEquals(2, parent.get("x2"));
+    assertNull(parent.get("x3"));
+    assertNull(parent.get("z"));
+    assertEquals(3, parent.size());
+
+    TagsMap<Object> grandchild = child.fork();
+    parent.put("x3", 300);
+    child.clear();
+    assertTrue(child.isEmpty());
+    assertEquals(300, parent.get("x3"));
+    assertEquals(30, grandchild.get("x3"));
+    assertEquals(10, grandchild.get("x1"));
+    assertEquals(4, grandchild.size());
+  }
+
+  @Test
+  public void putAllSameTable() {
+    StringTable table = StringTables.create("x1", "x2", "x3", "x4");
+    TagsMap<Object> target = TagsMap.createHybrid(table);
+    target.put("x1", 1);
+    target.put("x2", 2);
+    TagsMap<Object> source = TagsMap.createHybrid(table);
+    source.put("x2", 20);
+    source.put("x3", 30);
+    source.put("y", 40);
+    target.putAll(source);
+    assertEquals(4, target.size());
+    assertEquals(1, target.get("x1"));
+    assertEquals(20, target.get("x2"));
+    assertEquals(30, target.get("x3"));
+    assertEquals(40, target.get("y"));
+    assertFalse(target.containsKey("x4"));
+  }
+
+  @Test
+  public void putAllOtherMaps() {
+    TagsMap<Object> target = TagsMap.create(StringTables.create("x1", "x2", "x3"));
+    TagsMap<Object> other = TagsMap.create(StringTables.create("x3", "x2"));
+    other.put("x3", 3);
+    target.putAll(other);
+    assertEquals(1, target.size());
+    assertEquals(3, target.get("x3"));
+    Map<String, Object> map = new HashMap<>();
+    map.put("x1", 1);
+    map.put("x2", 2);
+    target.putAll(map);
+    assertEquals(3, target.size());
+    assertEquals(2, target.get("x2"));
+    map.put("y", 0);
+    assertThrows(IllegalStateException.class, () -> target.putAll(map));
+  }
+
+  @Test
+  public void mergeAll() {
+    StringTable table = StringTables.create("x1", "x2", "x3");
+    TagsMap<Integer> target = TagsMap.createHybrid(table);
+    target.put("x1", 1);
+    target.put("x2", 2);
+    target.put("y", 3);
+    TagsMap<Integer> source = TagsMap.createHybrid(table);
+    source.put("x1", 10);
+    source.put("x2", -2);
+    source.put("x3", 30);
+    source.put("y", 30);
+    source.put("z", 40);
+    target.mergeAll(source, (a, b) -> a + b == 0 ? null : a + b);
+    assertEquals(11, target.get("x1"));
+    assertFalse(target.containsKey("x2"));
+    assertEquals(30, target.get("x3"));
+    assertEquals(33, target.get("y"));
+    assertEquals(40, target.get("z"));
+    assertEquals(4, target.size());
+  }
+
   @Test
   public void visibilityTest() throws InterruptedException {
     StringTable table = StringTables.create("x1", "x2");
@@ -91,4 +244,218 @@ class TagsMapTest {
     }
   }
 
-}
\ No newline at end of file
+  @Test
+  public void tagKeys() {
+    StringTable table = StringTables.create("http.status", "http.method");
+    TagKey<Integer> status = table.key("http.status", Integer.class);
+    TagKey<String> method = table.key("http.method", String.class);
+    assertEquals("http.status", status.name());
+    assertEquals(table.code("http.status"), status.code());
+    assertEquals(Integer.class, status.type());
+    assertThrows(IllegalStateException.class, () -> table.key("http.url", String.class));
+    TagsMap<Object> map = TagsMap.create(table);
+    assertNull(map.putTag(status, 200));
+    assertNull(map.putTag(method, "GET"));
+    int code = map.getTag(status);
+    assertEquals(200, code);
+    assertEquals(200, map.get("http.status"));
+    assertEquals("GET", map.getTag(method));
+    assertEquals(2, map.size());
+    // a map over another table with the same keys resolves the name
+    TagsMap<Object> other = TagsMap.create(StringTables.create("http.method", "http.status"));
+    assertNull(other.putTag(status, 404));
+    assertEquals(404, other.getTag(status));
+    assertEquals(404, other.get("http.status"));
+    assertEquals(404, other.removeTag(status));
+    assertNull(other.getTag(status));
+    assertEquals("GET", map.removeTag(method));
+    assertNull(map.getTag(method));
+    assertEquals(1, map.size());
+    // only compiles while no other get overload competes with get(CharSequence) for null
+    assertThrows(NullPointerException.class, () -> map.get(null));
+  }
+
+  @Test
+  public void atomicOperations() {
+    TagsMap<Object> map = TagsMap.createHybrid(StringTables.create("x1", "x2"));
+    for (String key : new String[] {"x1", "y1"}) {
+      assertNull(map.replace(key, 1));
+      assertFalse(map.replace(key, 1, 2));
+      assertEquals(1, map.computeIfAbsent(key, k -> 1));
+      assertEquals(1, map.computeIfAbsent(key, k -> 2));
+      assertEquals(1, map.replace(key, 3));
+      assertFalse(map.replace(key, 1, 4));
+      assertTrue(map.replace(key, 3, 4));
+      assertEquals(5, map.computeIfPresent(key, (k, v) -> (Integer) v + 1));
+      assertEquals(6, map.compute(key, (k, v) -> (Integer) v + 1));
+      assertEquals(8, map.merge(key, 2, (a, b) -> (Integer) a + (Integer) b));
+      assertFalse(map.remove(key, 7));
+      assertTrue(map.containsKey(key));
+      assertTrue(map.remove(key, 8));
+      assertFalse(map.containsKey(key));
+      assertNull(map.computeIfPresent(key, (k, v) -> 1));
+      assertEquals(1, map.merge(key, 1, (a, b) -> null));
+      assertNull(map.merge(key, 1, (a, b) -> null));
+      assertFalse(map.containsKey(key));
+      assertEquals(2, map.compute(key, (k, v) -> null == v ? 2 : null));
+      assertNull(map.compute(key, (k, v) -> null == v ? 2 : null));
+      assertNull(map.computeIfAbsent(key, k -> null));
+      assertNull(map.get(key));
+    }
+    assertTrue(map.isEmpty());
+    TagsMap<Object> dense = TagsMap.create(StringTables.create("x1"));
+    assertThrows(IllegalStateException.class, () -> dense.merge("y1", 1, (a, b) -> a));
+    assertThrows(IllegalStateException.class, () -> dense.computeIfAbsent("y1", k -> 1));
+    assertFalse(dense.remove("y1", 1));
+    assertNull(dense.replace("y1", 1));
+  }
+
+  @Test
+  public void concurrentMerge() throws InterruptedException {
+    TagsMap<Long> map = TagsMap.create(StringTables.create("x1", "x2"));
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 100_000; ++i) {
+          map.merge("x1", 1L, Long::sum);
+          map.computeIfAbsent("x2", k -> Thread.currentThread().getId());
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(400_000L, map.get("x1"));
+    assertNotNull(map.get("x2"));
+    assertEquals(2, map.size());
+  }
+
+  @Test
+  public void liveViews() {
+    TagsMap<Object> map = TagsMap.create(StringTables.create("x1", "x2", "x3", "x4"));
+    Set<String> keys = map.keySet();
+    Set<Map.Entry<String, Object>> entries = map.entrySet();
+    assertTrue(keys.isEmpty());
+    assertTrue(entries.isEmpty());
+    assertFalse(keys.iterator().hasNext());
+    assertThrows(NoSuchElementException.class, () -> keys.iterator().next());
+    map.put("x1", "a");
+    map.put("x3", "c");
+    assertEquals(new HashSet<>(Arrays.asList("x1", "x3")), keys);
+    assertEquals(new HashSet<>(Arrays.asList("a", "c")), new HashSet<>(map.values()));
+    assertTrue(keys.contains("x3"));
+    assertFalse(keys.contains("x2"));
+    assertTrue(map.values().contains("c"));
+    assertTrue(entries.contains(new AbstractMap.SimpleImmutableEntry<>("x1", "a")));
+    assertFalse(entries.contains(new AbstractMap.SimpleImmutableEntry<>("x1", "c")));
+    Map<String, Object> expected = new HashMap<>();
+    expected.put("x1", "a");
+    expected.put("x3", "c");
+    assertEquals(expected.entrySet(), entries);
+    assertEquals(expected, new HashMap<>(map));
+    assertTrue(keys.remove("x1"));
+    assertFalse(map.containsKey("x1"));
+    assertTrue(entries.remove(new AbstractMap.SimpleImmutableEntry<>("x3", "c")));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void iteratorRemoveAndSetValue() {
+    TagsMap<Object> map = TagsMap.create(StringTables.create("x1", "x2", "x3"));
+    map.put("x1", 1);
+    map.put("x2", 2);
+    map.put("x3", 3);
+    Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+    assertThrows(IllegalStateException.class, it::remove);
+    while (it.hasNext()) {
+      Map.Entry<String, Object> entry = it.next();
+      if (entry.getKey().equals("x2")) {
+        it.remove();
+      } else {
+        entry.setValue((Integer) entry.getValue() * 10);
+      }
+    }
+    assertNull(map.get("x2"));
+    assertEquals(10, map.get("x1"));
+    assertEquals(30, map.get("x3"));
+    Object[] copies = map.entrySet().toArray();
+    assertEquals(2, copies.length);
+    assertNotSame(copies[0], copies[1]);
+    assertEquals("x1", ((Map.Entry<?, ?>) copies[0]).getKey());
+    assertEquals("x3", ((Map.Entry<?, ?>) copies[1]).getKey());
+  }
+
+  @Test
+  public void viewsSkipConcurrentRemoves() {
+    TagsMap<Object> map = TagsMap.create(StringTables.create("x1", "x2", "x3"));
+    map.put("x1", 1);
+    map.put("x2", 2);
+    map.put("x3", 3);
+    Iterator<String> it = map.keySet().iterator();
+    assertEquals("x1", it.next());
+    map.remove("x2");
+    assertEquals("x3", it.next());
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void hybridViewsIncludeOverflow() {
+    TagsMap<Object> map = TagsMap.createHybrid(StringTables.create("x1", "x2"));
+    map.put("x1", 1);
+    map.put("y1", 2);
+    map.put("y2", 3);
+    assertEquals(new HashSet<>(Arrays.asList("x1", "y1", "y2")), map.keySet());
+    assertEquals(3, map.values().size());
+    Map<String, Object> seen = new HashMap<>();
+    map.forEach(seen::put);
+    assertEquals(new HashMap<>(map), seen);
+    assertEquals(3, seen.size());
+    List<Integer> codes = new ArrayList<>();
+    map.forEachCode((code, value) -> codes.add(code));
+    assertEquals(Arrays.asList(0), codes);
+    Iterator<String> it = map.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith("y")) {
+        it.remove();
+      }
+    }
+    assertEquals(new HashSet<>(Arrays.asList("x1")), map.keySet());
+  }
+
+  @Test
+  public void forEachCode() {
+    StringTable table = StringTables.create("x1", "x2", "x3", "x4");
+    TagsMap<Object> map = TagsMap.create(table);
+    map.put("x2", "b");
+    map.put("x4", "d");
+    List<String> seen = new ArrayList<>();
+    map.forEachCode((code, value) -> seen.add(table.get(code) + "=" + value));
+    assertEquals(Arrays.asList("x2=b", "x4=d"), seen);
+  }
+
+  @Test
+  public void clearRacingWithCopyOfForkedValues() throws InterruptedException {
+    for (int round = 0; round < 1000; ++round) {
+      TagsMap<Object> map = TagsMap.create(StringTables.create("x1", "x2"));
+      map.put("x2", 2);
+      map.fork();
+      CountDownLatch start = new CountDownLatch(1);
+      Thread writer = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        map.put("x1", 1);
+      });
+      writer.start();
+      start.countDown();
+      map.clear();
+      writer.join();
+      // whichever of the clear and the writer's copy won, x2 must be gone
+      assertNull(map.get("x2"));
+      assertFalse(map.containsKey("x2"));
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagsStatisticsTest {
+
+  @Test
+  public void notInstrumentedByDefault() {
+    assertNull(StringTables.create("a", "b").statistics());
+  }
+
+  @Test
+  public void countsAcrossMaps() {
+    StringTable table = StringTables.createInstrumented("a", "b", "c", "d");
+    TagsStatistics statistics = table.statistics();
+    TagsMap<Object> first = TagsMap.create(table);
+    TagsMap<Object> second = TagsMap.createHybrid(table);
+    first.put("a", 1);
+    first.put("a", 2);
+    first.put("b", 1);
+    second.put("a", 1);
+    second.put("x", 1);
+    assertThrows(IllegalStateException.class, () -> first.put("y", 1));
+    first.putIfAbsent("z", 1);
+    assertEquals(2, first.get("a"));
+    assertEquals(1, second.get("x"));
+    assertEquals(1, second.getTag(table.key("a", Object.class)));
+    assertNull(first.get("c"));
+    assertNull(first.get("unknown"));
+    assertNull(first.get(new StringBuilder("d")));
+    first.remove("b");
+
+    TagsStatistics.Snapshot snapshot = statistics.snapshot();
+    assertEquals(2, snapshot.maps());
+    assertEquals(3, snapshot.hits());
+    assertEquals(3, snapshot.misses());
+    assertEquals(3, snapshot.unregisteredPuts());
+    assertEquals(2, snapshot.fills(table.code("a")));
+    assertEquals(1D, snapshot.fillRate("a"));
+    assertEquals(0.5D, snapshot.fillRate("b"));
+    assertEquals(0D, snapshot.fillRate("c"));
+    assertThrows(IllegalStateException.class, () -> snapshot.fillRate("x"));
+    assertEquals(0, snapshot.casRetries());
+  }
+
+  @Test
+  public void fillsAreCountedOncePerMap() {
+    StringTable table = StringTables.createInstrumented("a", "b");
+    TagsStatistics statistics = table.statistics();
+    TagsMap<Object> map = TagsMap.create(table);
+    for (int i = 0; i < 10; ++i) {
+      map.put("a", i);
+      map.remove("a");
+    }
+    map.put("b", 1);
+    TagsMap<Object> fork = map.fork();
+    fork.put("a", 1);
+    TagsStatistics.Snapshot snapshot = statistics.snapshot();
+    assertEquals(2, snapshot.maps());
+    assertEquals(2, snapshot.fills(table.code("a")));
+    assertEquals(1D, snapshot.fillRate("a"));
+    assertEquals(1D, snapshot.fillRate("b"));
+    map.clear();
+    map.putAll(fork);
+    assertEquals(1D, statistics.snapshot().fillRate("a"));
+  }
+
+  @Test
+  public void casRetriesUnderContention() throws InterruptedException {
+    String[] keys = new String[8];
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = "key" + i;
+    }
+    StringTable table = StringTables.createInstrumented(keys);
+    TagsMap<Object> map = TagsMap.create(table);
+    Thread[] threads = new Thread[keys.length];
+    for (int t = 0; t < threads.length; ++t) {
+      String key = keys[t];
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 10_000; ++i) {
+          map.put(key, i);
+          map.remove(key);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    TagsStatistics.Snapshot snapshot = table.statistics().snapshot();
+    // retries depend on scheduling, but every key filled the map, and is only counted once
+    assertTrue(snapshot.casRetries() >= 0);
+    for (int code = 0; code < keys.length; ++code) {
+      assertEquals(1, snapshot.fills(code));
+    }
+  }
+
+  @Test
+  public void mbean() throws Exception {
+    StringTable table = StringTables.createInstrumented("a", "b");
+    TagsMap<Object> map = TagsMap.create(table);
+    map.put("a", 1);
+    map.get("a");
+    ObjectName name = table.statistics().registerMBean("test");
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      assertEquals(1L, server.getAttribute(name, "Hits"));
+      assertEquals(1L, server.getAttribute(name, "Maps"));
+      TabularData fillRates = (TabularData) server.getAttribute(name, "FillRates");
+      assertEquals(2, fillRates.size());
+      assertThrows(IllegalStateException.class, () -> table.statistics().registerMBean("test"));
+    } finally {
+      table.statistics().unregisterMBean("test");
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagsStoreTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void putGetRemove() throws IOException {
+    StringTable table = StringTables.create("host", "runtime", "flag");
+    TagsStore store = TagsStore.create(dir.resolve("tags"), table, 4, 16);
+    assertEquals(4, store.records());
+    assertTrue(store.isEmpty(0));
+    store.put(0, "host", "h1");
+    store.put(0, "flag", "\u00e9t\u00e9");
+    store.put(3, "runtime", "jvm");
+    assertEquals("h1", store.get(0, "host"));
+    assertEquals("\u00e9t\u00e9", store.get(0, "flag"));
+    assertNull(store.get(0, "runtime"));
+    assertNull(store.get(0, "unknown"));
+    assertEquals("jvm", store.get(3, "runtime"));
+    assertTrue(store.isEmpty(1));
+    store.put(0, "host", "a-longer-host");
+    assertEquals("a-longer-host", store.get(0, "host"));
+    store.put(0, "host", "h2");
+    assertEquals("h2", store.get(0, "host"));
+    store.remove(0, "host");
+    assertFalse(store.contains(0, "host"));
+    assertTrue(store.contains(0, "flag"));
+    store.clear(0);
+    assertTrue(store.isEmpty(0));
+    assertThrows(IllegalStateException.class, () -> store.put(0, "unknown", "x"));
+    assertThrows(IllegalStateException.class, () -> store.put(0, "host", "more than sixteen bytes"));
+    assertThrows(IllegalStateException.class, () -> store.get(4, "host"));
+    assertThrows(IllegalStateException.class, () -> store.get(-1, "host"));
+  }
+
+  @Test
+  public void reopen() throws IOException {
+    Path path = dir.resolve("tags");
+    StringTable table = StringTables.create("host", "runtime", "flag");
+    TagsStore store = TagsStore.create(path, table, 2, 32);
+    store.put(0, "host", "h1");
+    store.put(1, "runtime", "jvm");
+    store.put(1, "flag", "on");
+    store.flush();
+
+    TagsStore reopened = TagsStore.open(path);
+    assertEquals(table.keySet(), reopened.stringTable().keySet());
+    assertEquals("h1", reopened.get(0, "host"));
+    assertEquals("jvm", reopened.get(1, "runtime"));
+    assertEquals("on", reopened.get(1, "flag"));
+    assertNull(reopened.get(1, "host"));
+
+    // a table with more keys, registered in a different order
+    StringTable wider = StringTables.create("other", "flag", "runtime", "host");
+    TagsStore shared = TagsStore.open(path, wider);
+    TagsMap<String> map = shared.load(1);
+    assertEquals(2, map.size());
+    assertEquals("jvm", map.get("runtime"));
+    assertEquals("on", map.get("flag"));
+    assertThrows(IllegalStateException.class, () -> shared.put(0, "other", "x"));
+    assertThrows(IllegalStateException.class, () -> TagsStore.open(path, StringTables.create("host", "flag")));
+  }
+
+  @Test
+  public void storeAndLoad() throws IOException {
+    StringTable table = StringTables.create("host", "runtime", "flag");
+    TagsStore store = TagsStore.create(dir.resolve("tags"), table, 1, 32);
+    TagsMap<String> map = TagsMap.create(table);
+    map.put("host", "h1");
+    map.put("runtime", "jvm");
+    store.store(0, map);
+    TagsMap<String> loaded = store.load(0);
+    assertEquals(2, loaded.size());
+    assertEquals("h1", loaded.get("host"));
+    assertEquals("jvm", loaded.get("runtime"));
+    map.remove("host");
+    map.put("runtime", "native");
+    map.put("flag", "on");
+    store.store(0, map);
+    loaded = store.load(0);
+    assertEquals(2, loaded.size());
+    assertNull(loaded.get("host"));
+    assertEquals("native", loaded.get("runtime"));
+    assertEquals("on", loaded.get("flag"));
+  }
+
+  @Test
+  public void tornValuesAreAbsent() throws IOException {
+    Path path = dir.resolve("tags");
+    StringTable table = StringTables.create("host", "runtime");
+    TagsStore store = TagsStore.create(path, table, 1, 8);
+    store.put(0, "host", "h1");
+    store.put(0, "runtime", "jvm");
+    store.flush();
+    // the record is a mask and two slots of a length, a checksum and 8 bytes,
+    // so the runtime value is in the last 8 bytes of the file
+    byte[] bytes = Files.readAllBytes(path);
+    bytes[bytes.length - 8] ^= 1;
+    Files.write(path, bytes);
+
+    TagsStore reopened = TagsStore.open(path);
+    assertEquals("h1", reopened.get(0, "host"));
+    assertNull(reopened.get(0, "runtime"));
+    assertFalse(reopened.contains(0, "runtime"));
+    assertEquals(Collections.singletonMap("host", "h1"), new HashMap<>(reopened.load(0)));
+    reopened.store(0, reopened.load(0));
+    assertNull(reopened.get(0, "runtime"));
+    reopened.put(0, "runtime", "jvm");
+    assertEquals("jvm", reopened.get(0, "runtime"));
+  }
+
+  @Test
+  public void notAStore() throws IOException {
+    Path path = dir.resolve("garbage");
+    Files.write(path, new byte[64]);
+    assertThrows(IllegalStateException.class, () -> TagsStore.open(path));
+  }
+}
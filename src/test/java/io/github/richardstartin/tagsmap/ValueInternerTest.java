@@ -0,0 +1,95 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValueInternerTest {
+
+  private final StringTable table = StringTables.create("http.method", "db.type", "peer.service");
+
+  @Test
+  public void canonicalizesEqualValues() {
+    ValueInterner interner = ValueInterner.create(table, 16);
+    String get = new String("GET");
+    assertSame(get, interner.intern("http.method", get));
+    assertSame(get, interner.intern("http.method", new String("GET")));
+    assertEquals(1, interner.hits());
+    assertEquals(1, interner.misses());
+    // keys are cached independently
+    String other = new String("GET");
+    assertSame(other, interner.intern("db.type", other));
+    assertNull(interner.intern("http.method", null));
+    assertSame(other, interner.intern("unregistered", other));
+  }
+
+  @Test
+  public void equalValuesOfDifferentClassesAreNotMixed() {
+    ValueInterner interner = ValueInterner.create(table, 4);
+    StringBuilder sb = new StringBuilder("x");
+    assertSame(sb, interner.intern("db.type", sb));
+    Integer one = 1;
+    assertSame(one, interner.intern("db.type", one));
+    assertEquals(Long.valueOf(1L), interner.intern("db.type", 1L));
+  }
+
+  @Test
+  public void rejectInvalidCodes() {
+    ValueInterner interner = ValueInterner.create(table, 4);
+    assertThrows(IllegalStateException.class, () -> interner.intern(-1, "x"));
+    assertThrows(IllegalStateException.class, () -> interner.intern(3, "x"));
+    assertThrows(IllegalStateException.class, () -> interner.intern(1 << 30, "x"));
+    assertEquals("x", interner.intern(2, "x"));
+  }
+
+  @Test
+  public void boundedPerKey() {
+    ValueInterner interner = ValueInterner.create(table, 8);
+    for (int i = 0; i < 10_000; ++i) {
+      assertEquals("v" + i, interner.intern("peer.service", "v" + i));
+    }
+    assertEquals(10_000, interner.misses());
+    String cached = new String("GET");
+    interner.intern("http.method", cached);
+    assertSame(cached, interner.intern("http.method", new String("GET")));
+  }
+
+  @Test
+  public void tagsMapInternsOnPut() {
+    ValueInterner interner = ValueInterner.create(table, 16);
+    TagsMap<String> first = TagsMap.create(table, interner);
+    TagsMap<String> second = TagsMap.createHybrid(table, interner);
+    TagsMap<String> third = TagsMap.create(table, interner);
+    String get = new String("GET");
+    first.put("http.method", get);
+    second.put("http.method", new String("GET"));
+    second.put("unregistered", new String("GET"));
+    third.putIfAbsent("http.method", new String("GET"));
+    assertSame(get, second.get("http.method"));
+    assertSame(get, third.get("http.method"));
+    Map<String, String> source = new HashMap<>();
+    source.put("http.method", new String("GET"));
+    TagsMap<String> fourth = TagsMap.create(table, interner);
+    fourth.putAll(source);
+    assertSame(get, fourth.get("http.method"));
+    assertSame(get, first.fork().get("http.method"));
+    assertThrows(IllegalStateException.class,
+            () -> TagsMap.create(StringTables.create("http.method"), interner));
+  }
+
+  @Test
+  public void cacheSizeMustFitAnArray() {
+    String[] keys = new String[4096];
+    for (int i = 0; i < keys.length; ++i) {
+      keys[i] = "key" + i;
+    }
+    StringTable table = StringTables.create(keys);
+    // 4096 keys of 2^20 slots would overflow an int
+    assertThrows(IllegalStateException.class, () -> ValueInterner.create(table, 1 << 20));
+    assertThrows(IllegalStateException.class, () -> ValueInterner.create(table, 1 << 19));
+    ValueInterner.create(table, 16);
+  }
+}
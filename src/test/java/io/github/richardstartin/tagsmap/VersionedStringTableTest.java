@@ -0,0 +1,159 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VersionedStringTableTest {
+
+  @Test
+  public void addKeysKeepsCodes() {
+    VersionedStringTable versioned = VersionedStringTable.create(8, "a", "b", "c");
+    StringTable first = versioned.current();
+    assertEquals(0, versioned.version());
+    StringTable second = versioned.addKeys("d", "b", "e", "d");
+    assertSame(second, versioned.current());
+    assertEquals(1, versioned.version());
+    assertEquals(5, second.size());
+    for (int code = 0; code < first.size(); ++code) {
+      assertEquals(code, second.code(first.get(code)));
+    }
+    assertEquals("d", second.get(3));
+    assertEquals("e", second.get(4));
+    assertSame(second, versioned.addKeys("a", "e"));
+    assertSame(second, first.latest());
+    assertEquals(1, versioned.version());
+  }
+
+  @Test
+  public void capacity() {
+    assertThrows(IllegalStateException.class, () -> VersionedStringTable.create(0));
+    assertThrows(IllegalStateException.class, () -> VersionedStringTable.create(StringTable.MPHF_THRESHOLD + 1));
+    assertThrows(IllegalStateException.class, () -> VersionedStringTable.create(2, "a", "b", "c"));
+    VersionedStringTable versioned = VersionedStringTable.create(3, "a");
+    assertThrows(IllegalStateException.class, () -> versioned.addKeys("b", "c", "d"));
+    assertEquals(1, versioned.current().size());
+    versioned.addKeys("b", "c");
+    assertThrows(IllegalStateException.class,
+            () -> TagsMap.create(VersionedStringTable.create(Long.SIZE + 1).current()));
+  }
+
+  @Test
+  public void mapMovesToNewVersionOnWrite() {
+    VersionedStringTable versioned = VersionedStringTable.create(8, "a", "b");
+    StringTable first = versioned.current();
+    TagsMap<Object> map = TagsMap.create(first);
+    map.put("a", 1);
+    assertThrows(IllegalStateException.class, () -> map.put("c", 3));
+    versioned.addKeys("c");
+    assertSame(first, map.stringTable());
+    assertNull(map.get("c"));
+    assertFalse(map.containsKey("c"));
+    assertEquals(1, map.get("a"));
+    assertNull(map.put("c", 3));
+    assertSame(versioned.current(), map.stringTable());
+    assertEquals(3, map.get("c"));
+    assertEquals(1, map.get("a"));
+    assertEquals(2, map.size());
+    assertEquals(new HashSet<>(Arrays.asList("a", "c")), map.keySet());
+    TagKey<Integer> c = versioned.current().key("c", Integer.class);
+    assertEquals(3, map.getTag(c));
+    assertEquals(3, map.putTag(c, 4));
+    versioned.addKeys("d", "e");
+    assertEquals(5, map.merge("e", 5, (x, y) -> x));
+    assertEquals(5, map.computeIfAbsent("d", k -> 5));
+    assertEquals(4, map.size());
+  }
+
+  @Test
+  public void hybridMapMovesOverflowEntries() {
+    VersionedStringTable versioned = VersionedStringTable.create(8, "a", "b");
+    TagsMap<Object> map = TagsMap.createHybrid(versioned.current());
+    map.put("a", 1);
+    map.put("c", 2);
+    map.put("x", 3);
+    versioned.addKeys("c", "d");
+    assertEquals(2, map.get("c"));
+    map.put("d", 4);
+    assertSame(versioned.current(), map.stringTable());
+    assertEquals(4, map.size());
+    assertEquals(2, map.get("c"));
+    assertEquals(3, map.get("x"));
+    List<String> keys = new ArrayList<>();
+    map.forEach((key, value) -> keys.add(key));
+    assertEquals(Arrays.asList("a", "c", "d", "x"), keys);
+    assertEquals(2, map.remove("c"));
+    assertNull(map.get("c"));
+    assertEquals(3, map.size());
+  }
+
+  @Test
+  public void internerCoversNewVersions() {
+    VersionedStringTable versioned = VersionedStringTable.create(4, "a");
+    ValueInterner interner = ValueInterner.create(versioned.current(), 4);
+    TagsMap<Object> map = TagsMap.create(versioned.current(), interner);
+    versioned.addKeys("b");
+    String value = new String("v");
+    map.put("b", value);
+    TagsMap<Object> other = TagsMap.create(versioned.current(), interner);
+    assertThrows(IllegalStateException.class, () -> TagsMap.create(StringTables.create("a"), interner));
+    other.put("b", new String("v"));
+    assertSame(value, other.get("b"));
+  }
+
+  @Test
+  public void concurrentWritesDuringMigration() throws InterruptedException {
+    for (int round = 0; round < 50; ++round) {
+      VersionedStringTable versioned = VersionedStringTable.create(32, "k0", "k1", "k2", "k3");
+      TagsMap<Integer> map = TagsMap.createHybrid(versioned.current());
+      int threads = 4;
+      int keysPerThread = 6;
+      CountDownLatch start = new CountDownLatch(1);
+      Thread[] writers = new Thread[threads];
+      for (int t = 0; t < threads; ++t) {
+        int thread = t;
+        writers[t] = new Thread(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 200; ++i) {
+            for (int k = 0; k < keysPerThread; ++k) {
+              map.put("t" + thread + "." + k, i);
+            }
+          }
+        });
+        writers[t].start();
+      }
+      start.countDown();
+      for (int t = 0; t < threads; ++t) {
+        for (int k = 0; k < keysPerThread; k += 2) {
+          versioned.addKeys("t" + t + "." + k);
+        }
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      // the last key added, so this moves the map to the latest version if no writer did
+      map.put("t" + (threads - 1) + "." + (keysPerThread - 2), 199);
+      assertSame(versioned.current(), map.stringTable());
+      assertEquals(threads * keysPerThread, map.size());
+      Map<String, Integer> copy = new HashMap<>(map);
+      assertEquals(threads * keysPerThread, copy.size());
+      for (int t = 0; t < threads; ++t) {
+        for (int k = 0; k < keysPerThread; ++k) {
+          assertEquals(199, map.get("t" + t + "." + k), "t" + t + "." + k);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package io.github.richardstartin.tagsmap;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WideTagsMapTest {
+
+  private static String[] keys(int count) {
+    Set<String> keys = new HashSet<>();
+    while (keys.size() < count) {
+      keys.add(StringTableTest.create(12));
+    }
+    return keys.toArray(new String[0]);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 63, 64, 65, 128, 300, 512})
+  public void getAndSet(int keyCount) {
+    String[] keys = keys(keyCount);
+    WideTagsMap<Integer> map = WideTagsMap.create(StringTables.create(keys));
+    assertTrue(map.isEmpty());
+    for (int i = 0; i < keys.length; ++i) {
+      assertNull(map.put(keys[i], i));
+      assertEquals(i + 1, map.size());
+    }
+    for (int i = 0; i < keys.length; ++i) {
+      assertTrue(map.containsKey(keys[i]));
+      assertEquals(i, map.get(keys[i]));
+    }
+    assertTrue(map.containsValue(keys.length - 1));
+    assertEquals(keys.length, map.values().size());
+    for (int i = 0; i < keys.length; i += 2) {
+      assertEquals(i, map.remove(keys[i]));
+      assertFalse(map.containsKey(keys[i]));
+    }
+    assertEquals(keys.length / 2, map.size());
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {65, 256})
+  public void putIfAbsent(int keyCount) {
+    String[] keys = keys(keyCount);
+    WideTagsMap<Integer> map = WideTagsMap.create(StringTables.create(keys));
+    String last = keys[keys.length - 1];
+    assertNull(map.putIfAbsent(last, 1));
+    assertEquals(1, map.putIfAbsent(last, 2));
+    assertEquals(1, map.get(last));
+    assertEquals(1, map.size());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {65, 200})
+  public void conditionalUpdates(int keyCount) {
+    String[] keys = keys(keyCount);
+    WideTagsMap<Integer> map = WideTagsMap.create(StringTables.create(keys));
+    String last = keys[keys.length - 1];
+    assertNull(map.replace(last, 1));
+    assertFalse(map.replace(last, 1, 2));
+    map.put(last, 1);
+    assertTrue(map.replace(last, 1, 2));
+    assertFalse(map.replace(last, 1, 3));
+    assertEquals(2, map.replace(last, 3));
+    assertFalse(map.remove(last, 2));
+    assertTrue(map.remove(last, 3));
+    assertFalse(map.containsKey(last));
+    assertTrue(map.isEmpty());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {65, 200})
+  public void liveViews(int keyCount) {
+    String[] keys = keys(keyCount);
+    WideTagsMap<Integer> map = WideTagsMap.create(StringTables.create(keys));
+    String last = keys[keys.length - 1];
+    map.put(keys[0], 0);
+    map.put(last, 1);
+    assertEquals(new HashSet<>(Arrays.asList(keys[0], last)), map.keySet());
+    assertEquals(2, map.values().size());
+    Map<String, Integer> copy = new HashMap<>(map);
+    assertEquals(2, copy.size());
+    assertEquals(1, copy.get(last));
+    Map<String, Integer> visited = new HashMap<>();
+    map.forEach(visited::put);
+    assertEquals(copy, visited);
+    Iterator<Map.Entry<String, Integer>> it = map.entrySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().getKey().equals(last)) {
+        it.remove();
+      }
+    }
+    assertFalse(map.containsKey(last));
+    assertEquals(1, map.size());
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {65, 200})
+  public void putAll(int keyCount) {
+    String[] keys = keys(keyCount);
+    StringTable table = StringTables.create(keys);
+    Map<String, Integer> source = new HashMap<>();
+    for (int i = 0; i < keys.length; i += 3) {
+      source.put(keys[i], i);
+    }
+    WideTagsMap<Integer> map = WideTagsMap.create(table);
+    map.putAll(source);
+    assertEquals(source.size(), map.size());
+    WideTagsMap<Integer> copy = WideTagsMap.create(table);
+    copy.put(keys[1], -1);
+    copy.putAll(map);
+    assertEquals(source.size() + 1, copy.size());
+    for (Map.Entry<String, Integer> entry : source.entrySet()) {
+      assertEquals(entry.getValue(), copy.get(entry.getKey()));
+    }
+    assertThrows(IllegalStateException.class, () -> map.putAll(Collections.singletonMap("not a key", 1)));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {65, 200})
+  public void unregistered(int keyCount) {
+    WideTagsMap<Integer> map = WideTagsMap.create(StringTables.create(keys(keyCount)));
+    assertNull(map.get("not a key"));
+    assertThrows(IllegalStateException.class, () -> map.put("not a key", 1));
+  }
+}